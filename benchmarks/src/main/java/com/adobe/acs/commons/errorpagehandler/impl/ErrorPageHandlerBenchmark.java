@@ -0,0 +1,290 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.component.ComponentContext;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * Benchmarks the error page resolution of ErrorPageHandlerImpl against an in-memory content tree.
+ *
+ * Each configured root is a site (/content/site-n/en) with an errors root (/content/site-n/en/errors) holding the
+ * 404 error page. Requests are for non-existing resources "depth" levels beneath the sites' roots.
+ *
+ * Resolvers, resources and the query builder are stub-only Mockito mocks, which do not record invocations, so the
+ * reported allocation rate is (mostly) that of the code under test.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ErrorPageHandlerBenchmark {
+    private static final String PAGE_RESOURCE_TYPE = "cq:Page";
+
+    /* Number of configured content trees */
+    @Param({ "10", "100", "1000" })
+    private int roots;
+
+    /* Depth of the requested (non-existing) resources beneath their content tree */
+    @Param({ "1", "4", "8" })
+    private int depth;
+
+    private final Map<String, Resource> resources = new HashMap<String, Resource>();
+
+    private ErrorPageHandlerImpl errorPageHandler;
+
+    private ResourceResolver resourceResolver;
+
+    private String[] pathConfig;
+
+    private SortedMap<String, String> authoredMap;
+
+    private SortedMap<String, String> configuredMap;
+
+    private PathTrie<String> errorPagesTrie;
+
+    private SlingHttpServletRequest[] requests;
+
+    private Resource[] errorResources;
+
+    private Resource[] parentResources;
+
+    private int index = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.resourceResolver = mockResourceResolver();
+
+        this.addResource("/");
+        this.addResource("/content");
+
+        this.pathConfig = new String[this.roots];
+        this.requests = new SlingHttpServletRequest[this.roots];
+        this.errorResources = new Resource[this.roots];
+        this.parentResources = new Resource[this.roots];
+
+        for (int i = 0; i < this.roots; i++) {
+            final String rootPath = "/content/site-" + i + "/en";
+
+            this.addResource("/content/site-" + i);
+            this.addResource(rootPath);
+            this.addResource(rootPath + "/errors");
+            this.addResource(rootPath + "/errors/404");
+
+            // Every other tree uses the default errors page name
+            this.pathConfig[i] = i % 2 == 0 ? rootPath : rootPath + ":errors";
+
+            String parentPath = rootPath;
+            for (int d = 1; d < this.depth; d++) {
+                parentPath = parentPath + "/level-" + d;
+                this.addResource(parentPath);
+            }
+
+            this.parentResources[i] = this.resources.get(parentPath);
+            this.errorResources[i] = mockResource(parentPath + "/missing.html", Resource.RESOURCE_TYPE_NON_EXISTING);
+            this.requests[i] = mockRequest(404);
+        }
+
+        this.errorPageHandler = new ErrorPageHandlerImpl();
+        this.inject("queryBuilder", mockQueryBuilder());
+        this.inject("resourceResolverFactory", mockResourceResolverFactory());
+        this.inject("metrics", new ErrorPageHandlerMetrics());
+        this.errorPageHandler.activate(mockComponentContext());
+
+        final SortedMap<String, String> configured = this.errorPageHandler.configurePathMap(this.pathConfig);
+
+        // Treat half the trees as authored (ex. via the errorPages page property) when merging
+        this.authoredMap = new TreeMap<String, String>(new StringLengthComparator());
+        this.configuredMap = new TreeMap<String, String>(new StringLengthComparator());
+        int i = 0;
+        for (final Map.Entry<String, String> entry : configured.entrySet()) {
+            if (i++ % 2 == 0) {
+                this.authoredMap.put(entry.getKey(), entry.getValue());
+            } else {
+                this.configuredMap.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        this.errorPagesTrie = new PathTrie<String>(
+                this.errorPageHandler.mergeMaps(this.authoredMap, this.configuredMap));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.errorPageHandler.deactivate(null);
+    }
+
+    @Benchmark
+    public String findErrorPage() {
+        final int i = this.next();
+        return this.errorPageHandler.findErrorPage(this.requests[i], this.errorResources[i]);
+    }
+
+    @Benchmark
+    public String getErrorPagesPath() {
+        return this.errorPageHandler.getErrorPagesPath(this.parentResources[this.next()], this.errorPagesTrie);
+    }
+
+    @Benchmark
+    public SortedMap<String, String> configurePathMap() {
+        return this.errorPageHandler.configurePathMap(this.pathConfig);
+    }
+
+    @Benchmark
+    public SortedMap<String, String> mergeMaps() {
+        return this.errorPageHandler.mergeMaps(this.authoredMap, this.configuredMap);
+    }
+
+    private int next() {
+        final int i = this.index;
+        this.index = i + 1 == this.roots ? 0 : i + 1;
+        return i;
+    }
+
+    private void addResource(final String path) {
+        this.resources.put(path, mockResource(path, PAGE_RESOURCE_TYPE));
+    }
+
+    private void inject(final String name, final Object value) throws Exception {
+        final Field field = ErrorPageHandlerImpl.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(this.errorPageHandler, value);
+    }
+
+    private Resource mockResource(final String path, final String resourceType) {
+        final Resource resource = mock(Resource.class, withSettings().stubOnly());
+        when(resource.getPath()).thenReturn(path);
+        when(resource.getResourceType()).thenReturn(resourceType);
+        when(resource.getResourceResolver()).thenReturn(this.resourceResolver);
+        return resource;
+    }
+
+    private ResourceResolver mockResourceResolver() {
+        final ResourceResolver resolver = mock(ResourceResolver.class, withSettings().stubOnly());
+
+        when(resolver.getResource(anyString())).thenAnswer(new Answer<Resource>() {
+            public Resource answer(final InvocationOnMock invocation) {
+                return resources.get((String) invocation.getArguments()[0]);
+            }
+        });
+
+        when(resolver.resolve(anyString())).thenAnswer(new Answer<Resource>() {
+            public Resource answer(final InvocationOnMock invocation) {
+                final String path = (String) invocation.getArguments()[0];
+                final Resource resource = resources.get(path);
+                return resource != null ? resource : mockResource(path, Resource.RESOURCE_TYPE_NON_EXISTING);
+            }
+        });
+
+        return resolver;
+    }
+
+    private SlingHttpServletRequest mockRequest(final int statusCode) {
+        final SlingHttpServletRequest request = mock(SlingHttpServletRequest.class, withSettings().stubOnly());
+        when(request.getAttribute(SlingConstants.ERROR_STATUS)).thenReturn(statusCode);
+        when(request.getResourceResolver()).thenReturn(this.resourceResolver);
+        return request;
+    }
+
+    private QueryBuilder mockQueryBuilder() {
+        // No authored error pages and no query results; error pages resolve to their errors root
+        final SearchResult result = mock(SearchResult.class, withSettings().stubOnly());
+        when(result.getHits()).thenAnswer(new Answer<List<Hit>>() {
+            public List<Hit> answer(final InvocationOnMock invocation) {
+                return new ArrayList<Hit>();
+            }
+        });
+        when(result.getNodes()).thenAnswer(new Answer<Iterator<Node>>() {
+            public Iterator<Node> answer(final InvocationOnMock invocation) {
+                return Collections.<Node>emptyList().iterator();
+            }
+        });
+
+        final Query query = mock(Query.class, withSettings().stubOnly());
+        when(query.getResult()).thenReturn(result);
+
+        final QueryBuilder queryBuilder = mock(QueryBuilder.class, withSettings().stubOnly());
+        when(queryBuilder.createQuery(any(PredicateGroup.class), any(Session.class))).thenReturn(query);
+        return queryBuilder;
+    }
+
+    private ResourceResolverFactory mockResourceResolverFactory() throws Exception {
+        final ResourceResolverFactory factory = mock(ResourceResolverFactory.class, withSettings().stubOnly());
+        when(factory.getAdministrativeResourceResolver(null)).thenReturn(this.resourceResolver);
+        return factory;
+    }
+
+    private ComponentContext mockComponentContext() {
+        final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("prop.enabled", true);
+        properties.put("prop.paths", this.pathConfig);
+        properties.put("prop.warm-up.enabled", false);
+
+        final ComponentContext componentContext = mock(ComponentContext.class, withSettings().stubOnly());
+        when(componentContext.getProperties()).thenReturn(properties);
+        return componentContext;
+    }
+}
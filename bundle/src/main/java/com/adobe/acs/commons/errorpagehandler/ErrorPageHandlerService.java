@@ -24,6 +24,10 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.io.Writer;
+
 /**
  * Error Page Handling Service which facilitates the resolution of errors against authorable pages for discrete content trees.
  *
@@ -86,6 +90,19 @@ public interface ErrorPageHandlerService {
      */
     public String getException(SlingHttpServletRequest request);
 
+    /**
+     * Writes the Exception Message (Stacktrace) from the Request directly to the writer.
+     *
+     * Unlike getException(..) the stacktrace is not first rendered into a String, and its depth is limited as configured
+     * (getException(..) always returns the full stacktrace).
+     *
+     * @param request
+     * @param writer
+     * @param escapeHtml true to HTML escape the output
+     * @throws IOException
+     */
+    public void writeException(SlingHttpServletRequest request, Writer writer, boolean escapeHtml) throws IOException;
+
     /**
      * Returns a String representation of the RequestProgress trace
      *
@@ -94,6 +111,16 @@ public interface ErrorPageHandlerService {
      */
     public String getRequestProgress(SlingHttpServletRequest request);
 
+    /**
+     * Writes the RequestProgress trace directly to the writer.
+     *
+     * @param request
+     * @param writer
+     * @param escapeHtml true to HTML escape the output
+     * @throws IOException
+     */
+    public void writeRequestProgress(SlingHttpServletRequest request, Writer writer, boolean escapeHtml) throws IOException;
+
     /**
      * Reset response attributes to support printing out a new page (rather than one that potentially errored out).
      * This includes clearing clientlib inclusion state, and resetting the response.
@@ -104,4 +131,18 @@ public interface ErrorPageHandlerService {
      * @param statusCode
      */
     public void resetRequestAndResponse(SlingHttpServletRequest request, SlingHttpServletResponse response, int statusCode);
+
+    /**
+     * Include the error page (as returned by findErrorPage(..)) into the response.
+     *
+     * If the rendered error page cache is enabled, anonymous requests are served the previously rendered error page.
+     *
+     * @param request
+     * @param response
+     * @param path
+     * @throws ServletException
+     * @throws IOException
+     */
+    public void includeErrorPage(SlingHttpServletRequest request, SlingHttpServletResponse response, String path)
+            throws ServletException, IOException;
 }
@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, per-client token bucket rate limiter.
+ *
+ * Clients are hashed across a fixed number of stripes, each holding a single token bucket; clients that hash to the
+ * same stripe share a bucket. Each bucket is tracked as the single timestamp at which it will next be full
+ * (the "theoretical arrival time" of the generic cell rate algorithm) and updated with compare-and-set.
+ */
+public final class ClientThrottle {
+    private static final int DEFAULT_STRIPES = 1024;
+
+    private final AtomicLongArray buckets;
+
+    private final int mask;
+
+    private final long intervalNanos;
+
+    private final long toleranceNanos;
+
+    /**
+     * @param permitsPerSecond sustained number of permits per second, per client
+     * @param burst number of permits a client may acquire at once after being idle
+     */
+    public ClientThrottle(final double permitsPerSecond, final int burst) {
+        this(permitsPerSecond, burst, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param permitsPerSecond sustained number of permits per second, per client
+     * @param burst number of permits a client may acquire at once after being idle
+     * @param stripes number of buckets clients are spread across; rounded up to a power of two
+     */
+    public ClientThrottle(final double permitsPerSecond, final int burst, final int stripes) {
+        if (permitsPerSecond <= 0D) {
+            throw new IllegalArgumentException("Permits per second must be greater than 0");
+        }
+
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+
+        this.buckets = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.intervalNanos = Math.max(1L, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.toleranceNanos = this.intervalNanos * (Math.max(1, burst) - 1);
+
+        final long now = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            this.buckets.set(i, now);
+        }
+    }
+
+    /**
+     * Attempt to acquire a permit for the client.
+     *
+     * @param client client identifier (ex. IP address)
+     * @return true if the client is within its rate; false if it should be throttled
+     */
+    public boolean tryAcquire(final String client) {
+        return this.tryAcquire(client, System.nanoTime());
+    }
+
+    boolean tryAcquire(final String client, final long now) {
+        final int stripe = this.getStripe(client);
+
+        while (true) {
+            final long current = this.buckets.get(stripe);
+            final long arrival = Math.max(current, now);
+
+            if (arrival - now > this.toleranceNanos) {
+                return false;
+            } else if (this.buckets.compareAndSet(stripe, current, arrival + this.intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    private int getStripe(final String client) {
+        int hash = client == null ? 0 : client.hashCode();
+        // Spread the hash so similar addresses do not share stripes
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash & this.mask;
+    }
+}
@@ -20,34 +20,42 @@
 package com.adobe.acs.commons.errorpagehandler.impl;
 
 import com.adobe.acs.commons.errorpagehandler.ErrorPageHandlerService;
+import com.adobe.acs.commons.util.StringWriterResponse;
 import com.adobe.acs.commons.wcm.ComponentHelper;
 import com.day.cq.commons.PathInfo;
+import com.day.cq.replication.ReplicationAction;
 import com.day.cq.search.PredicateGroup;
 import com.day.cq.search.Query;
 import com.day.cq.search.QueryBuilder;
 import com.day.cq.search.eval.JcrPropertyPredicateEvaluator;
 import com.day.cq.search.eval.NodenamePredicateEvaluator;
+import com.day.cq.search.eval.PathPredicateEvaluator;
 import com.day.cq.search.eval.TypePredicateEvaluator;
 import com.day.cq.search.result.Hit;
 import com.day.cq.search.result.SearchResult;
 import com.day.cq.wcm.api.NameConstants;
-import org.apache.commons.collections.IteratorUtils;
 import org.apache.commons.lang.ArrayUtils;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.*;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
-import org.apache.sling.api.request.RequestProgressTracker;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.ResourceUtil;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.auth.core.AuthUtil;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.commons.auth.Authenticator;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,17 +63,45 @@ import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.servlet.ServletException;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 @Component(label = "ACS AEM Commons - Error Page Handler",
             description = "Error Page Handling module which facilitates the resolution of errors against authorable pages for discrete content trees.",
             immediate = false,
             metatype = true)
-@Service
-public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
+@Properties({
+    @Property(name = EventConstants.EVENT_TOPIC,
+            value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+                    SlingConstants.TOPIC_RESOURCE_CHANGED,
+                    SlingConstants.TOPIC_RESOURCE_REMOVED,
+                    ReplicationAction.EVENT_TOPIC },
+            propertyPrivate = true),
+    /* Replication of content; and additions of pages, changes to page content and removals beneath /content,
+       excluding DAM assets */
+    @Property(name = EventConstants.EVENT_FILTER,
+            value = "(|(paths=/content/*)"
+                    + "(&(path=/content/*)(!(path=/content/dam/*))"
+                    + "(|(path=*/jcr:content)(path=*/jcr:content/*)(resourceType=cq:Page)"
+                    + "(event.topics=org/apache/sling/api/resource/Resource/REMOVED))))",
+            propertyPrivate = true)
+})
+@Service(value = { ErrorPageHandlerService.class, EventHandler.class })
+public class ErrorPageHandlerImpl implements ErrorPageHandlerService, EventHandler {
 
     private static final Logger log = LoggerFactory.getLogger(ErrorPageHandlerImpl.class);
 
@@ -111,6 +147,81 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     cardinality = Integer.MAX_VALUE)
     private static final String PROP_SEARCH_PATHS = "prop.paths";
 
+    /* Known Path Cache Size */
+    private static final int DEFAULT_KNOWN_PATH_CACHE_SIZE = 1000;
+    @Property(label = "Known path cache size",
+    description = "Approximate maximum number of existing content paths to remember when finding the closest real parent of a request for a non-existing resource; the least recently used paths are evicted. [Optional] [Default: 1000]",
+    intValue = DEFAULT_KNOWN_PATH_CACHE_SIZE)
+    private static final String PROP_KNOWN_PATH_CACHE_SIZE = "prop.cache.known-paths.size";
+
+    /* Rendered Error Page Cache */
+    private static final boolean DEFAULT_RENDERED_PAGE_CACHE_ENABLED = false;
+    private boolean renderedPageCacheEnabled = DEFAULT_RENDERED_PAGE_CACHE_ENABLED;
+    @Property(label = "Cache rendered error pages",
+    description = "Serve anonymous requests in WCM Mode Disabled (Publish) the previously rendered error page, rather than re-rendering the error page for every error. [Optional] [Default: false]",
+    boolValue = DEFAULT_RENDERED_PAGE_CACHE_ENABLED)
+    private static final String PROP_RENDERED_PAGE_CACHE_ENABLED = "prop.cache.rendered-pages.enabled";
+
+    private static final int DEFAULT_RENDERED_PAGE_CACHE_TTL = 300;
+    private long renderedPageCacheTTL = DEFAULT_RENDERED_PAGE_CACHE_TTL * 1000L;
+    @Property(label = "Rendered error page TTL",
+    description = "Number of seconds a rendered error page is cached for. Cached error pages are also invalidated when they are replicated or changed. [Optional] [Default: 300]",
+    intValue = DEFAULT_RENDERED_PAGE_CACHE_TTL)
+    private static final String PROP_RENDERED_PAGE_CACHE_TTL = "prop.cache.rendered-pages.ttl";
+
+    /* 404 Authentication Paths */
+    private static final String[] DEFAULT_AUTHENTICATION_PATHS = {};
+    private Pattern[] authenticationPaths = new Pattern[0];
+    @Property(label = "404 authentication paths",
+    description = "Regular expressions matching the resource paths of anonymous 404 requests that should be challenged to authenticate. Leave empty to challenge all anonymous 404 requests. Example: /content/.* [Optional]",
+    cardinality = Integer.MAX_VALUE)
+    private static final String PROP_AUTHENTICATION_PATHS = "prop.not-found.authentication.paths";
+
+    /* 404 Authentication Rate Limit */
+    private static final int DEFAULT_AUTHENTICATION_RATE = 0;
+    private ClientThrottle authenticationThrottle = null;
+    @Property(label = "404 authentication rate limit",
+    description = "Maximum number of authentication challenges per second issued to a single client for anonymous 404 requests; further requests are not challenged. 0 disables the limit. [Optional] [Default: 0]",
+    intValue = DEFAULT_AUTHENTICATION_RATE)
+    private static final String PROP_AUTHENTICATION_RATE = "prop.not-found.authentication.rate";
+
+    private static final int DEFAULT_AUTHENTICATION_BURST = 5;
+    @Property(label = "404 authentication burst",
+    description = "Number of authentication challenges a single client may be issued at once before the rate limit applies. [Optional] [Default: 5]",
+    intValue = DEFAULT_AUTHENTICATION_BURST)
+    private static final String PROP_AUTHENTICATION_BURST = "prop.not-found.authentication.burst";
+
+    private static final String DEFAULT_CLIENT_ADDRESS_HEADER = "";
+    private String clientAddressHeader = DEFAULT_CLIENT_ADDRESS_HEADER;
+    @Property(label = "Client address header",
+    description = "HTTP header holding the client's address when behind a proxy (ex. X-Forwarded-For); the first address is used. Leave empty to use the request's remote address. [Optional]",
+    value = DEFAULT_CLIENT_ADDRESS_HEADER)
+    private static final String PROP_CLIENT_ADDRESS_HEADER = "prop.not-found.authentication.client-address-header";
+
+    /* Error Message Stack Depth */
+    private static final int DEFAULT_STACK_TRACE_DEPTH = 100;
+    private int stackTraceDepth = DEFAULT_STACK_TRACE_DEPTH;
+    @Property(label = "Error message stack depth",
+    description = "Maximum number of stack frames displayed per exception (and cause) on the Author error message page, as written by writeException(..); getException(..) always returns the full stack trace. 0 displays all frames. [Optional] [Default: 100]",
+    intValue = DEFAULT_STACK_TRACE_DEPTH)
+    private static final String PROP_STACK_TRACE_DEPTH = "prop.error-message.stack-depth";
+
+    /* Warm-up */
+    private static final boolean DEFAULT_WARM_UP_ENABLED = true;
+    private boolean warmUpEnabled = DEFAULT_WARM_UP_ENABLED;
+    @Property(label = "Warm-up on start",
+    description = "Resolve the errors root and the warm-up error pages of every content tree in the background when the service starts, so the first errors do not pay the resolution cost. [Optional] [Default: true]",
+    boolValue = DEFAULT_WARM_UP_ENABLED)
+    private static final String PROP_WARM_UP_ENABLED = "prop.warm-up.enabled";
+
+    private static final String[] DEFAULT_WARM_UP_ERROR_PAGE_NAMES = { "404", "500", "403" };
+    private String[] warmUpErrorPageNames = DEFAULT_WARM_UP_ERROR_PAGE_NAMES;
+    @Property(label = "Warm-up error pages",
+    description = "Error page names (not paths) to resolve for each content tree on start. [Optional] [Default: 404, 500, 403]",
+    value = { "404", "500", "403" },
+    cardinality = Integer.MAX_VALUE)
+    private static final String PROP_WARM_UP_ERROR_PAGE_NAMES = "prop.warm-up.error-page-names";
+
     @Reference
     private QueryBuilder queryBuilder;
 
@@ -120,8 +231,49 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     @Reference
     private ComponentHelper componentHelper;
 
+    @Reference
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Reference
+    private ErrorPageHandlerMetrics metrics;
+
     private SortedMap<String, String> pathMap = new TreeMap<String, String>();
 
+    /* Authored root paths ~> error page paths; maintained from resource change events */
+    private final Map<String, String> authoredPathMap = new ConcurrentHashMap<String, String>();
+
+    /* Merged authored and OSGi configured root paths; replaced (never modified) whenever either source changes */
+    private volatile PathTrie<String> errorPagesTrie = new PathTrie<String>(new TreeMap<String, String>());
+
+    /* Errors root path ~> (error page name ~> resolved error page path, or "" if there is none) */
+    private final ConcurrentMap<String, Map<String, String>> errorPageCache =
+            new ConcurrentHashMap<String, Map<String, String>>();
+
+    /* Error page path + extension + status code ~> rendered error page */
+    private final Map<String, RenderedErrorPage> renderedPageCache = new ConcurrentHashMap<String, RenderedErrorPage>();
+
+    /* Paths known to exist ~> tick of their last use; used to short-cut finding the closest real parent of
+       non-existing resources */
+    private volatile ConcurrentMap<String, Long> knownPathCache = new ConcurrentHashMap<String, Long>();
+
+    private volatile int knownPathCacheSize = DEFAULT_KNOWN_PATH_CACHE_SIZE;
+
+    /* Incremented on every use of a known path, approximating the recency of use without a shared lock */
+    private final AtomicLong knownPathTicks = new AtomicLong();
+
+    /* Set while a thread evicts known paths; other threads don't wait for it */
+    private final AtomicBoolean evictingKnownPaths = new AtomicBoolean();
+
+    /* Background thread populating the caches on activation */
+    private Thread warmUpThread;
+
+    /* Pages (or content trees, if true) waiting to be re-indexed by the index thread */
+    private final Map<String, Boolean> pendingIndexes = new LinkedHashMap<String, Boolean>();
+
+    private boolean indexScheduled = false;
+
+    private ExecutorService indexExecutor = null;
+
     /**
      * Find the JCR full path to the most appropriate Error Page
      *
@@ -133,6 +285,24 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     public String findErrorPage(SlingHttpServletRequest request, Resource errorResource) {
         if (!isEnabled()) { return null; }
 
+        final long start = System.nanoTime();
+        metrics.countError(this.getStatusCode(request));
+
+        try {
+            return this.resolveErrorPage(request, errorResource);
+        } finally {
+            metrics.recordLatency(ErrorPageHandlerMetrics.FIND_ERROR_PAGE, start);
+        }
+    }
+
+    /**
+     * Resolve the JCR full path to the most appropriate Error Page
+     *
+     * @param request
+     * @param errorResource
+     * @return
+     */
+    private String resolveErrorPage(SlingHttpServletRequest request, Resource errorResource) {
         Resource page = null;
         final ResourceResolver resourceResolver = errorResource.getResourceResolver();
 
@@ -142,26 +312,24 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         final String pageName = getErrorPageName(request);
 
         // Try to find the closest real parent for the requested resource
+        long start = System.nanoTime();
         final Resource parent = findFirstRealParentOrSelf(errorResource);
+        metrics.recordLatency(ErrorPageHandlerMetrics.FIND_REAL_PARENT, start);
 
-        final SortedMap<String, String> errorPagesMap = getErrorPagesMap(resourceResolver);
+        final PathTrie<String> errorPagesTrie = this.errorPagesTrie;
 
-        if (!errorPagesMap.isEmpty()) {
+        if (parent != null && !errorPagesTrie.isEmpty()) {
             // Get the best-matching Errors Path for this particular Request
-            final String errorsPath = this.getErrorPagesPath(parent, errorPagesMap);
+            start = System.nanoTime();
+            final String errorsPath = this.getErrorPagesPath(parent, errorPagesTrie);
+            metrics.recordLatency(ErrorPageHandlerMetrics.ERROR_PAGES_LOOKUP, start);
 
             if(StringUtils.isNotBlank(errorsPath)) {
                 log.debug("Best matching errors path for request is: {}", errorsPath);
 
-                // Search for CQ Page for specific servlet named Page (404, 500, Throwable, etc.)
-                SearchResult result = executeQuery(resourceResolver, pageName);
-                List<String> errorPaths = filterResults(errorsPath, result);
-
-                // Return the first existing match
-                for (String errorPath : errorPaths) {
-                    page = getResource(resourceResolver, errorPath);
-                    if(page != null) { break; }
-                }
+                // Find the CQ Page for specific servlet named Page (404, 500, Throwable, etc.)
+                // Null if no such page is readable by the requesting user
+                page = getErrorPage(resourceResolver, errorsPath, pageName);
 
                 // No error-specific page could be found, use the "default" error page
                 // for the Root content path
@@ -188,14 +356,157 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     }
 
 
+    /**
+     * Gets the error page named pageName under the errors root path, as readable by the requesting user.
+     *
+     * Error page paths (including the absence of a matching page) are cached per errors root path, and the cache for
+     * an errors root is invalidated when pages beneath it are added, moved or removed. As the cache is shared by all
+     * users, it is populated using an administrative resource resolver; if the cached page is not readable by the
+     * requesting user, the errors root is searched again (uncached) as the requesting user.
+     *
+     * @param resourceResolver the requesting user's resource resolver
+     * @param errorsPath
+     * @param pageName
+     * @return the error page, or null if no page named pageName under errorsPath is readable by the requesting user
+     */
+    private Resource getErrorPage(ResourceResolver resourceResolver, String errorsPath, String pageName) {
+        final String key = StringUtils.defaultString(pageName);
+        final Map<String, String> errorPages = this.getCachedErrorPages(errorsPath);
+
+        String errorPagePath = errorPages.get(key);
+        final boolean cached = errorPagePath != null;
+
+        if (!cached) {
+            ResourceResolver adminResourceResolver = null;
+
+            try {
+                adminResourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+                errorPagePath = StringUtils.defaultString(findErrorPagePath(adminResourceResolver, errorsPath,
+                        pageName));
+                errorPages.put(key, errorPagePath);
+
+                log.debug("Cached error page [ {} ] for [ {} ] under [ {} ]",
+                        new Object[] { errorPagePath, pageName, errorsPath });
+            } catch (LoginException e) {
+                log.error("Could not cache error pages due to repository login exception: {}", e.getMessage());
+
+                // Not cached, as the result depends on the requesting user's access
+                errorPagePath = findErrorPagePath(resourceResolver, errorsPath, pageName);
+            } finally {
+                if (adminResourceResolver != null) {
+                    adminResourceResolver.close();
+                }
+            }
+        }
+
+        if (StringUtils.isBlank(errorPagePath)) {
+            metrics.recordCacheLookup(ErrorPageHandlerMetrics.ERROR_PAGE_CACHE, cached);
+            return null;
+        }
+
+        Resource page = getResource(resourceResolver, errorPagePath);
+
+        // A cached page the requesting user cannot read is a miss
+        metrics.recordCacheLookup(ErrorPageHandlerMetrics.ERROR_PAGE_CACHE, cached && page != null);
+
+        if (page == null) {
+            log.debug("Error page [ {} ] is not readable by the requesting user; searching [ {} ] as the user",
+                    errorPagePath, errorsPath);
+
+            final String readablePath = findErrorPagePath(resourceResolver, errorsPath, pageName);
+            if (readablePath != null) {
+                page = getResource(resourceResolver, readablePath);
+            }
+        }
+
+        return page;
+    }
+
+    /**
+     * Gets the cached error pages of the errors root path, creating the cache entry if it does not exist.
+     *
+     * @param errorsPath
+     * @return map of error page names to resolved error page paths ("" if there is none)
+     */
+    private Map<String, String> getCachedErrorPages(String errorsPath) {
+        Map<String, String> errorPages = this.errorPageCache.get(errorsPath);
+
+        if (errorPages == null) {
+            errorPages = new ConcurrentHashMap<String, String>();
+            final Map<String, String> existing = this.errorPageCache.putIfAbsent(errorsPath, errorPages);
+            if (existing != null) {
+                errorPages = existing;
+            }
+        }
+
+        return errorPages;
+    }
+
+    /**
+     * Search the errors root path for the first existing error page named pageName.
+     *
+     * @param resourceResolver
+     * @param errorsPath
+     * @param pageName
+     * @return the error page path, or null if none can be found
+     */
+    private String findErrorPagePath(ResourceResolver resourceResolver, String errorsPath, String pageName) {
+        final long start = System.nanoTime();
+        final SearchResult result = executeQuery(resourceResolver, errorsPath, pageName);
+        final Iterator<Node> nodes = result.getNodes();
+        metrics.recordLatency(ErrorPageHandlerMetrics.EXECUTE_QUERY, start);
+
+        while (nodes.hasNext()) {
+            final Node node = nodes.next();
+            if(node == null) { continue; }
+
+            try {
+                final String path = node.getPath();
+
+                // Make sure query results are under or equal to the errors root path, and exist
+                if((StringUtils.equals(path, errorsPath) || StringUtils.startsWith(path, errorsPath.concat("/")))
+                        && getResource(resourceResolver, path) != null) {
+                    return path;
+                }
+            } catch(RepositoryException ex) {
+                log.warn("Could not get path for node. {}", ex.getMessage());
+                // continue
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Invalidate the cached error pages for all errors root paths affected by a change at the path.
+     *
+     * @param path path of the added, moved or removed resource
+     */
+    private void invalidateErrorPageCache(String path) {
+        final Iterator<String> iterator = this.errorPageCache.keySet().iterator();
+
+        while (iterator.hasNext()) {
+            final String errorsPath = iterator.next();
+
+            if (StringUtils.equals(path, errorsPath)
+                    || StringUtils.startsWith(path, errorsPath.concat("/"))
+                    || StringUtils.startsWith(errorsPath, path.concat("/"))) {
+                iterator.remove();
+                log.debug("Invalidated cached error pages under [ {} ]", errorsPath);
+            }
+        }
+    }
+
     /**
      * Create the query for finding candidate cq:Pages
      *
      * @param resourceResolver
+     * @param rootPath content tree to search; null searches the entire repository
      * @param pageNames
      * @return
      */
-    private SearchResult executeQuery(ResourceResolver resourceResolver, String... pageNames) {
+    private SearchResult executeQuery(ResourceResolver resourceResolver, String rootPath, String... pageNames) {
         final Session session = resourceResolver.adaptTo(Session.class);
         final Map<String, String> map = new HashMap<String, String>();
         if(pageNames == null) { pageNames = new String[]{}; }
@@ -203,6 +514,10 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         // Construct query builder query
         map.put(TypePredicateEvaluator.TYPE, "cq:Page");
 
+        if(StringUtils.isNotBlank(rootPath)) {
+            map.put(PathPredicateEvaluator.PATH, rootPath);
+        }
+
         if(pageNames.length == 1) {
             map.put(NodenamePredicateEvaluator.NODENAME, escapeNodeName(pageNames[0]));
         } else if(pageNames.length > 1) {
@@ -236,37 +551,6 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         return null;
     }
 
-    /**
-     * Filter query results
-     *
-     * @param rootPath
-     * @param result
-     * @return list of resource paths of candidate error pages
-     */
-    private List<String> filterResults(String rootPath, SearchResult result) {
-        final List<Node> nodes = IteratorUtils.toList(result.getNodes());
-        final List<String> resultPaths = new ArrayList<String>();
-        if(StringUtils.isBlank(rootPath)) { return resultPaths; }
-
-        // Filter results by the searchResource path; All valid results' paths should begin
-        // with searchResource.getPath()
-        for(Node node : nodes) {
-            if(node == null) { continue; }
-            try {
-                // Make sure all query results under or equals to the current Search Resource
-                if(StringUtils.equals(node.getPath(), rootPath) ||
-                    StringUtils.startsWith(node.getPath(), rootPath.concat("/"))) {
-                    resultPaths.add(node.getPath());
-                }
-            } catch(RepositoryException ex) {
-                log.warn("Could not get path for node. {}", ex.getMessage());
-                // continue
-            }
-        }
-
-        return resultPaths;
-    }
-
     /** HTTP Request Data Retrieval Methods **/
 
     /**
@@ -326,10 +610,20 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     }
 
 
-    private SortedMap<String, String> getErrorPagesMap(ResourceResolver resourceResolver) {
+    /**
+     * Find all cq:Pages (optionally scoped to a content tree) that define the errorPages property.
+     *
+     * Error page existence is not checked here, as the error page may be created after the property is authored;
+     * existence is verified against the requesting user's ResourceResolver at lookup time.
+     *
+     * @param resourceResolver
+     * @param rootPath content tree to search; null searches the entire repository
+     * @return map of authored root paths to their error page paths
+     */
+    private Map<String, String> findAuthoredErrorPages(ResourceResolver resourceResolver, String rootPath) {
         final Session session = resourceResolver.adaptTo(Session.class);
-        Map<String, String> map = new HashMap<String, String>();
-        SortedMap<String, String> authoredMap =  new TreeMap<String, String>(new StringLengthComparator());
+        final Map<String, String> map = new HashMap<String, String>();
+        final Map<String, String> authoredMap = new HashMap<String, String>();
 
         // Construct query builder query
         map.put(TypePredicateEvaluator.TYPE, NameConstants.NT_PAGE);
@@ -337,6 +631,10 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         map.put(JcrPropertyPredicateEvaluator.PROPERTY + "." + JcrPropertyPredicateEvaluator.OPERATION, JcrPropertyPredicateEvaluator.OP_EXISTS);
         map.put("p.limit", "0");
 
+        if(StringUtils.isNotBlank(rootPath)) {
+            map.put(PathPredicateEvaluator.PATH, rootPath);
+        }
+
         final Query query = queryBuilder.createQuery(PredicateGroup.create(map), session);
 
         for(final Hit hit : query.getResult().getHits()) {
@@ -347,16 +645,375 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
 
                 if(StringUtils.isBlank(errorPagePath)) { continue; }
 
-                final Resource errorPageResource = resourceResolver.resolve(errorPagePath);
-                if(errorPageResource != null && !ResourceUtil.isNonExistingResource(errorPageResource)) {
-                    authoredMap.put(hit.getPath(), errorPagePath);
-                }
+                authoredMap.put(hit.getPath(), errorPagePath);
             } catch (RepositoryException ex) {
                 log.error("Could not resolve hit to a valid resource");
             }
         }
 
-        return mergeMaps(authoredMap, this.pathMap);
+        return authoredMap;
+    }
+
+    /** Authored Error Pages Index Methods **/
+
+    /**
+     * Maintains the in-memory index of authored errorPages properties, so that requests never need to query
+     * the repository to find the authored error page roots, and invalidates the error page caches.
+     *
+     * @param event resource change event
+     */
+    @Override
+    public void handleEvent(final Event event) {
+        if (!isEnabled()) { return; }
+
+        final String topic = event.getTopic();
+
+        if (ReplicationAction.EVENT_TOPIC.equals(topic)) {
+            final ReplicationAction replicationAction = ReplicationAction.fromEvent(event);
+            if (replicationAction != null && StringUtils.isNotBlank(replicationAction.getPath())) {
+                invalidateRenderedErrorPages(replicationAction.getPath());
+            }
+            return;
+        }
+
+        final String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+        if (StringUtils.isBlank(path)) { return; }
+
+        invalidateRenderedErrorPages(path);
+
+        if (!SlingConstants.TOPIC_RESOURCE_CHANGED.equals(topic)) {
+            invalidateErrorPageCache(path);
+        }
+
+        if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+            removeKnownPaths(path);
+        }
+
+        final boolean isPageContent = StringUtils.endsWith(path, "/" + JcrConstants.JCR_CONTENT);
+        final String pagePath = StringUtils.removeEnd(path, "/" + JcrConstants.JCR_CONTENT);
+
+        if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+            if (isPageContent) {
+                removeAuthoredErrorPage(pagePath, false);
+            } else {
+                // Removing (or moving) a tree removes all the authored roots beneath it
+                removeAuthoredErrorPage(path, true);
+            }
+        } else if (isPageContent) {
+            if (SlingConstants.TOPIC_RESOURCE_ADDED.equals(topic) || isErrorPagesChange(event)) {
+                queueIndexAuthoredErrorPages(pagePath, false);
+            }
+        } else if (SlingConstants.TOPIC_RESOURCE_ADDED.equals(topic)
+                && StringUtils.equals(NameConstants.NT_PAGE,
+                    (String) event.getProperty(SlingConstants.PROPERTY_RESOURCE_TYPE))) {
+            // Moved page trees only raise an event for the root of the tree, so search the whole tree
+            queueIndexAuthoredErrorPages(path, true);
+        }
+    }
+
+    /**
+     * Queue the (re)indexing of the authored error pages for a page, or a content tree, on the index thread, so the
+     * repository is never queried on the event thread. Repeated changes to a page waiting to be indexed are
+     * indexed once.
+     *
+     * @param path page path; or the content tree root if deep is true
+     * @param deep true to search the entire content tree; false to only index the page at path
+     */
+    private void queueIndexAuthoredErrorPages(final String path, final boolean deep) {
+        final ExecutorService executor = this.indexExecutor;
+
+        if (executor == null) {
+            log.debug("Error page index thread is not running; not indexing [ {} ]", path);
+            return;
+        }
+
+        synchronized (this.pendingIndexes) {
+            final Boolean pending = this.pendingIndexes.get(path);
+
+            if (pending == null || (deep && !pending)) {
+                this.pendingIndexes.put(path, deep);
+            }
+
+            if (this.indexScheduled) {
+                return;
+            }
+
+            this.indexScheduled = true;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    indexPendingAuthoredErrorPages();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Error page index thread has stopped; not indexing [ {} ]", path);
+
+            synchronized (this.pendingIndexes) {
+                this.indexScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Index all pages waiting to be indexed, using a single repository login, until none are waiting.
+     *
+     * Runs on the index thread.
+     */
+    private void indexPendingAuthoredErrorPages() {
+        while (true) {
+            final Map<String, Boolean> pending;
+
+            synchronized (this.pendingIndexes) {
+                if (this.pendingIndexes.isEmpty() || Thread.currentThread().isInterrupted()) {
+                    this.indexScheduled = false;
+                    return;
+                }
+
+                pending = new LinkedHashMap<String, Boolean>(this.pendingIndexes);
+                this.pendingIndexes.clear();
+            }
+
+            ResourceResolver resourceResolver = null;
+
+            try {
+                resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+                for (final Map.Entry<String, Boolean> entry : pending.entrySet()) {
+                    indexAuthoredErrorPages(resourceResolver, entry.getKey(), entry.getValue());
+                }
+
+                log.debug("Indexed authored error pages of [ {} ] changed pages", pending.size());
+            } catch (LoginException e) {
+                log.error("Could not index authored error pages due to repository login exception: {}",
+                        e.getMessage());
+            } catch (RuntimeException e) {
+                log.error("Could not index authored error pages", e);
+            } finally {
+                if (resourceResolver != null) {
+                    resourceResolver.close();
+                }
+            }
+
+            rebuildErrorPagesMap();
+        }
+    }
+
+    /**
+     * Checks if the errorPages property was added, changed or removed by this event.
+     *
+     * Events that do not describe their changed attributes are treated as a change.
+     *
+     * @param event
+     * @return
+     */
+    private boolean isErrorPagesChange(final Event event) {
+        final String[] attributeProperties = new String[] {
+                SlingConstants.PROPERTY_ADDED_ATTRIBUTES,
+                SlingConstants.PROPERTY_CHANGED_ATTRIBUTES,
+                SlingConstants.PROPERTY_REMOVED_ATTRIBUTES };
+
+        boolean described = false;
+
+        for (final String attributeProperty : attributeProperties) {
+            final Object attributes = event.getProperty(attributeProperty);
+
+            if (attributes instanceof String[]) {
+                described = true;
+                if (ArrayUtils.contains((String[]) attributes, ERROR_PAGE_PROPERTY)) {
+                    return true;
+                }
+            }
+        }
+
+        return !described;
+    }
+
+    /**
+     * (Re)index the authored error pages for a page, or for all pages in a content tree; the merged error pages
+     * map must be rebuilt afterwards.
+     *
+     * @param resourceResolver administrative resource resolver
+     * @param path page path; or the content tree root if deep is true
+     * @param deep true to search the entire content tree; false to only index the page at path
+     */
+    private void indexAuthoredErrorPages(final ResourceResolver resourceResolver, final String path,
+                                         final boolean deep) {
+        if (deep) {
+            this.authoredPathMap.putAll(findAuthoredErrorPages(resourceResolver, path));
+        } else {
+            final Resource contentResource = resourceResolver.getResource(path + "/" + JcrConstants.JCR_CONTENT);
+            final String errorPagePath = contentResource == null ? null :
+                    ResourceUtil.getValueMap(contentResource).get(ERROR_PAGE_PROPERTY, String.class);
+
+            if (StringUtils.isBlank(errorPagePath)) {
+                this.authoredPathMap.remove(path);
+            } else {
+                this.authoredPathMap.put(path, errorPagePath);
+            }
+        }
+    }
+
+    /**
+     * Build the index of all authored error pages in the repository.
+     */
+    private void indexAllAuthoredErrorPages() {
+        ResourceResolver resourceResolver = null;
+
+        try {
+            resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+            final Map<String, String> authoredMap = findAuthoredErrorPages(resourceResolver, null);
+
+            this.authoredPathMap.clear();
+            this.authoredPathMap.putAll(authoredMap);
+
+            log.debug("Indexed [ {} ] authored error page roots", authoredMap.size());
+        } catch (LoginException e) {
+            log.error("Could not index authored error pages due to repository login exception: {}", e.getMessage());
+        } finally {
+            if (resourceResolver != null) {
+                resourceResolver.close();
+            }
+        }
+
+        rebuildErrorPagesMap();
+    }
+
+    /**
+     * Remove a page's authored error page from the index.
+     *
+     * @param path page path
+     * @param deep true to also remove all authored error pages beneath the page
+     */
+    private void removeAuthoredErrorPage(final String path, final boolean deep) {
+        boolean removed = this.authoredPathMap.remove(path) != null;
+
+        if (deep) {
+            final String prefix = path.concat("/");
+            final Iterator<String> iterator = this.authoredPathMap.keySet().iterator();
+
+            while (iterator.hasNext()) {
+                if (StringUtils.startsWith(iterator.next(), prefix)) {
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+        }
+
+        if (removed) {
+            rebuildErrorPagesMap();
+        }
+    }
+
+    /**
+     * Rebuild the merged error pages map from the authored index and the OSGi configured paths.
+     */
+    private synchronized void rebuildErrorPagesMap() {
+        final SortedMap<String, String> authoredMap = new TreeMap<String, String>(new StringLengthComparator());
+        authoredMap.putAll(this.authoredPathMap);
+
+        this.errorPagesTrie = new PathTrie<String>(mergeMaps(authoredMap, this.pathMap));
+    }
+
+    /** Warm-up **/
+
+    /**
+     * Start resolving the errors roots and warm-up error pages of all content trees in the background.
+     */
+    private synchronized void startWarmUp() {
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                warmUp();
+            }
+        }, "ACS AEM Commons - Error Page Handler Warm-up");
+
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+
+        this.warmUpThread = thread;
+    }
+
+    /**
+     * Interrupt the warm-up if it is still running.
+     */
+    private synchronized void stopWarmUp() {
+        if (this.warmUpThread != null) {
+            this.warmUpThread.interrupt();
+            this.warmUpThread = null;
+        }
+    }
+
+    /**
+     * Populate the known path and error page caches for every configured and authored content tree.
+     *
+     * Runs on the warm-up thread; stops early if the thread is interrupted.
+     */
+    private void warmUp() {
+        final long start = System.currentTimeMillis();
+        final Thread thread = Thread.currentThread();
+        ResourceResolver resourceResolver = null;
+        int count = 0;
+
+        try {
+            resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+            for (final Map.Entry<String, String> entry : this.errorPagesTrie.asMap().entrySet()) {
+                if (thread.isInterrupted() || !isEnabled()) {
+                    log.debug("Error page warm-up interrupted after [ {} ] content trees", count);
+                    return;
+                }
+
+                this.warmUp(resourceResolver, entry.getKey(), entry.getValue());
+                count++;
+            }
+
+            log.info("Warmed up error pages for [ {} ] content trees in [ {} ] ms",
+                    count, System.currentTimeMillis() - start);
+        } catch (LoginException e) {
+            log.error("Could not warm up error pages due to repository login exception: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            log.warn("Could not warm up error pages", e);
+        } finally {
+            if (resourceResolver != null) {
+                resourceResolver.close();
+            }
+        }
+    }
+
+    /**
+     * Resolve the errors root and the warm-up error pages of a single content tree.
+     *
+     * @param resourceResolver
+     * @param rootPath content tree root path
+     * @param errorsPath errors root path of the content tree
+     */
+    private void warmUp(ResourceResolver resourceResolver, String rootPath, String errorsPath) {
+        if (getResource(resourceResolver, rootPath) != null) {
+            addKnownPath(rootPath);
+        }
+
+        if (getResource(resourceResolver, errorsPath) == null) {
+            log.debug("Errors root [ {} ] for [ {} ] does not exist", errorsPath, rootPath);
+            return;
+        }
+
+        addKnownPath(errorsPath);
+
+        // Populate the cache directly so warm-up does not count towards the cache statistics
+        final Map<String, String> errorPages = this.getCachedErrorPages(errorsPath);
+
+        for (final String pageName : this.warmUpErrorPageNames) {
+            if (StringUtils.isBlank(pageName)) { continue; }
+
+            final String key = StringUtils.trim(pageName);
+
+            if (!errorPages.containsKey(key)) {
+                errorPages.put(key, StringUtils.defaultString(findErrorPagePath(resourceResolver, errorsPath, key)));
+            }
+        }
     }
 
     /** OSGi Component Property Getters/Setters **/
@@ -398,12 +1055,14 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     }
 
     /**
-     * Get the sorted Search Paths
+     * Get the merged authored and OSGi configured root paths, mapped to their error page paths.
+     *
+     * Map is sorted by key (String) length
      *
      * @return
      */
-    private List<String> getRootPaths(Map<String, String> errorPagesMap) {
-        return Arrays.asList(errorPagesMap.keySet().toArray(new String[errorPagesMap.size()]));
+    public Map<String, String> getErrorPagesMap() {
+        return this.errorPagesTrie.asMap();
     }
 
     /**
@@ -424,62 +1083,169 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     /**
      * Find the Error page search path that best contains the provided resource
      *
+     * Root paths are tried deepest first; roots whose error page does not exist are skipped.
+     *
      * @param resource
+     * @param errorPagesTrie
      * @return
      */
-    private String getErrorPagesPath(Resource resource, SortedMap<String, String> errorPagesMap) {
+    String getErrorPagesPath(Resource resource, PathTrie<String> errorPagesTrie) {
         // Path to evaluate against Root paths
         final String path = resource.getPath();
         final ResourceResolver resourceResolver = resource.getResourceResolver();
 
-        for(final String rootPath : this.getRootPaths(errorPagesMap)) {
-            if(StringUtils.equals(path, rootPath) ||
-                    StringUtils.startsWith(path, rootPath.concat("/"))) {
+        PathTrie.Entry<String> match = errorPagesTrie.getDeepestMatch(path);
 
-                final String errorPagePath = getErrorPagesPath(rootPath, errorPagesMap);
-
-                Resource errorPageResource = getResource(resourceResolver, errorPagePath);
-                if(errorPageResource != null && !ResourceUtil.isNonExistingResource(errorPageResource)) {
-                    return errorPageResource.getPath();
-                }
+        while (match != null) {
+            final Resource errorPageResource = getResource(resourceResolver, match.getValue());
+            if(errorPageResource != null && !ResourceUtil.isNonExistingResource(errorPageResource)) {
+                return errorPageResource.getPath();
             }
+
+            match = match.getParentMatch();
         }
+
         return null;
     }
 
     /**
      * Given the Request path, find the first Real Parent of the Request (even if the resource doesnt exist)
      *
+     * Walks up the path (without repository access) to the deepest ancestor known to exist, then walks down from
+     * it until the first path segment that does not exist; for bogus deep paths this is typically two lookups.
+     *
      * @param resource
      * @return
      */
-    private Resource findFirstRealParentOrSelf(Resource resource) {
+    Resource findFirstRealParentOrSelf(Resource resource) {
         if(resource == null) {
             return null;
         } else if(!ResourceUtil.isNonExistingResource(resource)) {
             return resource;
         }
 
-        final Resource parent = resource.getParent();
-        if (parent != null) { return parent; }
-
         final ResourceResolver resourceResolver = resource.getResourceResolver();
-        final String path = resource.getPath();
-        final PathInfo pathInfo = new PathInfo(path);
-        String[] parts = StringUtils.split(pathInfo.getResourcePath(), '/');
+        final String path = new PathInfo(resource.getPath()).getResourcePath();
 
-        for (int i = parts.length - 1; i >= 0; i--) {
-            String[] tmpArray = (String[]) ArrayUtils.subarray(parts, 0, i);
-            String tmpStr = "/".concat(StringUtils.join(tmpArray, '/'));
+        Resource parent = null;
+        int end = path.lastIndexOf('/');
 
-            final Resource tmpResource = resourceResolver.getResource(tmpStr);
+        while (end > 0 && parent == null) {
+            final String ancestorPath = path.substring(0, end);
+
+            if (this.isKnownPath(ancestorPath)) {
+                // May still be null if the ancestor is not readable by this user, or has since been removed
+                parent = getResource(resourceResolver, ancestorPath);
+            }
 
-            if (tmpResource != null) {
-                return tmpResource;
+            if (parent == null) {
+                end = path.lastIndexOf('/', end - 1);
             }
         }
 
-        return null;
+        metrics.recordCacheLookup(ErrorPageHandlerMetrics.KNOWN_PATH_CACHE, parent != null);
+
+        if (parent == null) {
+            parent = getResource(resourceResolver, "/");
+            end = 0;
+        }
+
+        while (parent != null) {
+            final int next = path.indexOf('/', end + 1);
+
+            // The last segment is the requested (non-existing) resource itself
+            if (next < 0) { break; }
+
+            final String childPath = path.substring(0, next);
+            final Resource child = getResource(resourceResolver, childPath);
+
+            // Nothing beneath a non-existing resource can exist
+            if (child == null) { break; }
+
+            this.addKnownPath(childPath);
+            parent = child;
+            end = next;
+        }
+
+        return parent;
+    }
+
+    /**
+     * Checks if the path is in the cache of paths known to exist.
+     *
+     * @param path
+     * @return
+     */
+    private boolean isKnownPath(final String path) {
+        final ConcurrentMap<String, Long> cache = this.knownPathCache;
+
+        if (!cache.containsKey(path)) {
+            return false;
+        }
+
+        // Re-added if concurrently evicted; it is known to exist either way
+        cache.put(path, this.knownPathTicks.incrementAndGet());
+        return true;
+    }
+
+    /**
+     * Add the path to the cache of paths known to exist.
+     *
+     * @param path
+     */
+    private void addKnownPath(final String path) {
+        final ConcurrentMap<String, Long> cache = this.knownPathCache;
+
+        cache.put(path, this.knownPathTicks.incrementAndGet());
+
+        if (cache.size() > this.knownPathCacheSize) {
+            this.evictKnownPaths(cache);
+        }
+    }
+
+    /**
+     * Evict the least recently used paths from the cache of paths known to exist.
+     *
+     * Eviction is approximate: the paths not used within the most recent three quarters of the cache size's uses are
+     * evicted, so the cache is scanned at most once every quarter of its size's additions. If another thread is
+     * already evicting, this returns immediately and the cache may briefly exceed its size.
+     *
+     * @param cache
+     */
+    private void evictKnownPaths(final ConcurrentMap<String, Long> cache) {
+        if (!this.evictingKnownPaths.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            final long oldestKept = this.knownPathTicks.get() - (this.knownPathCacheSize * 3L / 4L);
+            final Iterator<Long> iterator = cache.values().iterator();
+
+            while (iterator.hasNext()) {
+                if (iterator.next() <= oldestKept) {
+                    iterator.remove();
+                }
+            }
+        } finally {
+            this.evictingKnownPaths.set(false);
+        }
+    }
+
+    /**
+     * Remove a path, and all paths beneath it, from the cache of paths known to exist.
+     *
+     * @param path
+     */
+    private void removeKnownPaths(final String path) {
+        final String prefix = path.concat("/");
+        final Iterator<String> iterator = this.knownPathCache.keySet().iterator();
+
+        while (iterator.hasNext()) {
+            final String knownPath = iterator.next();
+            if (StringUtils.equals(knownPath, path) || StringUtils.startsWith(knownPath, prefix)) {
+                iterator.remove();
+            }
+        }
     }
 
     /**
@@ -563,44 +1329,133 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         }
 
         if (isAnonymousRequest(request) && AuthUtil.isBrowserRequest(request)) {
+            if (!isAuthenticationPath(request)) {
+                log.debug("Not challenging 404 for [ {} ] to authenticate; not an authentication path",
+                        request.getRequestURI());
+                return;
+            }
+
+            final ClientThrottle throttle = this.authenticationThrottle;
+            if (throttle != null && !throttle.tryAcquire(getClientAddress(request))) {
+                log.debug("Not challenging 404 for [ {} ] to authenticate; client exceeded the rate limit",
+                        request.getRequestURI());
+                return;
+            }
+
             authenticateRequest(request, response);
         }
     }
 
+    /**
+     * Determines if the requested resource path is one that anonymous 404 requests should be challenged to
+     * authenticate for.
+     *
+     * @param request
+     * @return true if no authentication paths are configured, or the requested resource path matches one
+     */
+    private boolean isAuthenticationPath(SlingHttpServletRequest request) {
+        final Pattern[] patterns = this.authenticationPaths;
+        if (patterns.length == 0) { return true; }
+
+        final String path = request.getRequestPathInfo().getResourcePath();
+        if (path == null) { return false; }
+
+        for (final Pattern pattern : patterns) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the address of the client that issued the request.
+     *
+     * @param request
+     * @return
+     */
+    private String getClientAddress(SlingHttpServletRequest request) {
+        if (StringUtils.isNotBlank(this.clientAddressHeader)) {
+            final String header = request.getHeader(this.clientAddressHeader);
+
+            if (StringUtils.isNotBlank(header)) {
+                return StringUtils.trim(StringUtils.substringBefore(header, ","));
+            }
+        }
+
+        return request.getRemoteAddr();
+    }
+
     /**
      * Returns the Exception Message (Stacktrace) from the Request
      *
+     * The full stack trace is returned; the configured stack depth only applies to writeException(..).
+     *
      * @param request
      * @return
      */
     @Override
     public String getException(SlingHttpServletRequest request) {
-        StringWriter stringWriter = new StringWriter();
-        if (request.getAttribute(SlingConstants.ERROR_EXCEPTION) instanceof Throwable) {
-            Throwable throwable = (Throwable) request.getAttribute(SlingConstants.ERROR_EXCEPTION);
-
-            if (throwable == null) {
-                return "";
-            }
-
-            if (throwable instanceof ServletException) {
-                ServletException se = (ServletException) throwable;
-                while (se.getRootCause() != null) {
-                    throwable = se.getRootCause();
-                    if (throwable instanceof ServletException) {
-                        se = (ServletException) throwable;
-                    } else {
-                        break;
-                    }
-                }
-            }
+        final StringWriter stringWriter = new StringWriter();
+        final Throwable throwable = this.getRootException(request);
 
+        if (throwable != null) {
             throwable.printStackTrace(new PrintWriter(stringWriter, true));
         }
 
         return stringWriter.toString();
     }
 
+    /**
+     * Writes the Exception Message (Stacktrace) from the Request to the writer.
+     *
+     * Stack frames shared with the enclosing exception and consecutive repeated frames are collapsed, and the number
+     * of frames written per exception is limited to the configured stack depth.
+     *
+     * @param request
+     * @param writer
+     * @param escapeHtml
+     * @throws IOException
+     */
+    @Override
+    public void writeException(SlingHttpServletRequest request, Writer writer, boolean escapeHtml)
+            throws IOException {
+        final Throwable throwable = this.getRootException(request);
+
+        if (throwable != null) {
+            new StackTraceWriter(writer, this.stackTraceDepth, escapeHtml).write(throwable);
+        }
+    }
+
+    /**
+     * Gets the Exception from the Request, unwrapping ServletExceptions to their root cause.
+     *
+     * @param request
+     * @return the exception, or null if the request has none
+     */
+    private Throwable getRootException(SlingHttpServletRequest request) {
+        if (!(request.getAttribute(SlingConstants.ERROR_EXCEPTION) instanceof Throwable)) {
+            return null;
+        }
+
+        Throwable throwable = (Throwable) request.getAttribute(SlingConstants.ERROR_EXCEPTION);
+
+        if (throwable instanceof ServletException) {
+            ServletException se = (ServletException) throwable;
+            while (se.getRootCause() != null) {
+                throwable = se.getRootCause();
+                if (throwable instanceof ServletException) {
+                    se = (ServletException) throwable;
+                } else {
+                    break;
+                }
+            }
+        }
+
+        return throwable;
+    }
+
     /**
      * Returns a String representation of the RequestProgress trace
      *
@@ -609,14 +1464,46 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
      */
     @Override
     public String getRequestProgress(SlingHttpServletRequest request) {
-        StringWriter stringWriter = new StringWriter();
-        if (request != null) {
-            RequestProgressTracker tracker = request.getRequestProgressTracker();
-            tracker.dump(new PrintWriter(stringWriter, true));
+        final StringWriter stringWriter = new StringWriter();
+
+        try {
+            this.writeRequestProgress(request, stringWriter, false);
+        } catch (IOException e) {
+            // StringWriter does not throw IOExceptions
+            log.warn("Could not write the request progress", e);
         }
+
         return stringWriter.toString();
     }
 
+    /**
+     * Writes the RequestProgress trace to the writer, one message at a time.
+     *
+     * @param request
+     * @param writer
+     * @param escapeHtml
+     * @throws IOException
+     */
+    @Override
+    public void writeRequestProgress(SlingHttpServletRequest request, Writer writer, boolean escapeHtml)
+            throws IOException {
+        if (request == null) {
+            return;
+        }
+
+        final Iterator<String> messages = request.getRequestProgressTracker().getMessages();
+
+        while (messages.hasNext()) {
+            final String message = messages.next();
+
+            if (escapeHtml) {
+                StringEscapeUtils.escapeHtml(writer, message);
+            } else {
+                writer.write(message);
+            }
+        }
+    }
+
     /**
      * Reset response attributes to support printing out a new page (rather than one that potentially errored out).
      * This includes clearing clientlib inclusion state, and resetting the response.
@@ -638,6 +1525,92 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         response.setStatus(statusCode);
     }
 
+    /**
+     * Include the error page (as returned by findErrorPage(..)) into the response.
+     *
+     * If the rendered error page cache is enabled, anonymous requests in WCM Mode Disabled are served the previously
+     * rendered error page for the same error page and status code.
+     *
+     * @param request
+     * @param response
+     * @param path
+     * @throws ServletException
+     * @throws IOException
+     */
+    @Override
+    public void includeErrorPage(SlingHttpServletRequest request, SlingHttpServletResponse response, String path)
+            throws ServletException, IOException {
+        if (!this.renderedPageCacheEnabled
+                || !isAnonymousRequest(request)
+                || !componentHelper.isDisabledMode(request)) {
+            request.getRequestDispatcher(path).include(request, response);
+            return;
+        }
+
+        final String key = path + ":" + getStatusCode(request);
+        final long now = System.currentTimeMillis();
+
+        RenderedErrorPage renderedErrorPage = this.renderedPageCache.get(key);
+        final boolean hit = renderedErrorPage != null && !renderedErrorPage.isExpired(now);
+        metrics.recordCacheLookup(ErrorPageHandlerMetrics.RENDERED_PAGE_CACHE, hit);
+
+        if (hit) {
+            // Restore the headers set when the error page was rendered
+            if (renderedErrorPage.getContentType() != null) {
+                response.setContentType(renderedErrorPage.getContentType());
+            }
+
+            if (renderedErrorPage.getCharacterEncoding() != null) {
+                response.setCharacterEncoding(renderedErrorPage.getCharacterEncoding());
+            }
+        } else {
+            final StringWriterResponse responseWrapper = new StringWriterResponse(response);
+
+            // Render failures propagate as they would for an uncached include; the page is never rendered twice
+            request.getRequestDispatcher(path).include(request, responseWrapper);
+            responseWrapper.getWriter().flush();
+
+            final String html = responseWrapper.getString();
+
+            if (StringUtils.isBlank(html)) {
+                // Do not cache an error page which rendered nothing
+                response.getWriter().write(html);
+                return;
+            }
+
+            // The wrapper passes headers through, so the response holds those set by the error page
+            renderedErrorPage = new RenderedErrorPage(new PathInfo(path).getResourcePath(), html,
+                    response.getContentType(), response.getCharacterEncoding(), now + this.renderedPageCacheTTL);
+            this.renderedPageCache.put(key, renderedErrorPage);
+
+            log.debug("Cached rendered error page: {}", key);
+        }
+
+        response.getWriter().write(renderedErrorPage.getHtml());
+    }
+
+    /**
+     * Invalidate all rendered error pages affected by a change (or replication) at the path.
+     *
+     * @param path
+     */
+    private void invalidateRenderedErrorPages(String path) {
+        if (this.renderedPageCache.isEmpty()) { return; }
+
+        final Iterator<RenderedErrorPage> iterator = this.renderedPageCache.values().iterator();
+
+        while (iterator.hasNext()) {
+            final String pagePath = iterator.next().getPagePath();
+
+            if (StringUtils.equals(path, pagePath)
+                    || StringUtils.startsWith(path, pagePath.concat("/"))
+                    || StringUtils.startsWith(pagePath, path.concat("/"))) {
+                iterator.remove();
+                log.debug("Invalidated rendered error page: {}", pagePath);
+            }
+        }
+    }
+
     /**
      * Merge two Maps together. In the event of any key collisions the Master map wins
      *
@@ -649,7 +1622,7 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
      * @param slave
      * @return
      */
-    private SortedMap<String, String> mergeMaps(SortedMap<String, String> master, SortedMap<String, String> slave) {
+    SortedMap<String, String> mergeMaps(SortedMap<String, String> master, SortedMap<String, String> slave) {
         SortedMap<String, String> map = new TreeMap<String, String>(new StringLengthComparator());
 
         for (final Map.Entry<String, String> masterEntry : master.entrySet()) {
@@ -695,11 +1668,44 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
     @Activate
     protected void activate(ComponentContext componentContext) {
         configure(componentContext);
+
+        if (isEnabled()) {
+            indexAllAuthoredErrorPages();
+
+            this.indexExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "ACS AEM Commons - Error Page Handler Index");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            if (this.warmUpEnabled) {
+                startWarmUp();
+            }
+        }
     }
 
     @Deactivate
     protected void deactivate(ComponentContext componentContext) {
         enabled = false;
+
+        stopWarmUp();
+
+        if (this.indexExecutor != null) {
+            this.indexExecutor.shutdownNow();
+            this.indexExecutor = null;
+        }
+
+        synchronized (this.pendingIndexes) {
+            this.pendingIndexes.clear();
+        }
+
+        this.authoredPathMap.clear();
+        this.errorPageCache.clear();
+        this.knownPathCache.clear();
+        this.renderedPageCache.clear();
+        this.errorPagesTrie = new PathTrie<String>(new TreeMap<String, String>());
     }
 
     private void configure(ComponentContext componentContext) {
@@ -715,10 +1721,59 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
 
         this.pathMap = configurePathMap(PropertiesUtil.toStringArray(properties.get(PROP_SEARCH_PATHS), DEFAULT_SEARCH_PATHS));
 
+        this.renderedPageCacheEnabled = PropertiesUtil.toBoolean(properties.get(PROP_RENDERED_PAGE_CACHE_ENABLED), DEFAULT_RENDERED_PAGE_CACHE_ENABLED);
+
+        this.renderedPageCacheTTL = PropertiesUtil.toInteger(properties.get(PROP_RENDERED_PAGE_CACHE_TTL), DEFAULT_RENDERED_PAGE_CACHE_TTL) * 1000L;
+
+        this.renderedPageCache.clear();
+
+        this.authenticationPaths = configureAuthenticationPaths(PropertiesUtil.toStringArray(properties.get(PROP_AUTHENTICATION_PATHS), DEFAULT_AUTHENTICATION_PATHS));
+
+        final int authenticationRate = PropertiesUtil.toInteger(properties.get(PROP_AUTHENTICATION_RATE), DEFAULT_AUTHENTICATION_RATE);
+        this.authenticationThrottle = authenticationRate > 0 ? new ClientThrottle(authenticationRate,
+                PropertiesUtil.toInteger(properties.get(PROP_AUTHENTICATION_BURST), DEFAULT_AUTHENTICATION_BURST)) : null;
+
+        this.clientAddressHeader = PropertiesUtil.toString(properties.get(PROP_CLIENT_ADDRESS_HEADER), DEFAULT_CLIENT_ADDRESS_HEADER);
+
+        this.stackTraceDepth = PropertiesUtil.toInteger(properties.get(PROP_STACK_TRACE_DEPTH), DEFAULT_STACK_TRACE_DEPTH);
+
+        this.warmUpEnabled = PropertiesUtil.toBoolean(properties.get(PROP_WARM_UP_ENABLED), DEFAULT_WARM_UP_ENABLED);
+
+        this.warmUpErrorPageNames = PropertiesUtil.toStringArray(properties.get(PROP_WARM_UP_ERROR_PAGE_NAMES), DEFAULT_WARM_UP_ERROR_PAGE_NAMES);
+
+        this.knownPathCacheSize = PropertiesUtil.toInteger(properties.get(PROP_KNOWN_PATH_CACHE_SIZE), DEFAULT_KNOWN_PATH_CACHE_SIZE);
+        this.knownPathCache = new ConcurrentHashMap<String, Long>();
+
         log.debug("Enabled: {}", this.enabled);
         log.debug("System Error Page Path: {}", this.systemErrorPagePath);
         log.debug("Error Page Extension: {}", this.errorPageExtension);
         log.debug("Fallback Error Page Name: {}", this.fallbackErrorName);
+        log.debug("Rendered Error Page Cache: {}", this.renderedPageCacheEnabled);
+        log.debug("404 Authentication Rate Limit: {}", this.authenticationThrottle == null ? "Disabled" : "Enabled");
+    }
+
+    /**
+     * Compile the OSGi Property storing 404 authentication path regular expressions
+     *
+     * Invalid regular expressions are logged and ignored
+     *
+     * @param paths
+     * @return
+     */
+    private Pattern[] configureAuthenticationPaths(String[] paths) {
+        final List<Pattern> patterns = new ArrayList<Pattern>();
+
+        for (final String path : paths) {
+            if(StringUtils.isBlank(path)) { continue; }
+
+            try {
+                patterns.add(Pattern.compile(StringUtils.strip(path)));
+            } catch (PatternSyntaxException ex) {
+                log.error("Ignoring invalid 404 authentication path regex [ {} ]", path);
+            }
+        }
+
+        return patterns.toArray(new Pattern[patterns.size()]);
     }
 
     /**
@@ -727,7 +1782,7 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
      * @param paths
      * @return
      */
-    private SortedMap<String, String> configurePathMap(String[] paths) {
+    SortedMap<String, String> configurePathMap(String[] paths) {
         SortedMap<String, String> sortedMap = new TreeMap<String, String>(new StringLengthComparator());
 
         for (String path : paths) {
@@ -758,4 +1813,43 @@ public class ErrorPageHandlerImpl implements ErrorPageHandlerService {
         return sortedMap;
     }
 
-}
\ No newline at end of file
+    /**
+     * A rendered error page, the content type and character encoding it was rendered with, and when it expires.
+     */
+    private static final class RenderedErrorPage {
+        private final String pagePath;
+        private final String html;
+        private final String contentType;
+        private final String characterEncoding;
+        private final long expiresAt;
+
+        private RenderedErrorPage(String pagePath, String html, String contentType, String characterEncoding,
+                                  long expiresAt) {
+            this.pagePath = pagePath;
+            this.html = html;
+            this.contentType = contentType;
+            this.characterEncoding = characterEncoding;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getPagePath() {
+            return pagePath;
+        }
+
+        public String getHtml() {
+            return html;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getCharacterEncoding() {
+            return characterEncoding;
+        }
+
+        public boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.adobe.acs.commons.util.LatencyHistogram;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free recorder of the Error Page Handler's metrics; cheap enough to remain enabled in production.
+ *
+ * Exposed via JMX and as JSON via the ErrorPageHandlerMetricsServlet.
+ */
+@Component(label = "ACS AEM Commons - Error Page Handler Metrics",
+        description = "Records and exposes (via JMX) metrics for the Error Page Handler.",
+        immediate = true)
+@Property(name = "jmx.objectname",
+        value = "com.adobe.acs.commons:type=Error Page Handler",
+        propertyPrivate = true)
+@Service(value = { ErrorPageHandlerMetrics.class, DynamicMBean.class })
+public class ErrorPageHandlerMetrics extends StandardMBean implements ErrorPageHandlerMetricsMXBean {
+
+    /* Latencies */
+    public static final String FIND_ERROR_PAGE = "findErrorPage";
+    public static final String ERROR_PAGES_LOOKUP = "getErrorPagesPath";
+    public static final String EXECUTE_QUERY = "executeQuery";
+    public static final String FIND_REAL_PARENT = "findFirstRealParentOrSelf";
+
+    /* Caches */
+    public static final String ERROR_PAGE_CACHE = "errorPages";
+    public static final String KNOWN_PATH_CACHE = "knownPaths";
+    public static final String RENDERED_PAGE_CACHE = "renderedPages";
+
+    /* Status codes outside of the range of valid HTTP status codes are counted as 0 */
+    private static final int MAX_STATUS_CODE = 599;
+
+    private final AtomicLongArray statusCodes = new AtomicLongArray(MAX_STATUS_CODE + 1);
+
+    private final Map<String, LatencyHistogram> latencies;
+
+    private final Map<String, CacheCounter> caches;
+
+    public ErrorPageHandlerMetrics() throws NotCompliantMBeanException {
+        super(ErrorPageHandlerMetricsMXBean.class, true);
+
+        final Map<String, LatencyHistogram> tmpLatencies = new LinkedHashMap<String, LatencyHistogram>();
+        tmpLatencies.put(FIND_ERROR_PAGE, new LatencyHistogram());
+        tmpLatencies.put(ERROR_PAGES_LOOKUP, new LatencyHistogram());
+        tmpLatencies.put(EXECUTE_QUERY, new LatencyHistogram());
+        tmpLatencies.put(FIND_REAL_PARENT, new LatencyHistogram());
+        this.latencies = Collections.unmodifiableMap(tmpLatencies);
+
+        final Map<String, CacheCounter> tmpCaches = new LinkedHashMap<String, CacheCounter>();
+        tmpCaches.put(ERROR_PAGE_CACHE, new CacheCounter());
+        tmpCaches.put(KNOWN_PATH_CACHE, new CacheCounter());
+        tmpCaches.put(RENDERED_PAGE_CACHE, new CacheCounter());
+        this.caches = Collections.unmodifiableMap(tmpCaches);
+    }
+
+    /** Recording Methods **/
+
+    /**
+     * Count an error.
+     *
+     * @param statusCode HTTP status code of the error
+     */
+    public final void countError(final int statusCode) {
+        final int index = statusCode > 0 && statusCode <= MAX_STATUS_CODE ? statusCode : 0;
+        this.statusCodes.incrementAndGet(index);
+    }
+
+    /**
+     * Record the latency of an operation.
+     *
+     * @param name operation name
+     * @param startNanos start time of the operation, as returned by System.nanoTime()
+     */
+    public final void recordLatency(final String name, final long startNanos) {
+        final LatencyHistogram histogram = this.latencies.get(name);
+
+        if (histogram != null) {
+            histogram.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Record a cache hit or miss.
+     *
+     * @param name cache name
+     * @param hit true if the cache lookup was a hit
+     */
+    public final void recordCacheLookup(final String name, final boolean hit) {
+        final CacheCounter counter = this.caches.get(name);
+
+        if (counter != null) {
+            if (hit) {
+                counter.hits.incrementAndGet();
+            } else {
+                counter.misses.incrementAndGet();
+            }
+        }
+    }
+
+    /** MBean Methods **/
+
+    @Override
+    public final long getErrorCount() {
+        long count = 0L;
+
+        for (int i = 0; i <= MAX_STATUS_CODE; i++) {
+            count += this.statusCodes.get(i);
+        }
+
+        return count;
+    }
+
+    @Override
+    public final Map<String, Long> getErrorCountsByStatusCode() {
+        final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+        for (int i = 0; i <= MAX_STATUS_CODE; i++) {
+            final long count = this.statusCodes.get(i);
+
+            if (count > 0) {
+                counts.put(i == 0 ? "other" : String.valueOf(i), count);
+            }
+        }
+
+        return counts;
+    }
+
+    @Override
+    public final Map<String, LatencyHistogram.Snapshot> getLatencies() {
+        final Map<String, LatencyHistogram.Snapshot> snapshots = new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+
+        for (final Map.Entry<String, LatencyHistogram> entry : this.latencies.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().getSnapshot());
+        }
+
+        return snapshots;
+    }
+
+    @Override
+    public final Map<String, CacheStatistics> getCaches() {
+        final Map<String, CacheStatistics> statistics = new LinkedHashMap<String, CacheStatistics>();
+
+        for (final Map.Entry<String, CacheCounter> entry : this.caches.entrySet()) {
+            statistics.put(entry.getKey(),
+                    new CacheStatistics(entry.getValue().hits.get(), entry.getValue().misses.get()));
+        }
+
+        return statistics;
+    }
+
+    @Override
+    public final void reset() {
+        for (int i = 0; i <= MAX_STATUS_CODE; i++) {
+            this.statusCodes.set(i, 0L);
+        }
+
+        for (final LatencyHistogram histogram : this.latencies.values()) {
+            histogram.reset();
+        }
+
+        for (final CacheCounter counter : this.caches.values()) {
+            counter.hits.set(0L);
+            counter.misses.set(0L);
+        }
+    }
+
+    private static final class CacheCounter {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+    }
+
+    /**
+     * Point-in-time view of a cache's hits and misses.
+     */
+    public static final class CacheStatistics {
+        private final long hits;
+
+        private final long misses;
+
+        public CacheStatistics(final long hits, final long misses) {
+            this.hits = hits;
+            this.misses = misses;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRate() {
+            final long total = hits + misses;
+            return total == 0L ? 0D : hits / (double) total;
+        }
+    }
+}
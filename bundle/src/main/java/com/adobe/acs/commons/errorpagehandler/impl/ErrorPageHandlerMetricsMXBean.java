@@ -0,0 +1,55 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.adobe.acs.commons.util.LatencyHistogram;
+
+import java.util.Map;
+
+/**
+ * JMX view of the Error Page Handler's metrics.
+ */
+public interface ErrorPageHandlerMetricsMXBean {
+
+    /**
+     * @return the number of errors handled
+     */
+    long getErrorCount();
+
+    /**
+     * @return the number of errors handled, by HTTP status code
+     */
+    Map<String, Long> getErrorCountsByStatusCode();
+
+    /**
+     * @return latency statistics (in milliseconds) by operation
+     */
+    Map<String, LatencyHistogram.Snapshot> getLatencies();
+
+    /**
+     * @return hit and miss statistics by cache
+     */
+    Map<String, ErrorPageHandlerMetrics.CacheStatistics> getCaches();
+
+    /**
+     * Reset all metrics.
+     */
+    void reset();
+}
@@ -0,0 +1,66 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.adobe.acs.commons.util.AbstractMetricsServlet;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import java.util.Map;
+
+/**
+ * Exposes the Error Page Handler's metrics as JSON, to administrators only.
+ */
+@SuppressWarnings("serial")
+@SlingServlet(paths = "/bin/acs-commons/error-page-handler/metrics", methods = "GET")
+public final class ErrorPageHandlerMetricsServlet extends AbstractMetricsServlet {
+
+    @Reference
+    private ErrorPageHandlerMetrics metrics;
+
+    @Override
+    protected void writeMetrics(final JSONWriter writer) throws JSONException {
+        writer.key("errorCount").value(metrics.getErrorCount());
+
+        writer.key("statusCodes").object();
+        for (final Map.Entry<String, Long> entry : metrics.getErrorCountsByStatusCode().entrySet()) {
+            writer.key(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+
+        writer.key("latencies");
+        writeLatencies(writer, metrics.getLatencies());
+
+        writer.key("caches").object();
+        for (final Map.Entry<String, ErrorPageHandlerMetrics.CacheStatistics> entry
+                : metrics.getCaches().entrySet()) {
+            final ErrorPageHandlerMetrics.CacheStatistics statistics = entry.getValue();
+
+            writer.key(entry.getKey()).object();
+            writer.key("hits").value(statistics.getHits());
+            writer.key("misses").value(statistics.getMisses());
+            writer.key("hitRate").value(statistics.getHitRate());
+            writer.endObject();
+        }
+        writer.endObject();
+    }
+}
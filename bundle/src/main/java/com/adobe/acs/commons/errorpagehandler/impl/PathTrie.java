@@ -0,0 +1,285 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable trie of JCR paths, keyed by path segment, used to find the deepest registered path that contains
+ * a given path.
+ *
+ * Lookups walk the path segment by segment (binary searching each node's sorted children) and do not allocate.
+ *
+ * @param <V> type of the value associated with each registered path
+ */
+public final class PathTrie<V> {
+
+    private final Node<V> root = new Node<V>("", "/");
+
+    private final Map<String, V> map;
+
+    /**
+     * Create a trie from the map of paths to values.
+     *
+     * The iteration order of the map is retained by {@link #asMap()}; if a path is registered more than once
+     * (ex. "/content/a" and "/content/a/") the first value wins.
+     *
+     * @param paths map of absolute paths to their values
+     */
+    public PathTrie(final Map<String, V> paths) {
+        final Map<String, V> tmp = new LinkedHashMap<String, V>();
+
+        for (final Map.Entry<String, V> entry : paths.entrySet()) {
+            if (entry.getKey() != null && this.put(entry.getKey(), entry.getValue())) {
+                tmp.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        this.root.link(null);
+        this.map = Collections.unmodifiableMap(tmp);
+    }
+
+    /**
+     * Find the deepest registered path that is equal to or an ancestor of the provided path.
+     *
+     * Shallower matches can be visited via {@link Entry#getParentMatch()}.
+     *
+     * @param path absolute path to match
+     * @return the deepest match, or null if no registered path contains the path
+     */
+    public Entry<V> getDeepestMatch(final String path) {
+        if (path == null) {
+            return null;
+        }
+
+        Node<V> node = this.root;
+        Node<V> match = node.hasValue ? node : null;
+
+        final int length = path.length();
+        int start = 0;
+
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            if (end > start) {
+                node = node.getChild(path, start, end);
+                if (node == null) {
+                    break;
+                } else if (node.hasValue) {
+                    match = node;
+                }
+            }
+
+            start = end + 1;
+        }
+
+        return match;
+    }
+
+    /**
+     * Gets the value of the deepest registered path that is equal to or an ancestor of the provided path.
+     *
+     * @param path absolute path to match
+     * @return the value of the deepest match, or null if no registered path contains the path
+     */
+    public V get(final String path) {
+        final Entry<V> entry = this.getDeepestMatch(path);
+        return entry == null ? null : entry.getValue();
+    }
+
+    /**
+     * @return true if no paths are registered
+     */
+    public boolean isEmpty() {
+        return this.map.isEmpty();
+    }
+
+    /**
+     * @return the number of registered paths
+     */
+    public int size() {
+        return this.map.size();
+    }
+
+    /**
+     * @return an unmodifiable view of the registered paths and their values
+     */
+    public Map<String, V> asMap() {
+        return this.map;
+    }
+
+    private boolean put(final String path, final V value) {
+        Node<V> node = this.root;
+
+        final int length = path.length();
+        int start = 0;
+
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+
+            if (end > start) {
+                node = node.getOrCreateChild(path.substring(start, end));
+            }
+
+            start = end + 1;
+        }
+
+        if (node.hasValue) {
+            return false;
+        }
+
+        node.hasValue = true;
+        node.value = value;
+        return true;
+    }
+
+    /**
+     * A registered path in the trie.
+     *
+     * @param <V> type of the value associated with the path
+     */
+    public interface Entry<V> {
+        /**
+         * @return the normalized registered path
+         */
+        String getPath();
+
+        /**
+         * @return the value registered for the path
+         */
+        V getValue();
+
+        /**
+         * @return the next deepest registered ancestor of this path, or null if there is none
+         */
+        Entry<V> getParentMatch();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static final class Node<V> implements Entry<V> {
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        private final String segment;
+
+        private final String path;
+
+        private Node<V>[] children = NO_CHILDREN;
+
+        private boolean hasValue = false;
+
+        private V value;
+
+        private Node<V> parentMatch;
+
+        private Node(final String segment, final String path) {
+            this.segment = segment;
+            this.path = path;
+        }
+
+        public String getPath() {
+            return this.path;
+        }
+
+        public V getValue() {
+            return this.value;
+        }
+
+        public Entry<V> getParentMatch() {
+            return this.parentMatch;
+        }
+
+        private Node<V> getChild(final String path, final int start, final int end) {
+            int low = 0;
+            int high = this.children.length - 1;
+
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                final int cmp = compare(this.children[mid].segment, path, start, end);
+
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return this.children[mid];
+                }
+            }
+
+            return null;
+        }
+
+        private Node<V> getOrCreateChild(final String childSegment) {
+            Node<V> child = this.getChild(childSegment, 0, childSegment.length());
+
+            if (child == null) {
+                final String childPath = "/".equals(this.path) ? "/" + childSegment : this.path + "/" + childSegment;
+                child = new Node<V>(childSegment, childPath);
+
+                final List<Node<V>> tmp = new ArrayList<Node<V>>(Arrays.asList(this.children));
+                int index = 0;
+                while (index < tmp.size() && tmp.get(index).segment.compareTo(childSegment) < 0) {
+                    index++;
+                }
+                tmp.add(index, child);
+
+                this.children = tmp.toArray(new Node[tmp.size()]);
+            }
+
+            return child;
+        }
+
+        private void link(final Node<V> closestMatch) {
+            this.parentMatch = closestMatch;
+
+            final Node<V> childMatch = this.hasValue ? this : closestMatch;
+            for (final Node<V> child : this.children) {
+                child.link(childMatch);
+            }
+        }
+
+        /**
+         * Compares the segment to the region of the path; consistent with String.compareTo(..).
+         */
+        private static int compare(final String segment, final String path, final int start, final int end) {
+            final int length = end - start;
+            final int min = Math.min(segment.length(), length);
+
+            for (int i = 0; i < min; i++) {
+                final int diff = segment.charAt(i) - path.charAt(start + i);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+
+            return segment.length() - length;
+        }
+    }
+}
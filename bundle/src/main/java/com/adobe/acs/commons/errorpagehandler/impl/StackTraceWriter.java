@@ -0,0 +1,140 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.apache.commons.lang.StringEscapeUtils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Writes Throwable stack traces directly to a Writer, in the format of Throwable.printStackTrace(..), without
+ * first rendering them into a String.
+ *
+ * Frames shared with the enclosing trace are elided ("... n more"), consecutive repeated frames (ex. from deep
+ * recursion) are collapsed, and the number of frames written per Throwable can be limited.
+ */
+public final class StackTraceWriter {
+    private static final String NEWLINE = "\n";
+
+    private final Writer writer;
+
+    private final int maxFrames;
+
+    private final boolean escapeHtml;
+
+    /**
+     * @param writer writer to write the stack trace to
+     * @param maxFrames maximum number of frames to write per Throwable; 0 or less writes all frames
+     * @param escapeHtml true to HTML escape the stack trace
+     */
+    public StackTraceWriter(final Writer writer, final int maxFrames, final boolean escapeHtml) {
+        this.writer = writer;
+        this.maxFrames = maxFrames;
+        this.escapeHtml = escapeHtml;
+    }
+
+    /**
+     * Write the stack trace of the throwable and its causes.
+     *
+     * @param throwable
+     * @throws IOException
+     */
+    public void write(final Throwable throwable) throws IOException {
+        final Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+
+        Throwable current = throwable;
+        StackTraceElement[] enclosingTrace = new StackTraceElement[0];
+        String caption = "";
+
+        while (current != null) {
+            if (!seen.add(current)) {
+                this.write("[CIRCULAR REFERENCE: ");
+                this.write(current.toString());
+                this.write("]" + NEWLINE);
+                return;
+            }
+
+            final StackTraceElement[] trace = current.getStackTrace();
+
+            this.write(caption);
+            this.write(current.toString());
+            this.write(NEWLINE);
+            this.writeFrames(trace, enclosingTrace);
+
+            enclosingTrace = trace;
+            caption = "Caused by: ";
+            current = current.getCause();
+        }
+    }
+
+    private void writeFrames(final StackTraceElement[] trace, final StackTraceElement[] enclosingTrace)
+            throws IOException {
+        // Frames in common with the enclosing trace are only written once
+        int last = trace.length - 1;
+        int enclosingLast = enclosingTrace.length - 1;
+        while (last >= 0 && enclosingLast >= 0 && trace[last].equals(enclosingTrace[enclosingLast])) {
+            last--;
+            enclosingLast--;
+        }
+
+        final int inCommon = trace.length - 1 - last;
+        int written = 0;
+        int i = 0;
+
+        while (i <= last) {
+            if (this.maxFrames > 0 && written >= this.maxFrames) {
+                this.write("\t... " + (last - i + 1) + " frames truncated" + NEWLINE);
+                break;
+            }
+
+            int repeated = 0;
+            while (i + repeated + 1 <= last && trace[i].equals(trace[i + repeated + 1])) {
+                repeated++;
+            }
+
+            this.write("\tat ");
+            this.write(trace[i].toString());
+            this.write(NEWLINE);
+            written++;
+
+            if (repeated > 0) {
+                this.write("\t... repeated " + repeated + " more times" + NEWLINE);
+            }
+
+            i += repeated + 1;
+        }
+
+        if (inCommon > 0) {
+            this.write("\t... " + inCommon + " more" + NEWLINE);
+        }
+    }
+
+    private void write(final String str) throws IOException {
+        if (this.escapeHtml) {
+            StringEscapeUtils.escapeHtml(this.writer, str);
+        } else {
+            this.writer.write(str);
+        }
+    }
+}
@@ -20,5 +20,5 @@
 /**
  * Dynamic Error Page Handler.
  */
-@aQute.bnd.annotation.Version("1.0.0")
+@aQute.bnd.annotation.Version("1.1.0")
 package com.adobe.acs.commons.errorpagehandler;
\ No newline at end of file
@@ -62,6 +62,9 @@ public interface DispatcherFlusher {
     /**
      * Issue flush replication request.
      *
+     * If the agentFilter is a Hierarchical DispatcherFlushFilter, paths beneath another requested path are not
+     * flushed, as the flush of their ancestor invalidates them; this applies to all flush methods.
+     *
      * @param resourceResolver access into repository; Must have access to the resources to flush
      * @param actionType specifies the Replication Type that will be associated with the flush requests
      *                   (ex. Activate, Deactivate, Delete)
@@ -75,6 +78,58 @@ public interface DispatcherFlusher {
                                         boolean synchronous, AgentFilter agentFilter, String... paths) throws
             ReplicationException;
 
+    /**
+     * Issue Dispatcher cache invalidation requests for many paths in batches, bypassing the replication queue.
+     *
+     * Each targeted agent's Dispatcher is sent its requests over a single pipelined connection, with up to the
+     * configured batch size of requests sent ahead of their responses; agents are flushed in parallel. Requests use
+     * the agents' configured HTTP headers and are not retried. No requests are issued if the agentFilter does not
+     * target any agents, and a failure to invalidate one path does not prevent the remaining paths from being flushed.
+     *
+     * @param actionType specifies the Replication Type sent as the CQ-Action (ex. Activate, Deactivate, Delete)
+     * @param agentFilter filter used to specify agents to flush
+     * @param paths list of resources to flush
+     * @return a map of the flushed paths to the targeted flush agents and the result of their invalidation request
+     */
+    Map<String, Map<Agent, ReplicationResult>> flushInBatches(ReplicationActionType actionType,
+                                                              AgentFilter agentFilter, String... paths);
+
+    /**
+     * Issue synchronous flush replication requests to each targeted agent in parallel.
+     *
+     * Each agent is flushed on its own thread using its own clone of the resourceResolver, so one slow Dispatcher does
+     * not delay the others; the clones are created on the calling thread. Paths of agents that do not complete within
+     * the configured timeout, whose flush fails, or which cannot be queued as the configured queue is full, and which
+     * were not flushed before, are reported with the agent's unsuccessful ReplicationResult.
+     *
+     * @param resourceResolver access into repository; Must have access to the resources to flush
+     * @param actionType specifies the Replication Type that will be associated with the flush requests
+     *                   (ex. Activate, Deactivate, Delete)
+     * @param agentFilter filter used to specify agents to flush
+     * @param paths list of resources to flush
+     * @return a map of the flushed paths to the targeted flush agents and the result of their replication request
+     */
+    Map<String, Map<Agent, ReplicationResult>> flushInParallel(ResourceResolver resourceResolver,
+                                                               ReplicationActionType actionType,
+                                                               AgentFilter agentFilter, String... paths);
+
+    /**
+     * Issue Dispatcher cache invalidation requests directly to each targeted agent's transport URI, bypassing the
+     * replication queue.
+     *
+     * Intended for urgent cache purges. Requests use the agents' configured HTTP headers, are issued in parallel, and
+     * are not retried; requests that fail or do not complete within the configured timeout are reported with an
+     * unsuccessful ReplicationResult. Requests which cannot be queued as the configured queue is full are issued on
+     * the calling thread, so every path is invalidated.
+     *
+     * @param actionType specifies the Replication Type sent as the CQ-Action (ex. Activate, Deactivate, Delete)
+     * @param agentFilter filter used to specify agents to flush
+     * @param paths list of resources to flush
+     * @return a map of the flushed paths to the targeted flush agents and the result of their invalidation request
+     */
+    Map<String, Map<Agent, ReplicationResult>> flushDirectly(ReplicationActionType actionType,
+                                                             AgentFilter agentFilter, String... paths);
+
     /**
      * Get Replication Agents targeted by this service.
      *
@@ -0,0 +1,227 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.day.cq.replication.ReplicationActionType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects flush targets for a time window, and then flushes each unique target once.
+ *
+ * Targets are grouped by agent filter and replication action type. Duplicate targets are collapsed, and for
+ * Hierarchical flushes, targets beneath another target of the same window are dropped, as the hierarchical flush of
+ * the ancestor also invalidates them.
+ */
+public final class CoalescingFlushQueue {
+    private static final Logger log = LoggerFactory.getLogger(CoalescingFlushQueue.class);
+
+    /**
+     * Issues the flush of the coalesced targets.
+     */
+    public interface FlushHandler {
+        /**
+         * Flush the paths.
+         *
+         * @param actionType the replication action type of the flush
+         * @param agentFilter the agent filter of the flush
+         * @param paths the coalesced paths to flush
+         */
+        void flush(ReplicationActionType actionType, DispatcherFlushFilter agentFilter, String[] paths);
+    }
+
+    private final long window;
+
+    private final FlushHandler handler;
+
+    private final ScheduledExecutorService executor;
+
+    private final Map<Key, Set<String>> pending = new LinkedHashMap<Key, Set<String>>();
+
+    private boolean scheduled = false;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong flushed = new AtomicLong();
+
+    /**
+     * @param window milliseconds to collect targets for, from the first target of a window
+     * @param handler issues the flushes
+     */
+    public CoalescingFlushQueue(final long window, final FlushHandler handler) {
+        this.window = window;
+        this.handler = handler;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ACS AEM Commons - Dispatcher Flush Rules Queue");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Add a flush target to the current window.
+     *
+     * @param actionType the replication action type of the flush
+     * @param agentFilter the agent filter of the flush
+     * @param path the path to flush
+     */
+    public void add(final ReplicationActionType actionType, final DispatcherFlushFilter agentFilter,
+                    final String path) {
+        this.submitted.incrementAndGet();
+
+        synchronized (this) {
+            final Key key = new Key(actionType, agentFilter);
+
+            Set<String> paths = this.pending.get(key);
+            if (paths == null) {
+                paths = new HashSet<String>();
+                this.pending.put(key, paths);
+            }
+
+            paths.add(path);
+
+            if (!this.scheduled) {
+                this.scheduled = true;
+                this.executor.schedule(new Runnable() {
+                    public void run() {
+                        drain();
+                    }
+                }, this.window, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Flush all targets of the current window.
+     */
+    void drain() {
+        final Map<Key, Set<String>> targets;
+
+        synchronized (this) {
+            targets = new LinkedHashMap<Key, Set<String>>(this.pending);
+            this.pending.clear();
+            this.scheduled = false;
+        }
+
+        for (final Map.Entry<Key, Set<String>> entry : targets.entrySet()) {
+            final Key key = entry.getKey();
+            final boolean hierarchical =
+                    DispatcherFlushFilter.FlushType.Hierarchical.equals(key.agentFilter.getFlushType());
+            final List<String> paths = reduce(entry.getValue(), hierarchical);
+
+            this.flushed.addAndGet(paths.size());
+
+            log.debug("Flushing [ {} ] coalesced {} targets", paths.size(), key.agentFilter.getFlushType());
+
+            try {
+                this.handler.flush(key.actionType, key.agentFilter, paths.toArray(new String[paths.size()]));
+            } catch (RuntimeException e) {
+                log.error("Could not flush coalesced targets " + paths, e);
+            }
+        }
+    }
+
+    /**
+     * Stop collecting targets, and flush the targets of the current window.
+     */
+    public void close() {
+        this.executor.shutdownNow();
+        this.drain();
+    }
+
+    /**
+     * @return the number of targets added
+     */
+    public long getSubmittedCount() {
+        return this.submitted.get();
+    }
+
+    /**
+     * @return the number of targets flushed after coalescing
+     */
+    public long getFlushedCount() {
+        return this.flushed.get();
+    }
+
+    /**
+     * Remove the duplicate and, if hierarchical, the ancestor-covered paths.
+     *
+     * @param paths the paths to reduce
+     * @param hierarchical true if a path covers the paths beneath it
+     * @return the reduced paths, sorted
+     */
+    static List<String> reduce(final Collection<String> paths, final boolean hierarchical) {
+        final Set<String> unique = new TreeSet<String>(paths);
+
+        if (!hierarchical) {
+            return new ArrayList<String>(unique);
+        }
+
+        // Sorted input, so the reduced paths remain sorted
+        final String[] reduced = FlushPathReducer.reduce(unique.toArray(new String[unique.size()]));
+
+        return new ArrayList<String>(Arrays.asList(reduced));
+    }
+
+    private static final class Key {
+        private final ReplicationActionType actionType;
+
+        private final DispatcherFlushFilter agentFilter;
+
+        private Key(final ReplicationActionType actionType, final DispatcherFlushFilter agentFilter) {
+            this.actionType = actionType;
+            this.agentFilter = agentFilter;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            return this.actionType == other.actionType && this.agentFilter == other.agentFilter;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (this.actionType == null ? 0 : this.actionType.hashCode())
+                    + System.identityHashCode(this.agentFilter);
+        }
+    }
+}
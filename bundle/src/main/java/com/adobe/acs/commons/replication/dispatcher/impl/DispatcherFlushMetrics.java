@@ -0,0 +1,495 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.util.LatencyHistogram;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free recorder of the Dispatcher Flusher's and Dispatcher Flush Rules' metrics, with a bounded audit log of
+ * the most recent flushes.
+ *
+ * Exposed via JMX and as JSON via the DispatcherFlushMetricsServlet.
+ */
+@Component(label = "ACS AEM Commons - Dispatcher Flush Metrics",
+        description = "Records and exposes (via JMX) metrics for the Dispatcher Flusher and Dispatcher Flush Rules.",
+        immediate = true)
+@Property(name = "jmx.objectname",
+        value = "com.adobe.acs.commons:type=Dispatcher Flush",
+        propertyPrivate = true)
+@Service(value = { DispatcherFlushMetrics.class, DynamicMBean.class })
+public class DispatcherFlushMetrics extends StandardMBean implements DispatcherFlushMetricsMXBean {
+
+    /* Flush operations */
+    public static final String FLUSH = "flush";
+    public static final String FLUSH_IN_BATCHES = "flushInBatches";
+    public static final String FLUSH_IN_PARALLEL = "flushInParallel";
+    public static final String FLUSH_DIRECTLY = "flushDirectly";
+
+    /* Number of recent flushes retained by the audit log */
+    static final int AUDIT_LOG_SIZE = 200;
+
+    private final Map<String, LatencyHistogram> latencies;
+
+    private final ConcurrentMap<String, FlushCounter> agents = new ConcurrentHashMap<String, FlushCounter>();
+
+    private final Set<FlushRuleIndex> ruleIndexes = new CopyOnWriteArraySet<FlushRuleIndex>();
+
+    private final AtomicLong deduplicated = new AtomicLong();
+
+    private final AtomicLong coalescingQueued = new AtomicLong();
+
+    private final AtomicLong coalescingFlushed = new AtomicLong();
+
+    private final AtomicLong backgroundSubmitted = new AtomicLong();
+
+    private final AtomicLong backgroundCompleted = new AtomicLong();
+
+    private final AtomicLong backgroundFailed = new AtomicLong();
+
+    private final AtomicLong backgroundBlocked = new AtomicLong();
+
+    private final Set<OrderedFlushExecutor> backgroundExecutors = new CopyOnWriteArraySet<OrderedFlushExecutor>();
+
+    private final AtomicReferenceArray<AuditEntry> auditLog = new AtomicReferenceArray<AuditEntry>(AUDIT_LOG_SIZE);
+
+    private final AtomicLong auditSequence = new AtomicLong();
+
+    public DispatcherFlushMetrics() throws NotCompliantMBeanException {
+        super(DispatcherFlushMetricsMXBean.class, true);
+
+        final Map<String, LatencyHistogram> tmpLatencies = new LinkedHashMap<String, LatencyHistogram>();
+        tmpLatencies.put(FLUSH, new LatencyHistogram());
+        tmpLatencies.put(FLUSH_IN_BATCHES, new LatencyHistogram());
+        tmpLatencies.put(FLUSH_IN_PARALLEL, new LatencyHistogram());
+        tmpLatencies.put(FLUSH_DIRECTLY, new LatencyHistogram());
+        this.latencies = Collections.unmodifiableMap(tmpLatencies);
+    }
+
+    /** Recording Methods **/
+
+    /**
+     * Record the latency of a flush operation.
+     *
+     * @param operation flush operation name
+     * @param startNanos start time of the operation, as returned by System.nanoTime()
+     */
+    public void recordLatency(final String operation, final long startNanos) {
+        final LatencyHistogram histogram = this.latencies.get(operation);
+
+        if (histogram != null) {
+            histogram.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Record the result of flushing a path via an agent.
+     *
+     * @param operation flush operation name
+     * @param actionType the replication action type of the flush
+     * @param path the flushed path; null if unknown
+     * @param agentId the id of the flush agent
+     * @param result the result of the flush
+     * @param duration duration of the flush in milliseconds; -1 if unknown
+     */
+    public void recordResult(final String operation, final ReplicationActionType actionType, final String path,
+                             final String agentId, final ReplicationResult result, final long duration) {
+        final boolean success = result != null && result.isSuccess();
+
+        FlushCounter counter = this.agents.get(agentId);
+        if (counter == null) {
+            final FlushCounter created = new FlushCounter();
+            counter = this.agents.putIfAbsent(agentId, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+
+        counter.flushes.incrementAndGet();
+        if (!success) {
+            counter.failures.incrementAndGet();
+        }
+
+        final long sequence = this.auditSequence.getAndIncrement();
+        this.auditLog.set((int) (sequence % AUDIT_LOG_SIZE), new AuditEntry(System.currentTimeMillis(), operation,
+                actionType == null ? null : actionType.getName(), path, agentId, success,
+                result == null ? 0 : result.getCode(), result == null ? null : result.getMessage(), duration));
+    }
+
+    /**
+     * Count the paths not flushed because a hierarchical flush of their ancestor covers them.
+     *
+     * @param count the number of paths
+     */
+    public void countDeduplicated(final int count) {
+        this.deduplicated.addAndGet(count);
+    }
+
+    /**
+     * Count a flush target added to a coalescing flush queue.
+     */
+    public void countCoalescingQueued() {
+        this.coalescingQueued.incrementAndGet();
+    }
+
+    /**
+     * Count the flush targets flushed by a coalescing flush queue.
+     *
+     * @param count the number of targets
+     */
+    public void countCoalescingFlushed(final int count) {
+        this.coalescingFlushed.addAndGet(count);
+    }
+
+    /**
+     * Count a flush submitted to a background flush executor.
+     */
+    public void countBackgroundSubmitted() {
+        this.backgroundSubmitted.incrementAndGet();
+    }
+
+    /**
+     * Count a flush completed by a background flush executor.
+     *
+     * @param success false if the flush failed
+     */
+    public void countBackgroundCompleted(final boolean success) {
+        this.backgroundCompleted.incrementAndGet();
+
+        if (!success) {
+            this.backgroundFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Count a submission to a background flush executor which blocked because its queue was full.
+     */
+    public void countBackgroundBlocked() {
+        this.backgroundBlocked.incrementAndGet();
+    }
+
+    /**
+     * Include the executor's queued flushes in the background queue depth.
+     *
+     * @param executor the background flush executor
+     */
+    public void addBackgroundExecutor(final OrderedFlushExecutor executor) {
+        this.backgroundExecutors.add(executor);
+    }
+
+    /**
+     * Stop including the executor's queued flushes in the background queue depth.
+     *
+     * @param executor the background flush executor
+     */
+    public void removeBackgroundExecutor(final OrderedFlushExecutor executor) {
+        this.backgroundExecutors.remove(executor);
+    }
+
+    /**
+     * Include the index's rule match counts in the rule matches.
+     *
+     * @param index the flush rule index
+     */
+    public void addRuleIndex(final FlushRuleIndex index) {
+        this.ruleIndexes.add(index);
+    }
+
+    /**
+     * Stop including the index's rule match counts in the rule matches.
+     *
+     * @param index the flush rule index
+     */
+    public void removeRuleIndex(final FlushRuleIndex index) {
+        this.ruleIndexes.remove(index);
+    }
+
+    /** MBean Methods **/
+
+    @Override
+    public long getFlushCount() {
+        long count = 0L;
+
+        for (final FlushCounter counter : this.agents.values()) {
+            count += counter.flushes.get();
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getFailureCount() {
+        long count = 0L;
+
+        for (final FlushCounter counter : this.agents.values()) {
+            count += counter.failures.get();
+        }
+
+        return count;
+    }
+
+    @Override
+    public Map<String, FlushStatistics> getAgents() {
+        final Map<String, FlushStatistics> statistics = new TreeMap<String, FlushStatistics>();
+
+        for (final Map.Entry<String, FlushCounter> entry : this.agents.entrySet()) {
+            statistics.put(entry.getKey(),
+                    new FlushStatistics(entry.getValue().flushes.get(), entry.getValue().failures.get()));
+        }
+
+        return statistics;
+    }
+
+    @Override
+    public Map<String, Long> getRuleMatches() {
+        final Map<String, Long> counts = new TreeMap<String, Long>();
+
+        for (final FlushRuleIndex index : this.ruleIndexes) {
+            for (final Map.Entry<String, Long> entry : index.getMatchCounts().entrySet()) {
+                // A rule may be configured as both a hierarchical and a ResourceOnly flush rule
+                final Long count = counts.get(entry.getKey());
+                counts.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+            }
+        }
+
+        return counts;
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getLatencies() {
+        final Map<String, LatencyHistogram.Snapshot> snapshots = new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+
+        for (final Map.Entry<String, LatencyHistogram> entry : this.latencies.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().getSnapshot());
+        }
+
+        return snapshots;
+    }
+
+    @Override
+    public long getDeduplicatedCount() {
+        return this.deduplicated.get();
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return Math.max(0L, this.coalescingQueued.get() - this.coalescingFlushed.get());
+    }
+
+    @Override
+    public long getBackgroundSubmittedCount() {
+        return this.backgroundSubmitted.get();
+    }
+
+    @Override
+    public long getBackgroundCompletedCount() {
+        return this.backgroundCompleted.get();
+    }
+
+    @Override
+    public long getBackgroundFailedCount() {
+        return this.backgroundFailed.get();
+    }
+
+    @Override
+    public long getBackgroundBlockedCount() {
+        return this.backgroundBlocked.get();
+    }
+
+    @Override
+    public int getBackgroundQueueDepth() {
+        int depth = 0;
+
+        for (final OrderedFlushExecutor executor : this.backgroundExecutors) {
+            depth += executor.getQueueDepth();
+        }
+
+        return depth;
+    }
+
+    @Override
+    public List<AuditEntry> getAuditLog() {
+        final long sequence = this.auditSequence.get();
+        final int size = (int) Math.min(sequence, AUDIT_LOG_SIZE);
+        final List<AuditEntry> entries = new ArrayList<AuditEntry>(size);
+
+        // Newest first
+        for (long i = sequence - 1; i >= sequence - size; i--) {
+            final AuditEntry entry = this.auditLog.get((int) (i % AUDIT_LOG_SIZE));
+
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+
+        return entries;
+    }
+
+    @Override
+    public void reset() {
+        for (final LatencyHistogram histogram : this.latencies.values()) {
+            histogram.reset();
+        }
+
+        this.agents.clear();
+
+        for (final FlushRuleIndex index : this.ruleIndexes) {
+            index.resetCounts();
+        }
+
+        this.deduplicated.set(0L);
+        this.coalescingQueued.set(0L);
+        this.coalescingFlushed.set(0L);
+        this.backgroundSubmitted.set(0L);
+        this.backgroundCompleted.set(0L);
+        this.backgroundFailed.set(0L);
+        this.backgroundBlocked.set(0L);
+
+        for (int i = 0; i < AUDIT_LOG_SIZE; i++) {
+            this.auditLog.set(i, null);
+        }
+
+        this.auditSequence.set(0L);
+    }
+
+    private static final class FlushCounter {
+        private final AtomicLong flushes = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+    }
+
+    /**
+     * Point-in-time view of an agent's flushes and failures.
+     */
+    public static final class FlushStatistics {
+        private final long flushes;
+
+        private final long failures;
+
+        public FlushStatistics(final long flushes, final long failures) {
+            this.flushes = flushes;
+            this.failures = failures;
+        }
+
+        public long getFlushes() {
+            return flushes;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public double getFailureRate() {
+            return flushes == 0L ? 0D : failures / (double) flushes;
+        }
+    }
+
+    /**
+     * A recent flush of a path via an agent.
+     */
+    public static final class AuditEntry {
+        private final long time;
+
+        private final String operation;
+
+        private final String actionType;
+
+        private final String path;
+
+        private final String agentId;
+
+        private final boolean success;
+
+        private final int code;
+
+        private final String message;
+
+        private final long duration;
+
+        public AuditEntry(final long time, final String operation, final String actionType, final String path,
+                          final String agentId, final boolean success, final int code, final String message,
+                          final long duration) {
+            this.time = time;
+            this.operation = operation;
+            this.actionType = actionType;
+            this.path = path;
+            this.agentId = agentId;
+            this.success = success;
+            this.code = code;
+            this.message = message;
+            this.duration = duration;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getActionType() {
+            return actionType;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getAgentId() {
+            return agentId;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+    }
+}
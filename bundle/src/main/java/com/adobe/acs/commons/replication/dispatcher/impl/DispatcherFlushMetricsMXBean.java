@@ -0,0 +1,101 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.util.LatencyHistogram;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the Dispatcher Flusher's and Dispatcher Flush Rules' metrics.
+ */
+public interface DispatcherFlushMetricsMXBean {
+
+    /**
+     * @return the number of flushes of a path via an agent
+     */
+    long getFlushCount();
+
+    /**
+     * @return the number of unsuccessful flushes of a path via an agent
+     */
+    long getFailureCount();
+
+    /**
+     * @return flush and failure statistics by agent id
+     */
+    Map<String, DispatcherFlushMetrics.FlushStatistics> getAgents();
+
+    /**
+     * @return the number of matches by configured flush rule ("pattern=flush path")
+     */
+    Map<String, Long> getRuleMatches();
+
+    /**
+     * @return latency statistics (in milliseconds) by flush operation
+     */
+    Map<String, LatencyHistogram.Snapshot> getLatencies();
+
+    /**
+     * @return the number of paths not flushed as a hierarchical flush of their ancestor covers them
+     */
+    long getDeduplicatedCount();
+
+    /**
+     * @return the number of flush rule targets not flushed as they were coalesced with an identical or covering target
+     */
+    long getCoalescedCount();
+
+    /**
+     * @return the number of flushes submitted to the background flush threads
+     */
+    long getBackgroundSubmittedCount();
+
+    /**
+     * @return the number of flushes completed (successfully or not) by the background flush threads
+     */
+    long getBackgroundCompletedCount();
+
+    /**
+     * @return the number of flushes by the background flush threads which failed
+     */
+    long getBackgroundFailedCount();
+
+    /**
+     * @return the number of submissions to the background flush threads which waited as their queue was full
+     */
+    long getBackgroundBlockedCount();
+
+    /**
+     * @return the number of flushes currently queued for the background flush threads
+     */
+    int getBackgroundQueueDepth();
+
+    /**
+     * @return the most recent flushes, newest first
+     */
+    List<DispatcherFlushMetrics.AuditEntry> getAuditLog();
+
+    /**
+     * Reset all metrics and clear the audit log.
+     */
+    void reset();
+}
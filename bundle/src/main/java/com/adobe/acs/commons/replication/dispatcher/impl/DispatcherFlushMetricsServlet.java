@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.util.AbstractMetricsServlet;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import java.util.Map;
+
+/**
+ * Exposes the Dispatcher Flush metrics and audit log as JSON, to administrators only.
+ */
+@SuppressWarnings("serial")
+@SlingServlet(paths = "/bin/acs-commons/dispatcher-flush/metrics", methods = "GET")
+public final class DispatcherFlushMetricsServlet extends AbstractMetricsServlet {
+
+    @Reference
+    private DispatcherFlushMetrics metrics;
+
+    @Override
+    protected void writeMetrics(final JSONWriter writer) throws JSONException {
+        writer.key("flushCount").value(metrics.getFlushCount());
+        writer.key("failureCount").value(metrics.getFailureCount());
+        writer.key("deduplicatedCount").value(metrics.getDeduplicatedCount());
+        writer.key("coalescedCount").value(metrics.getCoalescedCount());
+
+        writer.key("background").object();
+        writer.key("submitted").value(metrics.getBackgroundSubmittedCount());
+        writer.key("completed").value(metrics.getBackgroundCompletedCount());
+        writer.key("failed").value(metrics.getBackgroundFailedCount());
+        writer.key("blocked").value(metrics.getBackgroundBlockedCount());
+        writer.key("queueDepth").value(metrics.getBackgroundQueueDepth());
+        writer.endObject();
+
+        writer.key("agents").object();
+        for (final Map.Entry<String, DispatcherFlushMetrics.FlushStatistics> entry
+                : metrics.getAgents().entrySet()) {
+            final DispatcherFlushMetrics.FlushStatistics statistics = entry.getValue();
+
+            writer.key(entry.getKey()).object();
+            writer.key("flushes").value(statistics.getFlushes());
+            writer.key("failures").value(statistics.getFailures());
+            writer.key("failureRate").value(statistics.getFailureRate());
+            writer.endObject();
+        }
+        writer.endObject();
+
+        writer.key("rules").object();
+        for (final Map.Entry<String, Long> entry : metrics.getRuleMatches().entrySet()) {
+            writer.key(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+
+        writer.key("latencies");
+        writeLatencies(writer, metrics.getLatencies());
+
+        writer.key("auditLog").array();
+        for (final DispatcherFlushMetrics.AuditEntry entry : metrics.getAuditLog()) {
+            writer.object();
+            writer.key("time").value(entry.getTime());
+            writer.key("operation").value(entry.getOperation());
+            writer.key("actionType").value(entry.getActionType());
+            writer.key("path").value(entry.getPath());
+            writer.key("agent").value(entry.getAgentId());
+            writer.key("success").value(entry.isSuccess());
+            writer.key("code").value(entry.getCode());
+            writer.key("message").value(entry.getMessage());
+            writer.key("duration").value(entry.getDuration());
+            writer.endObject();
+        }
+        writer.endArray();
+    }
+}
@@ -24,12 +24,14 @@ import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter.FlushType;
 import com.adobe.acs.commons.util.OsgiPropertyUtil;
+import com.day.cq.replication.Agent;
 import com.day.cq.replication.AgentManager;
 import com.day.cq.replication.Preprocessor;
 import com.day.cq.replication.ReplicationAction;
 import com.day.cq.replication.ReplicationActionType;
 import com.day.cq.replication.ReplicationException;
 import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.ReplicationResult;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
@@ -47,9 +49,12 @@ import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -113,6 +118,38 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
             value = { })
     private static final String PROP_RESOURCE_ONLY_FLUSH_RULES = "prop.rules.resource-only";
 
+    /* Coalescing Window */
+    private static final long DEFAULT_COALESCING_WINDOW = 0;
+
+    @Property(label = "Coalescing window",
+            description = "Milliseconds to collect flush targets for before flushing each unique target once. "
+                    + "Hierarchical targets beneath another collected target are not flushed separately. "
+                    + "0 flushes on every replication. [Default: 0]",
+            longValue = DEFAULT_COALESCING_WINDOW)
+    private static final String PROP_COALESCING_WINDOW = "prop.coalescing-window";
+
+    /* Background Flush Threads */
+    private static final int DEFAULT_FLUSH_THREADS = 0;
+
+    @Property(label = "Background flush threads",
+            description = "Number of threads used to issue flushes outside of the replication request. "
+                    + "Flushes of the same path are always issued in order. "
+                    + "0 issues flushes during the replication request. Not used if a coalescing window is "
+                    + "configured. [Default: 0]",
+            intValue = DEFAULT_FLUSH_THREADS)
+    private static final String PROP_FLUSH_THREADS = "prop.flush-threads";
+
+    /* Background Flush Queue Size */
+    private static final int DEFAULT_FLUSH_QUEUE_SIZE = 1000;
+
+    @Property(label = "Background flush queue size",
+            description = "Maximum number of pending flushes per background flush thread. When full, replication "
+                    + "requests wait for a free slot. [Default: 1000]",
+            intValue = DEFAULT_FLUSH_QUEUE_SIZE)
+    private static final String PROP_FLUSH_QUEUE_SIZE = "prop.flush-queue-size";
+
+    private static final long FLUSH_EXECUTOR_SHUTDOWN_TIMEOUT = 10000;
+
     @Reference
     private DispatcherFlusher dispatcherFlusher;
 
@@ -122,9 +159,16 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
     @Reference
     private ResourceResolverFactory resourceResolverFactory;
 
+    @Reference
+    private DispatcherFlushMetrics metrics;
+
     private Map<Pattern, String> hierarchicalFlushRules = new LinkedHashMap<Pattern, String>();
     private Map<Pattern, String> resourceOnlyFlushRules = new LinkedHashMap<Pattern, String>();
+    private FlushRuleIndex hierarchicalRuleIndex = null;
+    private FlushRuleIndex resourceOnlyRuleIndex = null;
     private ReplicationActionType replicationActionType = null;
+    private CoalescingFlushQueue flushQueue = null;
+    private OrderedFlushExecutor flushExecutor = null;
 
     /**
      * {@inheritDoc}
@@ -143,36 +187,70 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
         final ReplicationActionType flushActionType =
                 replicationActionType == null ? replicationAction.getType() : replicationActionType;
 
+        final List<String> hierarchicalPaths =
+                this.getFlushPaths(this.hierarchicalRuleIndex, this.hierarchicalFlushRules, path);
+        final List<String> resourceOnlyPaths =
+                this.getFlushPaths(this.resourceOnlyRuleIndex, this.resourceOnlyFlushRules, path);
+
+        if (hierarchicalPaths.isEmpty() && resourceOnlyPaths.isEmpty()) {
+            return;
+        }
+
+        final CoalescingFlushQueue queue = this.flushQueue;
+
+        if (queue != null) {
+            // Flushed once per unique target when the coalescing window closes
+            for (final String flushPath : hierarchicalPaths) {
+                log.debug("Queueing hierarchical flush of associated path: {} ~> {}", path, flushPath);
+                queue.add(flushActionType, HIERARCHICAL_FILTER, flushPath);
+                metrics.countCoalescingQueued();
+            }
+
+            for (final String flushPath : resourceOnlyPaths) {
+                log.debug("Queueing ResourceOnly flush of associated path: {} ~> {}", path, flushPath);
+                queue.add(flushActionType, RESOURCE_ONLY_FILTER, flushPath);
+                metrics.countCoalescingQueued();
+            }
+
+            return;
+        }
+
+        final OrderedFlushExecutor executor = this.flushExecutor;
+
+        if (executor != null) {
+            // Flushed by the background flush threads, in order per target
+            for (final String flushPath : hierarchicalPaths) {
+                log.debug("Submitting hierarchical flush of associated path: {} ~> {}", path, flushPath);
+                this.submitFlush(executor, flushActionType, HIERARCHICAL_FILTER, flushPath);
+            }
+
+            for (final String flushPath : resourceOnlyPaths) {
+                log.debug("Submitting ResourceOnly flush of associated path: {} ~> {}", path, flushPath);
+                this.submitFlush(executor, flushActionType, RESOURCE_ONLY_FILTER, flushPath);
+            }
+
+            return;
+        }
+
         ResourceResolver resourceResolver = null;
 
         try {
             resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
 
             // Flush full content hierarchies
-            for (final Map.Entry<Pattern, String> entry : this.hierarchicalFlushRules.entrySet()) {
-                final Pattern pattern = entry.getKey();
-                final Matcher m = pattern.matcher(path);
-
-                if (m.matches()) {
-                    log.debug("Requesting hierarchical flush of associated path: {} ~> {}", path,
-                            entry.getValue());
-                    dispatcherFlusher.flush(resourceResolver, flushActionType, false,
-                            HIERARCHICAL_FILTER,
-                            entry.getValue());
-                }
+            for (final String flushPath : hierarchicalPaths) {
+                log.debug("Requesting hierarchical flush of associated path: {} ~> {}", path, flushPath);
+                dispatcherFlusher.flush(resourceResolver, flushActionType, false,
+                        HIERARCHICAL_FILTER,
+                        flushPath);
             }
 
             // Flush explicit resources using the CQ-Action-Scope ResourceOnly header
-            for (final Map.Entry<Pattern, String> entry : this.resourceOnlyFlushRules.entrySet()) {
-                final Pattern pattern = entry.getKey();
-                final Matcher m = pattern.matcher(path);
-
-                if (m.matches()) {
-                    log.debug("Requesting ResourceOnly flush of associated path: {} ~> {}", path, entry.getValue());
-                    dispatcherFlusher.flush(resourceResolver, flushActionType, false,
-                            RESOURCE_ONLY_FILTER,
-                            entry.getValue());
-                }
+            for (final String flushPath : resourceOnlyPaths) {
+                log.debug("Requesting ResourceOnly flush of associated path: {} ~> {}", path, flushPath);
+                dispatcherFlusher.flush(resourceResolver, flushActionType, false,
+                        RESOURCE_ONLY_FILTER,
+                        flushPath);
             }
 
         } catch (LoginException e) {
@@ -184,6 +262,103 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
         }
     }
 
+    /**
+     * Gets the paths to flush for the replicated path.
+     *
+     * @param index the index of the flush rules, which counts their matches; if null, every flush rule is evaluated
+     * @param flushRules the flush rules to evaluate
+     * @param path the path being replicated
+     * @return the paths of all flush rules whose pattern matches the replicated path
+     */
+    private List<String> getFlushPaths(final FlushRuleIndex index, final Map<Pattern, String> flushRules,
+                                       final String path) {
+        if (index != null) {
+            return index.getFlushPaths(path);
+        }
+
+        final List<String> flushPaths = new ArrayList<String>();
+
+        for (final Map.Entry<Pattern, String> entry : flushRules.entrySet()) {
+            final Pattern pattern = entry.getKey();
+            final Matcher m = pattern.matcher(path);
+
+            if (m.matches()) {
+                flushPaths.add(entry.getValue());
+            }
+        }
+
+        return flushPaths;
+    }
+
+    /**
+     * Submit the flush of a single target to the background flush threads; the flush is issued on the calling thread
+     * if the executor no longer accepts work.
+     *
+     * @param executor the background flush executor
+     * @param actionType the replication action type of the flush
+     * @param agentFilter the agent filter of the flush
+     * @param flushPath the path to flush
+     */
+    private void submitFlush(final OrderedFlushExecutor executor, final ReplicationActionType actionType,
+                             final DispatcherFlushFilter agentFilter, final String flushPath) {
+        final Runnable task = new Runnable() {
+            public void run() {
+                // Failures are thrown, so the executor counts them
+                try {
+                    flushInBackground(actionType, agentFilter, new String[]{ flushPath });
+                } catch (LoginException e) {
+                    throw new IllegalStateException("Could not log in to flush [ " + flushPath + " ]", e);
+                } catch (ReplicationException e) {
+                    throw new IllegalStateException("Could not flush [ " + flushPath + " ]", e);
+                }
+            }
+        };
+
+        try {
+            executor.execute(flushPath, task);
+        } catch (RejectedExecutionException e) {
+            log.debug("Background flush rejected for [ {} ]; flushing on the replication thread", flushPath);
+
+            try {
+                task.run();
+            } catch (IllegalStateException ise) {
+                log.error("Error issuing dispatcher flush rules: {}", ise.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Flush paths outside of the replication request; used by the flush queue and the background flush threads.
+     *
+     * @param actionType the replication action type of the flush
+     * @param agentFilter the agent filter of the flush
+     * @param paths the paths to flush
+     * @throws LoginException if the flush could not log in to the repository
+     * @throws ReplicationException if the flush could not be issued, or an agent did not accept it
+     */
+    private void flushInBackground(final ReplicationActionType actionType, final DispatcherFlushFilter agentFilter,
+                                   final String[] paths) throws LoginException, ReplicationException {
+        ResourceResolver resourceResolver = null;
+
+        try {
+            resourceResolver = resourceResolverFactory.getAdministrativeResourceResolver(null);
+
+            final Map<Agent, ReplicationResult> results =
+                    dispatcherFlusher.flush(resourceResolver, actionType, false, agentFilter, paths);
+
+            for (final Map.Entry<Agent, ReplicationResult> entry : results.entrySet()) {
+                if (entry.getValue() != null && !entry.getValue().isSuccess()) {
+                    throw new ReplicationException("Agent [ " + entry.getKey().getId() + " ] did not accept the "
+                            + "flush: " + entry.getValue().getMessage());
+                }
+            }
+        } finally {
+            if (resourceResolver != null) {
+                resourceResolver.close();
+            }
+        }
+    }
+
     /**
      * Checks if this service should react to or ignore this replication action.
      *
@@ -241,6 +416,52 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
                         DEFAULT_RESOURCE_ONLY_FLUSH_RULES), "="));
 
         log.debug("ResourceOnly flush rules: " + this.resourceOnlyFlushRules);
+
+        this.hierarchicalRuleIndex = new FlushRuleIndex(this.hierarchicalFlushRules);
+        this.resourceOnlyRuleIndex = new FlushRuleIndex(this.resourceOnlyFlushRules);
+
+        // The indexes count the matches of each rule, published by the metrics
+        metrics.addRuleIndex(this.hierarchicalRuleIndex);
+        metrics.addRuleIndex(this.resourceOnlyRuleIndex);
+
+        /* Coalescing Window */
+        final long coalescingWindow = PropertiesUtil.toLong(properties.get(PROP_COALESCING_WINDOW),
+                DEFAULT_COALESCING_WINDOW);
+
+        if (coalescingWindow > 0) {
+            this.flushQueue = new CoalescingFlushQueue(coalescingWindow, new CoalescingFlushQueue.FlushHandler() {
+                public void flush(final ReplicationActionType actionType, final DispatcherFlushFilter agentFilter,
+                                  final String[] paths) {
+                    metrics.countCoalescingFlushed(paths.length);
+
+                    try {
+                        flushInBackground(actionType, agentFilter, paths);
+                    } catch (LoginException e) {
+                        log.error("Error issuing  dispatcher flush rules do to repository login exception: {}",
+                                e.getMessage());
+                    } catch (ReplicationException e) {
+                        log.error("Error issuing dispatcher flush rules: {}", e.getMessage());
+                    }
+                }
+            });
+        }
+
+        log.debug("Coalescing window: {} ms", coalescingWindow);
+
+        /* Background Flush Threads */
+        final int flushThreads = PropertiesUtil.toInteger(properties.get(PROP_FLUSH_THREADS), DEFAULT_FLUSH_THREADS);
+
+        if (flushThreads > 0 && this.flushQueue != null) {
+            log.warn("Background flush threads ({}) are not used as a coalescing window is configured; coalesced "
+                    + "flushes are issued by the coalescing window's thread", flushThreads);
+        } else if (flushThreads > 0) {
+            this.flushExecutor = new OrderedFlushExecutor(flushThreads,
+                    PropertiesUtil.toInteger(properties.get(PROP_FLUSH_QUEUE_SIZE), DEFAULT_FLUSH_QUEUE_SIZE),
+                    metrics);
+            metrics.addBackgroundExecutor(this.flushExecutor);
+        }
+
+        log.debug("Background flush threads: {}", flushThreads);
     }
 
     /**
@@ -282,11 +503,55 @@ public class DispatcherFlushRulesImpl implements Preprocessor {
 
     @Deactivate
     protected final void deactivate(final Map<String, String> properties) {
+        if (this.flushQueue != null) {
+            // Flush the targets collected so far
+            this.flushQueue.close();
+            this.flushQueue = null;
+        }
+
+        if (this.flushExecutor != null) {
+            // Issue the flushes submitted so far
+            final OrderedFlushExecutor executor = this.flushExecutor;
+            this.flushExecutor = null;
+            executor.close(FLUSH_EXECUTOR_SHUTDOWN_TIMEOUT);
+            metrics.removeBackgroundExecutor(executor);
+
+            log.info("Background flushes submitted: {}, completed: {}, failed: {}, blocked on full queue: {}",
+                    new Object[]{ executor.getSubmittedCount(), executor.getCompletedCount(),
+                            executor.getFailedCount(), executor.getBlockedCount() });
+        }
+
+        this.logRuleMatches("Hierarchical", this.hierarchicalRuleIndex);
+        this.logRuleMatches("ResourceOnly", this.resourceOnlyRuleIndex);
+
+        if (this.hierarchicalRuleIndex != null) {
+            metrics.removeRuleIndex(this.hierarchicalRuleIndex);
+        }
+
+        if (this.resourceOnlyRuleIndex != null) {
+            metrics.removeRuleIndex(this.resourceOnlyRuleIndex);
+        }
+
+        this.hierarchicalRuleIndex = null;
+        this.resourceOnlyRuleIndex = null;
         this.hierarchicalFlushRules = new HashMap<Pattern, String>();
         this.resourceOnlyFlushRules = new HashMap<Pattern, String>();
         this.replicationActionType = null;
     }
 
+    /**
+     * Log the rule match counts of the index.
+     *
+     * @param type the flush type of the rules
+     * @param index the index of the rules
+     */
+    private void logRuleMatches(final String type, final FlushRuleIndex index) {
+        if (index != null && log.isDebugEnabled()) {
+            log.debug("{} flush rules evaluated {} times for {} replicated paths; matches: {}",
+                    new Object[]{ type, index.getEvaluationCount(), index.getLookupCount(), index.getMatchCounts() });
+        }
+    }
+
     /* Implementation Class used to track and prevent cyclic replications */
     protected static final class DispatcherFlushRulesFilter extends DispatcherFlushFilter {
         public DispatcherFlushRulesFilter(final FlushType flushType) {
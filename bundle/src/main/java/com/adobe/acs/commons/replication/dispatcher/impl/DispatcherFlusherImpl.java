@@ -30,34 +30,130 @@ import com.day.cq.replication.ReplicationException;
 import com.day.cq.replication.ReplicationOptions;
 import com.day.cq.replication.ReplicationResult;
 import com.day.cq.replication.Replicator;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jcr.Session;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component(
         label = "ACS AEM Commons - Dispatcher Flusher",
         description = "Service used to issue flush requests to enabled Dispatcher Flush Agents.",
         immediate = false,
-        metatype = false
+        metatype = true
 )
-@Service
-public class DispatcherFlusherImpl implements DispatcherFlusher {
+@Properties({
+    @Property(name = EventConstants.EVENT_TOPIC,
+            value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+                    SlingConstants.TOPIC_RESOURCE_CHANGED,
+                    SlingConstants.TOPIC_RESOURCE_REMOVED },
+            propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_FILTER,
+            value = "(path=/etc/replication/*)",
+            propertyPrivate = true)
+})
+@Service(value = { DispatcherFlusher.class, EventHandler.class })
+public class DispatcherFlusherImpl implements DispatcherFlusher, EventHandler {
     private static final Logger log = LoggerFactory.getLogger(DispatcherFlusherImpl.class);
 
+    /* Batch Size */
+    private static final int DEFAULT_BATCH_SIZE = 20;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    @Property(label = "Batch size",
+            description = "Maximum number of invalidation requests sent to each Dispatcher ahead of its responses "
+                    + "when flushing in batches. [Default: 20]",
+            intValue = DEFAULT_BATCH_SIZE)
+    private static final String PROP_BATCH_SIZE = "prop.batch-size";
+
+    /* Parallel Threads */
+    private static final int DEFAULT_PARALLEL_THREADS = 10;
+    @Property(label = "Parallel threads",
+            description = "Maximum number of agents flushed concurrently by parallel flushes. [Default: 10]",
+            intValue = DEFAULT_PARALLEL_THREADS)
+    private static final String PROP_PARALLEL_THREADS = "prop.parallel-threads";
+
+    /* Parallel Queue Size */
+    private static final int DEFAULT_PARALLEL_QUEUE_SIZE = 100;
+    @Property(label = "Parallel queue size",
+            description = "Maximum number of parallel and direct flush requests waiting for a thread. Parallel "
+                    + "flushes beyond this are reported as failed rather than queued; direct flushes beyond this "
+                    + "are issued on the requesting thread. [Default: 100]",
+            intValue = DEFAULT_PARALLEL_QUEUE_SIZE)
+    private static final String PROP_PARALLEL_QUEUE_SIZE = "prop.parallel-queue-size";
+
+    /* Parallel Timeout */
+    private static final long DEFAULT_PARALLEL_TIMEOUT = 30000;
+    private long parallelTimeout = DEFAULT_PARALLEL_TIMEOUT;
+    @Property(label = "Parallel timeout",
+            description = "Milliseconds to wait for each agent to complete a parallel flush. [Default: 30000]",
+            longValue = DEFAULT_PARALLEL_TIMEOUT)
+    private static final String PROP_PARALLEL_TIMEOUT = "prop.parallel-timeout";
+
+    /* Direct Invalidation Connect Timeout */
+    private static final int DEFAULT_DIRECT_CONNECT_TIMEOUT = 5000;
+    @Property(label = "Direct invalidation connect timeout",
+            description = "Milliseconds to wait to connect to a Dispatcher when flushing directly. [Default: 5000]",
+            intValue = DEFAULT_DIRECT_CONNECT_TIMEOUT)
+    private static final String PROP_DIRECT_CONNECT_TIMEOUT = "prop.direct.connect-timeout";
+
+    /* Direct Invalidation Read Timeout */
+    private static final int DEFAULT_DIRECT_READ_TIMEOUT = 10000;
+    @Property(label = "Direct invalidation read timeout",
+            description = "Milliseconds to wait for a Dispatcher to respond when flushing directly. [Default: 10000]",
+            intValue = DEFAULT_DIRECT_READ_TIMEOUT)
+    private static final String PROP_DIRECT_READ_TIMEOUT = "prop.direct.read-timeout";
+
     @Reference
     private Replicator replicator;
 
     @Reference
     private AgentManager agentManager;
 
+    @Reference
+    private DispatcherFlushMetrics metrics;
+
+    /* Incremented on every change to the Replication Agent configurations; invalidates the agent classification */
+    private final AtomicInteger agentConfigVersion = new AtomicInteger();
+
+    private volatile AgentClassification agentClassification = null;
+
+    private ExecutorService parallelExecutor = null;
+
+    private DispatcherInvalidationClient invalidationClient =
+            new DispatcherInvalidationClient(DEFAULT_DIRECT_CONNECT_TIMEOUT, DEFAULT_DIRECT_READ_TIMEOUT);
+
     /**
      * {@inheritDoc}
      */
@@ -87,28 +183,514 @@ public class DispatcherFlusherImpl implements DispatcherFlusher {
                                                      final boolean synchronous,
                                                      final AgentFilter agentFilter,
                                                      final String... paths) throws ReplicationException {
+        final long start = System.nanoTime();
+        final String[] flushPaths = this.reducePaths(agentFilter, paths);
         final ReplicationOptions options = new ReplicationOptions();
-        final ReplicationResultListener listener = new ReplicationResultListener();
+        final ReplicationResultListener listener =
+                new ReplicationResultListener(this.getMetricsCallback(DispatcherFlushMetrics.FLUSH, actionType));
 
-        options.setFilter(agentFilter);
+        options.setFilter(this.getReplicationFilter(agentFilter));
         options.setSynchronous(synchronous);
         options.setSuppressStatusUpdate(true);
         options.setSuppressVersions(true);
         options.setListener(listener);
 
+        try {
+            for (final String path : flushPaths) {
+                if (log.isDebugEnabled()) {
+                    log.debug("--------------------------------------------------------------------------------");
+                    log.debug("Issuing Dispatcher Flush (via AEM Replication API) request for: {}", path);
+                    log.debug(" > Synchronous: {}", options.isSynchronous());
+                    log.debug(" > Replication Action Type: {}", actionType.name());
+                }
+
+                replicator.replicate(resourceResolver.adaptTo(Session.class),
+                        actionType, path, options);
+            }
+        } finally {
+            metrics.recordLatency(DispatcherFlushMetrics.FLUSH, start);
+        }
+
+        return listener.getResults();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final Map<String, Map<Agent, ReplicationResult>> flushInBatches(final ReplicationActionType actionType,
+                                                                           final AgentFilter agentFilter,
+                                                                           final String... paths) {
+        final long start = System.nanoTime();
+        final String[] flushPaths = this.reducePaths(agentFilter, paths);
+        final Map<String, Map<Agent, ReplicationResult>> results =
+                new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+        final Agent[] agents = this.getAgents(agentFilter);
+        final ExecutorService executor = this.parallelExecutor;
+        final DispatcherInvalidationClient client = this.invalidationClient;
+        final int depth = this.batchSize;
+
+        if (agents.length == 0) {
+            log.debug("No flush agents targeted; skipping batched flush of [ {} ] paths", flushPaths.length);
+            return results;
+        }
+
+        for (final String path : flushPaths) {
+            results.put(path, new LinkedHashMap<Agent, ReplicationResult>());
+        }
+
+        final Map<Agent, Map<String, ReplicationResult>> agentResults =
+                new LinkedHashMap<Agent, Map<String, ReplicationResult>>();
+        final Map<Agent, Future<Map<String, ReplicationResult>>> futures =
+                new LinkedHashMap<Agent, Future<Map<String, ReplicationResult>>>();
+
+        // One pipelined connection per agent; agents are flushed in parallel
+        for (final Agent agent : agents) {
+            if (executor == null) {
+                agentResults.put(agent, invalidate(client, agent, actionType, depth, flushPaths));
+            } else {
+                try {
+                    futures.put(agent, executor.submit(new Callable<Map<String, ReplicationResult>>() {
+                        public Map<String, ReplicationResult> call() {
+                            return invalidate(client, agent, actionType, depth, flushPaths);
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    log.debug("Too many flushes queued; flushing via agent [ {} ] on the calling thread",
+                            agent.getId());
+                    agentResults.put(agent, invalidate(client, agent, actionType, depth, flushPaths));
+                }
+            }
+        }
+
+        for (final Map.Entry<Agent, Future<Map<String, ReplicationResult>>> entry : futures.entrySet()) {
+            final Agent agent = entry.getKey();
+
+            try {
+                // Each request is bounded by the connect and read timeouts
+                agentResults.put(agent, entry.getValue().get());
+            } catch (ExecutionException e) {
+                log.error("Could not flush via agent [ {} ]: {}", agent.getId(), e.getCause().getMessage());
+                agentResults.put(agent, this.toFailedResults(flushPaths,
+                        new ReplicationResult(false, 0, e.getCause().getMessage())));
+                this.recordResults(DispatcherFlushMetrics.FLUSH_IN_BATCHES, actionType, agent,
+                        agentResults.get(agent));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                entry.getValue().cancel(true);
+                agentResults.put(agent, this.toFailedResults(flushPaths,
+                        new ReplicationResult(false, 0, "Interrupted")));
+            }
+        }
+
+        for (final Map.Entry<Agent, Map<String, ReplicationResult>> entry : agentResults.entrySet()) {
+            for (final Map.Entry<String, ReplicationResult> pathResult : entry.getValue().entrySet()) {
+                results.get(pathResult.getKey()).put(entry.getKey(), pathResult.getValue());
+            }
+        }
+
+        metrics.recordLatency(DispatcherFlushMetrics.FLUSH_IN_BATCHES, start);
+
+        return results;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final Map<String, Map<Agent, ReplicationResult>> flushInParallel(final ResourceResolver resourceResolver,
+                                                                            final ReplicationActionType actionType,
+                                                                            final AgentFilter agentFilter,
+                                                                            final String... paths) {
+        final long start = System.nanoTime();
+        final String[] flushPaths = this.reducePaths(agentFilter, paths);
+        final Map<String, Map<Agent, ReplicationResult>> results =
+                new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+        final Agent[] agents = this.getAgents(agentFilter);
+        final ExecutorService executor = this.parallelExecutor;
+
+        if (agents.length == 0 || flushPaths.length == 0) {
+            return results;
+        } else if (executor == null) {
+            log.warn("Parallel flushes are unavailable; flushing [ {} ] agents serially", agents.length);
+        }
+
+        final ReplicationResultListener listener = new ReplicationResultListener(
+                this.getMetricsCallback(DispatcherFlushMetrics.FLUSH_IN_PARALLEL, actionType));
+        final Map<Agent, Future<Void>> futures = new LinkedHashMap<Agent, Future<Void>>();
+        final Map<Agent, ReplicationResult> failures = new HashMap<Agent, ReplicationResult>();
+
+        final Map<Agent, AgentFlushTask> tasks = new HashMap<Agent, AgentFlushTask>();
+
+        for (final Agent agent : agents) {
+            final ResourceResolver clone;
+
+            try {
+                // JCR sessions are not thread-safe; clone on the calling thread, which owns the resource resolver
+                clone = resourceResolver.clone(null);
+            } catch (LoginException e) {
+                log.error("Could not flush agent [ {} ]: {}", agent.getId(), e.getMessage());
+                failures.put(agent, new ReplicationResult(false, 0, e.getMessage()));
+                continue;
+            }
+
+            final AgentFlushTask task = new AgentFlushTask(clone, actionType, agent, listener, flushPaths);
+
+            if (executor == null) {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    log.error("Could not flush agent [ {} ]: {}", agent.getId(), e.getMessage());
+                    failures.put(agent, new ReplicationResult(false, 0, e.getMessage()));
+                }
+            } else {
+                try {
+                    futures.put(agent, executor.submit(task));
+                    tasks.put(agent, task);
+                } catch (RejectedExecutionException e) {
+                    task.cancel();
+                    log.warn("Too many flushes queued; could not flush agent [ {} ]", agent.getId());
+                    failures.put(agent, new ReplicationResult(false, 0, "Too many flushes queued"));
+                }
+            }
+        }
+
+        final long deadline = System.currentTimeMillis() + this.parallelTimeout;
+
+        for (final Map.Entry<Agent, Future<Void>> entry : futures.entrySet()) {
+            final Agent agent = entry.getKey();
+
+            try {
+                entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                entry.getValue().cancel(true);
+                tasks.get(agent).cancel();
+                log.warn("Flush of agent [ {} ] did not complete within {} ms", agent.getId(), this.parallelTimeout);
+                failures.put(agent, new ReplicationResult(false, 0,
+                        "Timed out after " + this.parallelTimeout + " ms"));
+            } catch (ExecutionException e) {
+                log.error("Could not flush agent [ {} ]: {}", agent.getId(), e.getCause().getMessage());
+                failures.put(agent, new ReplicationResult(false, 0, e.getCause().getMessage()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                entry.getValue().cancel(true);
+                tasks.get(agent).cancel();
+                failures.put(agent, new ReplicationResult(false, 0, "Interrupted"));
+            }
+        }
+
+        // The result of each path and agent, by path and agent id
+        final Map<String, Map<String, ReplicationResult>> reported =
+                new HashMap<String, Map<String, ReplicationResult>>();
+
+        for (final ReplicationResultListener.Result result : listener.getAllResults()) {
+            if (result.getPath() == null || result.getAgent() == null) {
+                continue;
+            }
+
+            if (!reported.containsKey(result.getPath())) {
+                reported.put(result.getPath(), new HashMap<String, ReplicationResult>());
+            }
+
+            reported.get(result.getPath()).put(result.getAgent().getId(), result.getResult());
+        }
+
+        for (final String path : flushPaths) {
+            final Map<String, ReplicationResult> pathReported = reported.get(path);
+            final Map<Agent, ReplicationResult> pathResults = new LinkedHashMap<Agent, ReplicationResult>();
+
+            for (final Agent agent : agents) {
+                ReplicationResult result = pathReported == null ? null : pathReported.get(agent.getId());
+
+                if (result == null) {
+                    // Not flushed, as the flush of the agent failed before reaching this path
+                    result = failures.get(agent);
+                }
+
+                if (result != null) {
+                    pathResults.put(agent, result);
+                }
+            }
+
+            results.put(path, pathResults);
+        }
+
+        // Failures of an agent as a whole are not reported by the listener
+        this.recordResults(DispatcherFlushMetrics.FLUSH_IN_PARALLEL, actionType, null, failures);
+        metrics.recordLatency(DispatcherFlushMetrics.FLUSH_IN_PARALLEL, start);
+
+        return results;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final Map<String, Map<Agent, ReplicationResult>> flushDirectly(final ReplicationActionType actionType,
+                                                                          final AgentFilter agentFilter,
+                                                                          final String... paths) {
+        final long start = System.nanoTime();
+        final String[] flushPaths = this.reducePaths(agentFilter, paths);
+        final Map<String, Map<Agent, ReplicationResult>> results =
+                new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+        final Agent[] agents = this.getAgents(agentFilter);
+        final ExecutorService executor = this.parallelExecutor;
+        final DispatcherInvalidationClient client = this.invalidationClient;
+
+        if (agents.length == 0) {
+            log.debug("No flush agents targeted; skipping direct flush of [ {} ] paths", flushPaths.length);
+            return results;
+        }
+
+        final Map<String, Map<Agent, Future<ReplicationResult>>> futures =
+                new LinkedHashMap<String, Map<Agent, Future<ReplicationResult>>>();
+
+        for (final String path : flushPaths) {
+            results.put(path, new LinkedHashMap<Agent, ReplicationResult>());
+            futures.put(path, new LinkedHashMap<Agent, Future<ReplicationResult>>());
+
+            for (final Agent agent : agents) {
+                if (executor == null) {
+                    results.get(path).put(agent, invalidate(client, agent, actionType, path));
+                } else {
+                    try {
+                        futures.get(path).put(agent, executor.submit(new Callable<ReplicationResult>() {
+                            public ReplicationResult call() {
+                                return invalidate(client, agent, actionType, path);
+                            }
+                        }));
+                    } catch (RejectedExecutionException e) {
+                        // The queue is full; invalidate on the calling thread, which also holds back further
+                        // submissions until the flush threads catch up, rather than dropping the invalidation
+                        log.debug("Too many flushes queued; flushing [ {} ] via agent [ {} ] on the calling thread",
+                                path, agent.getId());
+                        results.get(path).put(agent, invalidate(client, agent, actionType, path));
+                    }
+                }
+            }
+        }
+
+        final long deadline = System.currentTimeMillis() + this.parallelTimeout;
+
+        for (final Map.Entry<String, Map<Agent, Future<ReplicationResult>>> pathFutures : futures.entrySet()) {
+            for (final Map.Entry<Agent, Future<ReplicationResult>> entry : pathFutures.getValue().entrySet()) {
+                ReplicationResult result;
+
+                try {
+                    result = entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()),
+                            TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    entry.getValue().cancel(true);
+                    result = new ReplicationResult(false, 0, "Timed out after " + this.parallelTimeout + " ms");
+                    this.recordResult(DispatcherFlushMetrics.FLUSH_DIRECTLY, actionType, pathFutures.getKey(),
+                            entry.getKey(), result, -1);
+                } catch (ExecutionException e) {
+                    result = new ReplicationResult(false, 0, e.getCause().getMessage());
+                    this.recordResult(DispatcherFlushMetrics.FLUSH_DIRECTLY, actionType, pathFutures.getKey(),
+                            entry.getKey(), result, -1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    entry.getValue().cancel(true);
+                    result = new ReplicationResult(false, 0, "Interrupted");
+                }
+
+                results.get(pathFutures.getKey()).put(entry.getKey(), result);
+            }
+        }
+
+        metrics.recordLatency(DispatcherFlushMetrics.FLUSH_DIRECTLY, start);
+
+        return results;
+    }
+
+    /**
+     * Invalidate the path via the agent's Dispatcher, recording the result.
+     *
+     * @param client the invalidation client
+     * @param agent the flush agent
+     * @param actionType the replication action type
+     * @param path the path to invalidate
+     * @return the result of the invalidation request
+     */
+    private ReplicationResult invalidate(final DispatcherInvalidationClient client, final Agent agent,
+                                         final ReplicationActionType actionType, final String path) {
+        final long start = System.nanoTime();
+        final ReplicationResult result = client.invalidate(agent, actionType, path);
+
+        this.recordResult(DispatcherFlushMetrics.FLUSH_DIRECTLY, actionType, path, agent, result,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        return result;
+    }
+
+    /**
+     * Invalidate the paths via the agent's Dispatcher over a single pipelined connection, recording the results.
+     *
+     * @param client the invalidation client
+     * @param agent the flush agent
+     * @param actionType the replication action type
+     * @param depth the maximum number of requests awaiting a response
+     * @param paths the paths to invalidate
+     * @return the paths and the results of their invalidation requests
+     */
+    private Map<String, ReplicationResult> invalidate(final DispatcherInvalidationClient client, final Agent agent,
+                                                      final ReplicationActionType actionType, final int depth,
+                                                      final String[] paths) {
+        final Map<String, ReplicationResult> results = client.invalidate(agent, actionType, depth, paths);
+
+        this.recordResults(DispatcherFlushMetrics.FLUSH_IN_BATCHES, actionType, agent, results);
+
+        return results;
+    }
+
+    /**
+     * Synchronously flush the paths via a single agent.
+     *
+     * @param resourceResolver the resource resolver; used only by the calling thread
+     * @param actionType the replication action type
+     * @param agent the agent to flush
+     * @param listener the listener collecting the results
+     * @param paths the paths to flush
+     * @throws ReplicationException if a path could not be flushed
+     */
+    private void flushAgent(final ResourceResolver resourceResolver, final ReplicationActionType actionType,
+                            final Agent agent, final ReplicationResultListener listener, final String... paths)
+            throws ReplicationException {
+        final ReplicationOptions options = new ReplicationOptions();
+
+        // The agent was selected by the agent filter, so the filter is not re-evaluated
+        options.setFilter(new AgentIdFilter(agent));
+        options.setSynchronous(true);
+        options.setSuppressStatusUpdate(true);
+        options.setSuppressVersions(true);
+        options.setListener(listener);
+
+        final Session session = resourceResolver.adaptTo(Session.class);
+
         for (final String path : paths) {
-            if (log.isDebugEnabled()) {
-                log.debug("--------------------------------------------------------------------------------");
-                log.debug("Issuing Dispatcher Flush (via AEM Replication API) request for: {}", path);
-                log.debug(" > Synchronous: {}", options.isSynchronous());
-                log.debug(" > Replication Action Type: {}", actionType.name());
+            log.debug("Issuing Dispatcher Flush (via AEM Replication API) request for [ {} ] to agent [ {} ]",
+                    path, agent.getId());
+
+            replicator.replicate(session, actionType, path, options);
+        }
+    }
+
+    /**
+     * Gets a listener callback recording each replication result in the flush metrics.
+     *
+     * @param operation the flush operation
+     * @param actionType the replication action type
+     * @return the callback
+     */
+    private ReplicationResultListener.Callback getMetricsCallback(final String operation,
+                                                                  final ReplicationActionType actionType) {
+        return new ReplicationResultListener.Callback() {
+            public void onResult(final ReplicationResultListener.Result result) {
+                recordResult(operation, actionType, result.getPath(), result.getAgent(), result.getResult(),
+                        result.getDuration());
             }
+        };
+    }
+
+    /**
+     * Record the results of flushing a path in the flush metrics.
+     *
+     * @param operation the flush operation
+     * @param actionType the replication action type
+     * @param path the flushed path; null if unknown
+     * @param agentResults the flush agents and their results
+     */
+    private void recordResults(final String operation, final ReplicationActionType actionType, final String path,
+                               final Map<Agent, ReplicationResult> agentResults) {
+        for (final Map.Entry<Agent, ReplicationResult> entry : agentResults.entrySet()) {
+            this.recordResult(operation, actionType, path, entry.getKey(), entry.getValue(), -1);
+        }
+    }
 
-            replicator.replicate(resourceResolver.adaptTo(Session.class),
-                    actionType, path, options);
+    /**
+     * Record the results of flushing paths via an agent in the flush metrics.
+     *
+     * @param operation the flush operation
+     * @param actionType the replication action type
+     * @param agent the flush agent
+     * @param pathResults the flushed paths and their results
+     */
+    private void recordResults(final String operation, final ReplicationActionType actionType, final Agent agent,
+                               final Map<String, ReplicationResult> pathResults) {
+        for (final Map.Entry<String, ReplicationResult> entry : pathResults.entrySet()) {
+            this.recordResult(operation, actionType, entry.getKey(), agent, entry.getValue(), -1);
         }
+    }
 
-        return listener.getResults();
+    private void recordResult(final String operation, final ReplicationActionType actionType, final String path,
+                              final Agent agent, final ReplicationResult result, final long duration) {
+        final String agentId = agent == null || agent.getId() == null ? "unknown" : agent.getId();
+
+        metrics.recordResult(operation, actionType, path, agentId, result, duration);
+    }
+
+    /**
+     * Remove the paths covered by the hierarchical flush of an ancestor, if the agent filter only targets
+     * Hierarchical agents; ResourceOnly agents do not invalidate the paths beneath the flushed path.
+     *
+     * @param agentFilter the agent filter of the flush
+     * @param paths the requested paths
+     * @return the paths to flush
+     */
+    private String[] reducePaths(final AgentFilter agentFilter, final String[] paths) {
+        if (paths == null
+                || !(agentFilter instanceof DispatcherFlushFilter)
+                || !DispatcherFlushFilter.FlushType.Hierarchical.equals(
+                        ((DispatcherFlushFilter) agentFilter).getFlushType())) {
+            return paths;
+        }
+
+        final String[] reduced = FlushPathReducer.reduce(paths);
+
+        if (reduced.length < paths.length) {
+            log.debug("Removed [ {} ] paths covered by hierarchical flushes of their ancestors",
+                    paths.length - reduced.length);
+            metrics.countDeduplicated(paths.length - reduced.length);
+        }
+
+        return reduced;
+    }
+
+    /**
+     * Gets the filter passed to the Replicator. DispatcherFlushFilters are resolved against the cached agent
+     * classification, so the Replicator does not re-evaluate every agent's configuration for each path.
+     * <p/>
+     * Flushes issued by the Dispatcher Flush Rules are passed their own filter, as the Flush Rules' preprocessor
+     * recognizes it to avoid re-applying the rules to their own flushes.
+     *
+     * @param agentFilter the agent filter of the flush
+     * @return the filter to set on the Replication Options
+     */
+    private AgentFilter getReplicationFilter(final AgentFilter agentFilter) {
+        if (agentFilter instanceof DispatcherFlushRulesImpl.DispatcherFlushRulesFilter) {
+            return agentFilter;
+        } else if (agentFilter instanceof DispatcherFlushFilter) {
+            return new AgentIdFilter(this.getAgents(agentFilter));
+        }
+
+        return agentFilter;
+    }
+
+    /**
+     * Gets the same failed ReplicationResult for each path.
+     *
+     * @param paths the flushed paths
+     * @param result the failed result
+     * @return a map of the paths and their failed replication results
+     */
+    private Map<String, ReplicationResult> toFailedResults(final String[] paths, final ReplicationResult result) {
+        final Map<String, ReplicationResult> failed = new LinkedHashMap<String, ReplicationResult>();
+
+        for (final String path : paths) {
+            failed.put(path, result);
+        }
+
+        return failed;
     }
 
     /**
@@ -123,6 +705,63 @@ public class DispatcherFlusherImpl implements DispatcherFlusher {
      * {@inheritDoc}
      */
     public final Agent[] getAgents(final AgentFilter agentFilter) {
+        if (agentFilter instanceof DispatcherFlushFilter) {
+            // DispatcherFlushFilter.isIncluded(..) is final, so sub-classes share the classification
+            return this.getAgentClassification().getAgents(((DispatcherFlushFilter) agentFilter).getFlushType());
+        }
+
+        return this.filterAgents(agentFilter);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final void handleEvent(final Event event) {
+        log.debug("Replication Agent configuration changed at [ {} ]; invalidating flush agent classification",
+                event.getProperty(SlingConstants.PROPERTY_PATH));
+
+        this.agentConfigVersion.incrementAndGet();
+    }
+
+    /**
+     * Gets the classification of the current agents, re-classifying them if the agent configurations or the number
+     * of agents changed since they were last classified.
+     *
+     * @return the agent classification
+     */
+    private AgentClassification getAgentClassification() {
+        final int version = this.agentConfigVersion.get();
+        final int agentCount = agentManager.getAgents().size();
+        final AgentClassification cached = this.agentClassification;
+
+        // Agents are registered with the Agent Manager asynchronously (ex. on start-up), without a resource event
+        if (cached != null && cached.version == version && cached.agentCount == agentCount) {
+            return cached;
+        }
+
+        final AgentClassification classification = new AgentClassification(version, agentCount,
+                this.filterAgents(DispatcherFlushFilter.ALL),
+                this.filterAgents(DispatcherFlushFilter.HIERARCHICAL),
+                this.filterAgents(DispatcherFlushFilter.RESOURCE_ONLY));
+
+        // A concurrent change bumps the version, so a stale classification is never used
+        this.agentClassification = classification;
+
+        log.debug("Classified flush agents; All: {}, Hierarchical: {}, ResourceOnly: {}",
+                new Object[]{ classification.all.length, classification.hierarchical.length,
+                        classification.resourceOnly.length });
+
+        return classification;
+    }
+
+    /**
+     * Evaluates the agent filter against every agent.
+     *
+     * @param agentFilter the agent filter
+     * @return the agents included by the filter
+     */
+    private Agent[] filterAgents(final AgentFilter agentFilter) {
         final List<Agent> flushAgents = new ArrayList<Agent>();
 
         for (final Agent agent : agentManager.getAgents().values()) {
@@ -132,6 +771,149 @@ public class DispatcherFlusherImpl implements DispatcherFlusher {
         }
         return flushAgents.toArray(new Agent[flushAgents.size()]);
     }
+
+    @Activate
+    protected final void activate(final Map<String, String> properties) {
+        this.batchSize = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_BATCH_SIZE), DEFAULT_BATCH_SIZE));
+
+        this.parallelTimeout = PropertiesUtil.toLong(properties.get(PROP_PARALLEL_TIMEOUT), DEFAULT_PARALLEL_TIMEOUT);
+
+        final int parallelThreads = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_PARALLEL_THREADS),
+                DEFAULT_PARALLEL_THREADS));
+        final int parallelQueueSize = Math.max(1, PropertiesUtil.toInteger(
+                properties.get(PROP_PARALLEL_QUEUE_SIZE), DEFAULT_PARALLEL_QUEUE_SIZE));
+
+        // Requests beyond the queue size are rejected, rather than delaying every later flush
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelThreads, parallelThreads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(parallelQueueSize), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "ACS AEM Commons - Dispatcher Flusher " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+
+        this.parallelExecutor = executor;
+
+        this.invalidationClient = new DispatcherInvalidationClient(
+                PropertiesUtil.toInteger(properties.get(PROP_DIRECT_CONNECT_TIMEOUT), DEFAULT_DIRECT_CONNECT_TIMEOUT),
+                PropertiesUtil.toInteger(properties.get(PROP_DIRECT_READ_TIMEOUT), DEFAULT_DIRECT_READ_TIMEOUT));
+
+        log.debug("Batch size: {}, parallel threads: {}, queue size: {}, timeout: {} ms",
+                new Object[]{ this.batchSize, parallelThreads, parallelQueueSize, this.parallelTimeout });
+    }
+
+    @Deactivate
+    protected final void deactivate(final Map<String, String> properties) {
+        if (this.parallelExecutor != null) {
+            this.parallelExecutor.shutdownNow();
+            this.parallelExecutor = null;
+        }
+    }
+
+    /* Flushes the paths via a single agent using a clone of the resource resolver, which it closes once done */
+    private final class AgentFlushTask implements Callable<Void> {
+        private final ResourceResolver clone;
+
+        private final ReplicationActionType actionType;
+
+        private final Agent agent;
+
+        private final ReplicationResultListener listener;
+
+        private final String[] paths;
+
+        /* Set by whichever of call() and cancel() runs first; the other does nothing */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private AgentFlushTask(final ResourceResolver clone, final ReplicationActionType actionType,
+                               final Agent agent, final ReplicationResultListener listener, final String[] paths) {
+            this.clone = clone;
+            this.actionType = actionType;
+            this.agent = agent;
+            this.listener = listener;
+            this.paths = paths;
+        }
+
+        public Void call() throws ReplicationException {
+            if (!this.claimed.compareAndSet(false, true)) {
+                return null;
+            }
+
+            try {
+                flushAgent(this.clone, this.actionType, this.agent, this.listener, this.paths);
+            } finally {
+                this.clone.close();
+            }
+
+            return null;
+        }
+
+        /* Close the clone if the task has not started; a running task closes it when done */
+        private void cancel() {
+            if (this.claimed.compareAndSet(false, true)) {
+                this.clone.close();
+            }
+        }
+    }
+
+    /* Includes only the agents with the given ids */
+    private static final class AgentIdFilter implements AgentFilter {
+        private final Set<String> agentIds = new HashSet<String>();
+
+        private AgentIdFilter(final Agent... agents) {
+            for (final Agent agent : agents) {
+                this.agentIds.add(agent.getId());
+            }
+        }
+
+        public boolean isIncluded(final Agent agent) {
+            return this.agentIds.contains(agent.getId());
+        }
+    }
+
+    /* Flush agents by flush type, as of a version of the agent configurations */
+    private static final class AgentClassification {
+        private final int version;
+
+        private final int agentCount;
+
+        private final Agent[] all;
+
+        private final Agent[] hierarchical;
+
+        private final Agent[] resourceOnly;
+
+        private AgentClassification(final int version, final int agentCount, final Agent[] all,
+                                    final Agent[] hierarchical, final Agent[] resourceOnly) {
+            this.version = version;
+            this.agentCount = agentCount;
+            this.all = all;
+            this.hierarchical = hierarchical;
+            this.resourceOnly = resourceOnly;
+        }
+
+        private Agent[] getAgents(final DispatcherFlushFilter.FlushType flushType) {
+            final Agent[] agents;
+
+            if (DispatcherFlushFilter.FlushType.All.equals(flushType)) {
+                agents = this.all;
+            } else if (DispatcherFlushFilter.FlushType.Hierarchical.equals(flushType)) {
+                agents = this.hierarchical;
+            } else if (DispatcherFlushFilter.FlushType.ResourceOnly.equals(flushType)) {
+                agents = this.resourceOnly;
+            } else {
+                agents = new Agent[0];
+            }
+
+            // Callers may modify the returned array
+            return agents.clone();
+        }
+    }
 }
 
 
@@ -19,18 +19,21 @@
  */
 package com.adobe.acs.commons.replication.dispatcher.impl;
 
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
 import com.day.cq.replication.Agent;
 import com.day.cq.replication.ReplicationActionType;
-import com.day.cq.replication.ReplicationException;
 import com.day.cq.replication.ReplicationResult;
 import com.day.cq.wcm.api.Page;
 import com.day.cq.wcm.api.PageManager;
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceUtil;
@@ -38,21 +41,77 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 @SuppressWarnings("serial")
 @SlingServlet(resourceTypes = "acs-commons/components/utilities/dispatcher-flush/configuration",
-        selectors = "flush", methods = "POST")
+        selectors = "flush", methods = { "GET", "POST" })
 public class DispatcherFlusherServlet extends SlingAllMethodsServlet {
+    private static final Logger log = LoggerFactory.getLogger(DispatcherFlusherServlet.class);
+
+    /* Request parameter selecting how the flush is run; by default the results are reported once all paths flushed */
+    private static final String PARAM_MODE = "mode";
+
+    /* Streams the results of each path as a chunked JSON response as it is flushed */
+    private static final String MODE_STREAM = "stream";
+
+    /* Flushes in the background; the job status is polled with GET ?job=<id> by the user who submitted the job */
+    private static final String MODE_JOB = "job";
+
+    private static final String PARAM_JOB = "job";
+
+    /* Maximum number of jobs retained; new jobs are rejected while this many are queued or running */
+    static final int MAX_JOBS = 20;
+
+    /* Number of paths flushed together by stream and job flushes; results are sent once each chunk is flushed */
+    static final int CHUNK_SIZE = 100;
 
     @Reference
     private DispatcherFlusher dispatcherFlusher;
 
+    private final Map<String, FlushJob> jobs = new LinkedHashMap<String, FlushJob>();
+
+    private ExecutorService jobExecutor = null;
+
+    @Override
+    protected final void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        final String jobId = request.getParameter(PARAM_JOB);
+        final FlushJob job;
+
+        synchronized (this.jobs) {
+            job = jobId == null ? null : this.jobs.get(jobId);
+        }
+
+        // Jobs of other users are not found
+        if (job == null || !job.isSubmittedBy(request.getResourceResolver().getUserID())) {
+            response.sendError(SlingHttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        try {
+            job.write(new JSONWriter(response.getWriter()));
+        } catch (JSONException e) {
+            throw new ServletException("Unable to output JSON data", e);
+        }
+    }
+
     @Override
     protected final void doPost(SlingHttpServletRequest request, SlingHttpServletResponse response)
             throws ServletException, IOException {
@@ -68,23 +127,33 @@ public class DispatcherFlusherServlet extends SlingAllMethodsServlet {
         final ReplicationActionType replicationActionType = ReplicationActionType.valueOf(properties.get(
                 "replicationActionType", ReplicationActionType.ACTIVATE.name()));
 
+        final String mode = request.getParameter(PARAM_MODE);
+
+        if (MODE_STREAM.equals(mode)) {
+            this.streamFlush(resourceResolver, replicationActionType, paths, response);
+            return;
+        } else if (MODE_JOB.equals(mode)) {
+            this.startJob(resourceResolver, replicationActionType, paths, response);
+            return;
+        }
+
         final List<FlushResult> overallResults = new ArrayList<FlushResult>();
-        boolean caughtException = false;
+        boolean replicationError = false;
 
-        try {
-            if (paths.length > 0) {
-                final Map<Agent, ReplicationResult> results = dispatcherFlusher.flush(resourceResolver,
-                        replicationActionType, true, paths);
+        if (paths.length > 0) {
+            // Flush each agent concurrently, so one slow Dispatcher does not delay the others
+            final Map<Agent, ReplicationResult> results = getAgentResults(dispatcherFlusher.flushInParallel(
+                    resourceResolver, replicationActionType, DispatcherFlushFilter.HIERARCHICAL, paths));
 
-                for (final Map.Entry<Agent, ReplicationResult> entry : results.entrySet()) {
-                    final Agent agent = entry.getKey();
-                    final ReplicationResult result = entry.getValue();
+            for (final Map.Entry<Agent, ReplicationResult> entry : results.entrySet()) {
+                final Agent agent = entry.getKey();
+                final ReplicationResult result = entry.getValue();
 
-                    overallResults.add(new FlushResult(agent, result));
-                }
+                // Failed without a response from the Dispatcher (ex. replication exception or timeout)
+                replicationError |= !result.isSuccess() && result.getCode() == 0;
+
+                overallResults.add(new FlushResult(agent, result));
             }
-        } catch (ReplicationException ex) {
-            caughtException = true;
         }
 
         if (request.getRequestPathInfo().getExtension().equals("json")) {
@@ -102,7 +171,7 @@ public class DispatcherFlusherServlet extends SlingAllMethodsServlet {
             }
         } else {
             String suffix;
-            if (caughtException) {
+            if (replicationError) {
                 suffix = "replication-error";
             } else {
                 suffix = StringUtils.join(overallResults, '/');
@@ -112,6 +181,210 @@ public class DispatcherFlusherServlet extends SlingAllMethodsServlet {
         }
     }
 
+    /**
+     * Gets the result of each agent over all paths; the first unsuccessful result of an agent, so a failed path is not
+     * masked by later paths.
+     *
+     * @param pathResults the flushed paths, and the targeted flush agents and their results
+     * @return the targeted flush agents and their results
+     */
+    static Map<Agent, ReplicationResult> getAgentResults(
+            final Map<String, Map<Agent, ReplicationResult>> pathResults) {
+        final Map<Agent, ReplicationResult> results = new LinkedHashMap<Agent, ReplicationResult>();
+
+        for (final Map<Agent, ReplicationResult> agentResults : pathResults.values()) {
+            for (final Map.Entry<Agent, ReplicationResult> entry : agentResults.entrySet()) {
+                final ReplicationResult previous = results.get(entry.getKey());
+
+                if (previous == null || previous.isSuccess()) {
+                    results.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Flush the paths a chunk at a time, writing the results of each path and agent to the response as soon as its
+     * chunk is flushed.
+     *
+     * @param resourceResolver the requesting user's resource resolver
+     * @param replicationActionType the replication action type of the flush
+     * @param paths the paths to flush
+     * @param response the response
+     * @throws ServletException
+     * @throws IOException
+     */
+    private void streamFlush(final ResourceResolver resourceResolver, final ReplicationActionType replicationActionType,
+                             final String[] paths, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        final JSONWriter writer = new JSONWriter(response.getWriter());
+
+        try {
+            writer.object();
+            writer.key("results");
+            writer.array();
+
+            for (final String[] chunk : getChunks(paths)) {
+                final Map<String, Map<Agent, ReplicationResult>> results = dispatcherFlusher.flushInParallel(
+                        resourceResolver, replicationActionType, DispatcherFlushFilter.HIERARCHICAL, chunk);
+
+                for (final Map.Entry<String, Map<Agent, ReplicationResult>> entry : results.entrySet()) {
+                    FlushJob.writeResults(writer, entry.getKey(), entry.getValue());
+                }
+
+                // Send the results of this chunk of paths
+                response.flushBuffer();
+            }
+
+            writer.endArray();
+            writer.key("complete").value(true);
+            writer.endObject();
+        } catch (JSONException e) {
+            throw new ServletException("Unable to output JSON data", e);
+        }
+    }
+
+    /**
+     * Start flushing the paths in the background, responding with the id of the job to poll.
+     *
+     * @param resourceResolver the requesting user's resource resolver; cloned for use by the job
+     * @param replicationActionType the replication action type of the flush
+     * @param paths the paths to flush
+     * @param response the response
+     * @throws ServletException
+     * @throws IOException
+     */
+    private void startJob(final ResourceResolver resourceResolver, final ReplicationActionType replicationActionType,
+                          final String[] paths, final SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        final ExecutorService executor = this.jobExecutor;
+
+        if (executor == null) {
+            response.sendError(SlingHttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        final List<String[]> chunks = getChunks(paths);
+        int total = 0;
+
+        for (final String[] chunk : chunks) {
+            total += chunk.length;
+        }
+
+        final FlushJob job = new FlushJob(total, resourceResolver.getUserID());
+        boolean accepted = false;
+
+        synchronized (this.jobs) {
+            // Make room by evicting the oldest finished jobs; queued and running jobs are never evicted
+            final Iterator<FlushJob> iterator = this.jobs.values().iterator();
+            while (this.jobs.size() >= MAX_JOBS && iterator.hasNext()) {
+                if (iterator.next().isDone()) {
+                    iterator.remove();
+                }
+            }
+
+            if (this.jobs.size() < MAX_JOBS) {
+                this.jobs.put(job.getId(), job);
+                accepted = true;
+            }
+        }
+
+        if (!accepted) {
+            log.warn("Rejected Dispatcher flush job; [ {} ] jobs are already queued or running", MAX_JOBS);
+            response.sendError(SlingHttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        final ResourceResolver jobResourceResolver;
+
+        try {
+            // The request's resource resolver is closed when the request completes
+            jobResourceResolver = resourceResolver.clone(null);
+        } catch (LoginException e) {
+            synchronized (this.jobs) {
+                this.jobs.remove(job.getId());
+            }
+
+            throw new ServletException("Unable to start Dispatcher flush job", e);
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                job.start();
+
+                try {
+                    for (final String[] chunk : chunks) {
+                        job.addResults(dispatcherFlusher.flushInParallel(jobResourceResolver,
+                                replicationActionType, DispatcherFlushFilter.HIERARCHICAL, chunk));
+                    }
+
+                    job.complete();
+                } catch (RuntimeException e) {
+                    log.error("Dispatcher flush job [ " + job.getId() + " ] failed", e);
+                    job.fail(e.getMessage());
+                } finally {
+                    jobResourceResolver.close();
+                }
+            }
+        });
+
+        response.setStatus(SlingHttpServletResponse.SC_ACCEPTED);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        try {
+            job.write(new JSONWriter(response.getWriter()));
+        } catch (JSONException e) {
+            throw new ServletException("Unable to output JSON data", e);
+        }
+    }
+
+    /**
+     * Split the paths into the chunks flushed together. Paths covered by the hierarchical flush of another path are
+     * removed first, so they are removed across chunks.
+     *
+     * @param paths the paths to flush
+     * @return the chunks of paths to flush
+     */
+    static List<String[]> getChunks(final String[] paths) {
+        final String[] flushPaths = FlushPathReducer.reduce(paths);
+        final List<String[]> chunks = new ArrayList<String[]>();
+
+        for (int offset = 0; offset < flushPaths.length; offset += CHUNK_SIZE) {
+            chunks.add(Arrays.copyOfRange(flushPaths, offset, Math.min(offset + CHUNK_SIZE, flushPaths.length)));
+        }
+
+        return chunks;
+    }
+
+    @Activate
+    protected final void activate(final Map<String, String> properties) {
+        this.jobExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ACS AEM Commons - Dispatcher Flush Job");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Deactivate
+    protected final void deactivate(final Map<String, String> properties) {
+        if (this.jobExecutor != null) {
+            this.jobExecutor.shutdownNow();
+            this.jobExecutor = null;
+        }
+
+        synchronized (this.jobs) {
+            this.jobs.clear();
+        }
+    }
+
     private final class FlushResult {
 
         private FlushResult(Agent agent, ReplicationResult result) {
@@ -0,0 +1,487 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Issues Dispatcher cache invalidation requests directly to a flush agent's transport URI, bypassing the
+ * replication queue.
+ *
+ * Requests carry the agent's configured HTTP headers (ex. CQ-Action, CQ-Handle, CQ-Action-Scope) with the
+ * {action} and {path} placeholders resolved. Responses are fully consumed so the JVM's HTTP keep-alive cache can
+ * reuse connections to each Dispatcher.
+ *
+ * Many paths may also be invalidated over a single pipelined connection to the Dispatcher, which sends the next
+ * requests without waiting for the responses to the previous ones.
+ */
+public final class DispatcherInvalidationClient {
+    private static final Logger log = LoggerFactory.getLogger(DispatcherInvalidationClient.class);
+
+    private static final String ACTION_PLACEHOLDER = "{action}";
+
+    private static final String PATH_PLACEHOLDER = "{path}";
+
+    private static final String HTTP_CHARSET = "ISO-8859-1";
+
+    private static final String CRLF = "\r\n";
+
+    private final int connectTimeout;
+
+    private final int readTimeout;
+
+    /**
+     * @param connectTimeout milliseconds to wait to connect to a Dispatcher
+     * @param readTimeout milliseconds to wait for a Dispatcher's response
+     */
+    public DispatcherInvalidationClient(final int connectTimeout, final int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Invalidate the path in the cache of the agent's Dispatcher.
+     *
+     * @param agent the flush agent
+     * @param actionType the replication action type; sent as the CQ-Action
+     * @param path the path to invalidate
+     * @return the result of the invalidation request; successful if the Dispatcher responded with 200
+     */
+    public ReplicationResult invalidate(final Agent agent, final ReplicationActionType actionType,
+                                        final String path) {
+        final AgentConfig config = agent.getConfiguration();
+        HttpURLConnection connection = null;
+
+        try {
+            connection = (HttpURLConnection) new URL(config.getTransportURI()).openConnection();
+
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(this.connectTimeout);
+            connection.setReadTimeout(this.readTimeout);
+            connection.setUseCaches(false);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(0);
+
+            for (final Map.Entry<String, String> header : getHeaders(config, actionType, path).entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            connection.getOutputStream().close();
+
+            final int code = connection.getResponseCode();
+            final String message = connection.getResponseMessage();
+
+            consume(code < HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getInputStream() : connection.getErrorStream());
+
+            log.debug("Dispatcher invalidation of [ {} ] via agent [ {} ] responded with {}",
+                    new Object[]{ path, agent.getId(), code });
+
+            return new ReplicationResult(code == HttpURLConnection.HTTP_OK, code, message);
+        } catch (IOException e) {
+            log.error("Could not invalidate [ {} ] via agent [ {} ]: {}",
+                    new Object[]{ path, agent.getId(), e.getMessage() });
+
+            if (connection != null) {
+                // Do not return a broken connection to the keep-alive cache
+                connection.disconnect();
+            }
+
+            return new ReplicationResult(false, 0, e.getMessage());
+        }
+    }
+
+    /**
+     * Invalidate the paths in the cache of the agent's Dispatcher over a single pipelined connection.
+     * <p/>
+     * Up to pipelineDepth requests are sent ahead of their responses. If the Dispatcher closes the connection after
+     * responding to some of the requests, the unanswered requests are sent over a new connection; if it fails before
+     * responding to any, the remaining paths are reported as failed.
+     *
+     * @param agent the flush agent
+     * @param actionType the replication action type; sent as the CQ-Action
+     * @param pipelineDepth the maximum number of requests awaiting a response
+     * @param paths the paths to invalidate
+     * @return the paths and the results of their invalidation requests, in the order of the paths
+     */
+    public Map<String, ReplicationResult> invalidate(final Agent agent, final ReplicationActionType actionType,
+                                                     final int pipelineDepth, final String... paths) {
+        final Map<String, ReplicationResult> results = new LinkedHashMap<String, ReplicationResult>();
+        final LinkedList<String> pending = new LinkedList<String>();
+
+        for (final String path : paths) {
+            pending.add(path);
+        }
+
+        while (!pending.isEmpty()) {
+            final LinkedList<String> inFlight = new LinkedList<String>();
+            int responses = 0;
+            Socket socket = null;
+
+            try {
+                final URL url = new URL(agent.getConfiguration().getTransportURI());
+
+                socket = this.connect(url);
+
+                final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                final InputStream in = new BufferedInputStream(socket.getInputStream());
+                boolean open = true;
+
+                while (open && (!pending.isEmpty() || !inFlight.isEmpty())) {
+                    while (!pending.isEmpty() && inFlight.size() < Math.max(1, pipelineDepth)) {
+                        final String path = pending.removeFirst();
+
+                        out.write(getRequest(agent.getConfiguration(), url, actionType, path));
+                        inFlight.add(path);
+                    }
+
+                    out.flush();
+
+                    final Response response = readResponse(in);
+                    final String path = inFlight.removeFirst();
+
+                    responses++;
+                    open = !response.closed;
+
+                    log.debug("Dispatcher invalidation of [ {} ] via agent [ {} ] responded with {}",
+                            new Object[]{ path, agent.getId(), response.code });
+
+                    results.put(path, new ReplicationResult(response.code == HttpURLConnection.HTTP_OK,
+                            response.code, response.message));
+                }
+
+                // Closed by the Dispatcher; send the unanswered requests again over a new connection
+                pending.addAll(0, inFlight);
+            } catch (IOException e) {
+                pending.addAll(0, inFlight);
+
+                if (responses > 0) {
+                    log.debug("Connection to agent [ {} ] lost after {} responses; reconnecting: {}",
+                            new Object[]{ agent.getId(), responses, e.getMessage() });
+                } else {
+                    log.error("Could not invalidate [ {} ] paths via agent [ {} ]: {}",
+                            new Object[]{ pending.size(), agent.getId(), e.getMessage() });
+
+                    final ReplicationResult failed = new ReplicationResult(false, 0, e.getMessage());
+
+                    for (final String path : pending) {
+                        results.put(path, failed);
+                    }
+
+                    pending.clear();
+                }
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        log.debug("Could not close connection to agent [ {} ]: {}", agent.getId(), e.getMessage());
+                    }
+                }
+            }
+        }
+
+        // Keep the order of the paths
+        final Map<String, ReplicationResult> ordered = new LinkedHashMap<String, ReplicationResult>();
+
+        for (final String path : paths) {
+            ordered.put(path, results.get(path));
+        }
+
+        return ordered;
+    }
+
+    /**
+     * Opens a connection to the host of the URL.
+     *
+     * @param url the transport URI of the flush agent
+     * @return the connected socket
+     * @throws IOException if the connection could not be opened
+     */
+    private Socket connect(final URL url) throws IOException {
+        final boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        final int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+        final Socket socket = new Socket();
+
+        try {
+            socket.connect(new InetSocketAddress(url.getHost(), port), this.connectTimeout);
+            socket.setSoTimeout(this.readTimeout);
+
+            if (secure) {
+                return ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, url.getHost(), port,
+                        true);
+            }
+
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the bytes of the invalidation request of the path.
+     *
+     * @param config the flush agent's configuration
+     * @param url the transport URI of the flush agent
+     * @param actionType the replication action type
+     * @param path the path to invalidate
+     * @return the HTTP/1.1 request
+     * @throws IOException if the request could not be encoded
+     */
+    static byte[] getRequest(final AgentConfig config, final URL url, final ReplicationActionType actionType,
+                             final String path) throws IOException {
+        final StringBuilder request = new StringBuilder();
+        final String file = url.getFile().length() == 0 ? "/" : url.getFile();
+
+        request.append("POST ").append(file).append(" HTTP/1.1").append(CRLF);
+        request.append("Host: ").append(url.getHost());
+
+        if (url.getPort() >= 0) {
+            request.append(':').append(url.getPort());
+        }
+
+        request.append(CRLF);
+
+        for (final Map.Entry<String, String> header : getHeaders(config, actionType, path).entrySet()) {
+            request.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+        }
+
+        request.append("Content-Length: 0").append(CRLF).append(CRLF);
+
+        return request.toString().getBytes(HTTP_CHARSET);
+    }
+
+    /**
+     * Reads the next final (non 1xx) response from the connection, consuming its body.
+     *
+     * @param in the input stream of the connection
+     * @return the response
+     * @throws IOException if the response could not be read
+     */
+    static Response readResponse(final InputStream in) throws IOException {
+        while (true) {
+            final String statusLine = readLine(in);
+            final String[] status = statusLine.split(" ", 3);
+
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid HTTP status line: " + statusLine);
+            }
+
+            final int code;
+
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid HTTP status line: " + statusLine);
+            }
+
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean closed = "HTTP/1.0".equals(status[0]);
+
+            for (String header = readLine(in); header.length() > 0; header = readLine(in)) {
+                final int colon = header.indexOf(':');
+
+                if (colon <= 0) {
+                    continue;
+                }
+
+                final String name = header.substring(0, colon).trim();
+                final String value = header.substring(colon + 1).trim().toLowerCase(Locale.ENGLISH);
+
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid Content-Length: " + value);
+                    }
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                    chunked = value.contains("chunked");
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    closed = value.contains("close") || (closed && !value.contains("keep-alive"));
+                }
+            }
+
+            if (code >= 100 && code < 200) {
+                // Interim response; the final response follows
+                continue;
+            }
+
+            if (code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // No body
+            } else if (chunked) {
+                for (long size = readChunkSize(in); size > 0; size = readChunkSize(in)) {
+                    skip(in, size);
+                    readLine(in);
+                }
+
+                // Trailers
+                for (String trailer = readLine(in); trailer.length() > 0; trailer = readLine(in)) {
+                    continue;
+                }
+            } else if (contentLength >= 0) {
+                skip(in, contentLength);
+            } else {
+                // The body ends with the connection
+                consume(in);
+                closed = true;
+            }
+
+            return new Response(code, status.length > 2 ? status[2] : "", closed);
+        }
+    }
+
+    private static long readChunkSize(final InputStream in) throws IOException {
+        final String line = readLine(in);
+        final int extension = line.indexOf(';');
+
+        try {
+            return Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + line);
+        }
+    }
+
+    private static String readLine(final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                throw new EOFException("Connection closed by the Dispatcher");
+            } else if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        return line.toString(HTTP_CHARSET);
+    }
+
+    private static void skip(final InputStream in, final long length) throws IOException {
+        long remaining = length;
+
+        while (remaining > 0) {
+            final long skipped = in.skip(remaining);
+
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Connection closed by the Dispatcher");
+                }
+
+                remaining--;
+            } else {
+                remaining -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Gets the agent's configured HTTP headers for the invalidation of the path.
+     *
+     * @param config the flush agent's configuration
+     * @param actionType the replication action type
+     * @param path the path to invalidate
+     * @return the header names and resolved values, in configured order
+     */
+    static Map<String, String> getHeaders(final AgentConfig config, final ReplicationActionType actionType,
+                                          final String path) {
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        final String[] configured = config.getProperties().get(AgentConfig.PROTOCOL_HTTP_HEADERS, new String[]{});
+
+        for (final String header : configured) {
+            final int colon = header == null ? -1 : header.indexOf(':');
+
+            if (colon <= 0) {
+                continue;
+            }
+
+            String value = StringUtils.trim(header.substring(colon + 1));
+            value = StringUtils.replace(value, ACTION_PLACEHOLDER, actionType.getName());
+            value = StringUtils.replace(value, PATH_PLACEHOLDER, path);
+
+            headers.put(StringUtils.trim(header.substring(0, colon)), value);
+        }
+
+        return headers;
+    }
+
+    /* Status of a response read from a pipelined connection */
+    static final class Response {
+        private final int code;
+
+        private final String message;
+
+        /* The Dispatcher closes the connection after this response */
+        private final boolean closed;
+
+        private Response(final int code, final String message, final boolean closed) {
+            this.code = code;
+            this.message = message;
+            this.closed = closed;
+        }
+
+        int getCode() {
+            return this.code;
+        }
+
+        boolean isClosed() {
+            return this.closed;
+        }
+    }
+
+    private static void consume(final InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            return;
+        }
+
+        try {
+            final byte[] buffer = new byte[1024];
+            while (inputStream.read(buffer) >= 0) {
+                // Drain the response so the connection can be reused
+            }
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+}
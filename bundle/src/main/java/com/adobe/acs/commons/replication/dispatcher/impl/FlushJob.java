@@ -0,0 +1,223 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Status of a Dispatcher flush run in the background by the DispatcherFlusherServlet.
+ *
+ * Results are reported per path and agent. A job belongs to the user who submitted it.
+ */
+public final class FlushJob {
+    /**
+     * Lifecycle of a flush job.
+     */
+    public static enum State {
+        QUEUED,
+        RUNNING,
+        COMPLETE,
+        FAILED
+    }
+
+    private final String id = UUID.randomUUID().toString();
+
+    private final int total;
+
+    private final String userId;
+
+    private final Map<String, Map<Agent, ReplicationResult>> results =
+            new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+
+    private State state = State.QUEUED;
+
+    private int completed = 0;
+
+    private int failed = 0;
+
+    private String message = null;
+
+    /**
+     * @param total the number of paths to flush
+     * @param userId the id of the user who submitted the job
+     */
+    public FlushJob(final int total, final String userId) {
+        this.total = total;
+        this.userId = userId;
+    }
+
+    /**
+     * @return the unique id of the job
+     */
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * @param user the id of a user
+     * @return true if the job was submitted by the user
+     */
+    public boolean isSubmittedBy(final String user) {
+        return this.userId == null ? user == null : this.userId.equals(user);
+    }
+
+    /**
+     * @return the current state of the job
+     */
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    /**
+     * @return true if the job has completed or failed
+     */
+    public synchronized boolean isDone() {
+        return State.COMPLETE.equals(this.state) || State.FAILED.equals(this.state);
+    }
+
+    /**
+     * Mark the job as running.
+     */
+    public synchronized void start() {
+        this.state = State.RUNNING;
+    }
+
+    /**
+     * Record the results of flushing paths.
+     *
+     * @param pathResults the flushed paths, and the targeted flush agents and their results
+     */
+    public synchronized void addResults(final Map<String, Map<Agent, ReplicationResult>> pathResults) {
+        for (final Map.Entry<String, Map<Agent, ReplicationResult>> entry : pathResults.entrySet()) {
+            this.results.put(entry.getKey(), entry.getValue());
+            this.completed++;
+
+            if (!isSuccess(entry.getValue())) {
+                this.failed++;
+            }
+        }
+    }
+
+    /**
+     * @return the number of paths flushed so far
+     */
+    public synchronized int getCompletedCount() {
+        return this.completed;
+    }
+
+    /**
+     * @return the number of paths flushed so far which an agent failed to flush
+     */
+    public synchronized int getFailedCount() {
+        return this.failed;
+    }
+
+    /**
+     * Mark the job as complete.
+     */
+    public synchronized void complete() {
+        this.state = State.COMPLETE;
+    }
+
+    /**
+     * Mark the job as failed.
+     *
+     * @param failureMessage the cause of the failure
+     */
+    public synchronized void fail(final String failureMessage) {
+        this.state = State.FAILED;
+        this.message = failureMessage;
+    }
+
+    /**
+     * Write the status of the job as a JSON object.
+     *
+     * @param writer the JSON writer
+     * @throws JSONException
+     */
+    public synchronized void write(final JSONWriter writer) throws JSONException {
+        writer.object();
+        writer.key("id").value(this.id);
+        writer.key("state").value(this.state.name());
+        writer.key("total").value(this.total);
+        writer.key("completed").value(this.completed);
+        writer.key("failed").value(this.failed);
+
+        if (this.message != null) {
+            writer.key("message").value(this.message);
+        }
+
+        writer.key("results");
+        writer.array();
+
+        for (final Map.Entry<String, Map<Agent, ReplicationResult>> entry : this.results.entrySet()) {
+            writeResults(writer, entry.getKey(), entry.getValue());
+        }
+
+        writer.endArray();
+        writer.endObject();
+    }
+
+    /**
+     * Write the results of flushing a path as a JSON object.
+     *
+     * @param writer the JSON writer
+     * @param path the flushed path
+     * @param agentResults the targeted flush agents and their results
+     * @throws JSONException
+     */
+    public static void writeResults(final JSONWriter writer, final String path,
+                                    final Map<Agent, ReplicationResult> agentResults) throws JSONException {
+        writer.object();
+        writer.key("path").value(path);
+        writer.key("success").value(isSuccess(agentResults));
+        writer.key("agents");
+        writer.object();
+
+        for (final Map.Entry<Agent, ReplicationResult> entry : agentResults.entrySet()) {
+            writer.key(entry.getKey().getId());
+            writer.object();
+            writer.key("success").value(entry.getValue().isSuccess());
+            writer.key("code").value(entry.getValue().getCode());
+            writer.key("message").value(entry.getValue().getMessage());
+            writer.endObject();
+        }
+
+        writer.endObject();
+        writer.endObject();
+    }
+
+    private static boolean isSuccess(final Map<Agent, ReplicationResult> agentResults) {
+        for (final ReplicationResult result : agentResults.values()) {
+            if (!result.isSuccess()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
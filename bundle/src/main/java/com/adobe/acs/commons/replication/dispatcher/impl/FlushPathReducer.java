@@ -0,0 +1,87 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Removes the flush paths already covered by a hierarchical flush of another path.
+ *
+ * A hierarchical Dispatcher invalidation of /content/a also invalidates /content/a/b, so flushing both is redundant.
+ */
+public final class FlushPathReducer {
+    private FlushPathReducer() {
+    }
+
+    /**
+     * Remove the duplicate paths and the paths beneath another path.
+     *
+     * @param paths the paths to reduce
+     * @return the remaining paths, in the order of their first occurrence
+     */
+    public static String[] reduce(final String... paths) {
+        final Set<String> sorted = new TreeSet<String>();
+
+        for (final String path : paths) {
+            if (path != null) {
+                sorted.add(path);
+            }
+        }
+
+        final Set<String> emitted = new TreeSet<String>();
+        final List<String> reduced = new ArrayList<String>(sorted.size());
+
+        for (final String path : paths) {
+            if (path != null && !isCovered(path, sorted) && emitted.add(path)) {
+                reduced.add(path);
+            }
+        }
+
+        return reduced.toArray(new String[reduced.size()]);
+    }
+
+    /**
+     * Checks if an ancestor of the path is in the set of paths.
+     *
+     * @param path the path
+     * @param paths the paths
+     * @return true if an ancestor of the path is in the set of paths
+     */
+    static boolean isCovered(final String path, final Set<String> paths) {
+        if (!"/".equals(path) && paths.contains("/")) {
+            return true;
+        }
+
+        int end = path.lastIndexOf('/');
+
+        while (end > 0) {
+            if (paths.contains(path.substring(0, end))) {
+                return true;
+            }
+
+            end = path.lastIndexOf('/', end - 1);
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable index of flush rules, bucketed by the literal path prefix of each rule's pattern.
+ *
+ * Only the rules whose literal prefix is a prefix of the replicated path are evaluated; rules without a usable
+ * literal prefix (ex. ".*", alternations or flags) are always evaluated. Matching rules are returned in their
+ * configured order.
+ */
+public final class FlushRuleIndex {
+    private static final String META_CHARACTERS = ".[]{}()*+?^$|";
+
+    private static final int[] NO_RULES = new int[0];
+
+    private final Rule[] rules;
+
+    private final Map<String, int[]> buckets;
+
+    private final int[] unbucketed;
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    private final AtomicLong evaluations = new AtomicLong();
+
+    /**
+     * @param flushRules the ordered pattern to flush path rules
+     */
+    public FlushRuleIndex(final Map<Pattern, String> flushRules) {
+        final Map<String, List<Integer>> tmp = new HashMap<String, List<Integer>>();
+
+        this.rules = new Rule[flushRules.size()];
+
+        int i = 0;
+        for (final Map.Entry<Pattern, String> entry : flushRules.entrySet()) {
+            this.rules[i] = new Rule(entry.getKey(), entry.getValue());
+
+            final String prefix = getLiteralPrefix(entry.getKey());
+            final String bucket = prefix.substring(0, prefix.lastIndexOf('/') + 1);
+
+            List<Integer> indexes = tmp.get(bucket);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                tmp.put(bucket, indexes);
+            }
+
+            indexes.add(i++);
+        }
+
+        this.buckets = new HashMap<String, int[]>();
+
+        for (final Map.Entry<String, List<Integer>> entry : tmp.entrySet()) {
+            final int[] indexes = new int[entry.getValue().size()];
+
+            for (int j = 0; j < indexes.length; j++) {
+                indexes[j] = entry.getValue().get(j);
+            }
+
+            this.buckets.put(entry.getKey(), indexes);
+        }
+
+        final int[] empty = this.buckets.remove("");
+        this.unbucketed = empty == null ? NO_RULES : empty;
+    }
+
+    /**
+     * Gets the flush paths of all rules whose pattern matches the path, counting the match of each rule.
+     *
+     * @param path the replicated path
+     * @return the flush paths of the matching rules, in configured order
+     */
+    public List<String> getFlushPaths(final String path) {
+        this.lookups.incrementAndGet();
+
+        int[] candidates = this.unbucketed;
+
+        if (!this.buckets.isEmpty()) {
+            int slash = path.indexOf('/');
+
+            while (slash >= 0) {
+                final int[] bucket = this.buckets.get(path.substring(0, slash + 1));
+
+                if (bucket != null) {
+                    candidates = concat(candidates, bucket);
+                }
+
+                slash = path.indexOf('/', slash + 1);
+            }
+        }
+
+        if (candidates.length == 0) {
+            return new ArrayList<String>();
+        }
+
+        if (candidates != this.unbucketed) {
+            // Each rule is in exactly one bucket; restore configured order
+            Arrays.sort(candidates);
+        }
+
+        this.evaluations.addAndGet(candidates.length);
+
+        final List<String> flushPaths = new ArrayList<String>();
+
+        for (final int candidate : candidates) {
+            final Rule rule = this.rules[candidate];
+
+            if (rule.pattern.matcher(path).matches()) {
+                rule.matches.incrementAndGet();
+                flushPaths.add(rule.flushPath);
+            }
+        }
+
+        return flushPaths;
+    }
+
+    /**
+     * @return the number of rules in the index
+     */
+    public int size() {
+        return this.rules.length;
+    }
+
+    /**
+     * @return the number of paths looked up
+     */
+    public long getLookupCount() {
+        return this.lookups.get();
+    }
+
+    /**
+     * @return the number of rule patterns evaluated across all lookups
+     */
+    public long getEvaluationCount() {
+        return this.evaluations.get();
+    }
+
+    /**
+     * @return the number of matches of each rule, keyed by "pattern=flush path", in configured order
+     */
+    public Map<String, Long> getMatchCounts() {
+        final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+        for (final Rule rule : this.rules) {
+            counts.put(getRuleKey(rule.pattern, rule.flushPath), rule.matches.get());
+        }
+
+        return counts;
+    }
+
+    /**
+     * Reset the lookup, evaluation and match counts.
+     */
+    public void resetCounts() {
+        this.lookups.set(0L);
+        this.evaluations.set(0L);
+
+        for (final Rule rule : this.rules) {
+            rule.matches.set(0L);
+        }
+    }
+
+    /**
+     * Gets the key identifying a rule in match counts; the rule as configured.
+     *
+     * @param pattern the rule's pattern
+     * @param flushPath the rule's flush path
+     * @return "pattern=flush path"
+     */
+    static String getRuleKey(final Pattern pattern, final String flushPath) {
+        return pattern.pattern() + "=" + flushPath;
+    }
+
+    /**
+     * Gets the literal text every match of the pattern must start with.
+     *
+     * @param pattern the pattern
+     * @return the literal prefix; empty if none can be derived
+     */
+    static String getLiteralPrefix(final Pattern pattern) {
+        final String regex = pattern.pattern();
+
+        if (pattern.flags() != 0 || regex.indexOf('|') >= 0) {
+            // Alternations and flags (ex. case insensitivity) may match paths without the literal prefix
+            return "";
+        }
+
+        final StringBuilder prefix = new StringBuilder();
+
+        for (int i = regex.startsWith("^") ? 1 : 0; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+
+            if (c == '\\') {
+                if (i + 1 < regex.length() && !Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    // Escaped literal (ex. "\.")
+                    prefix.append(regex.charAt(++i));
+                    continue;
+                }
+
+                break;
+            } else if (META_CHARACTERS.indexOf(c) >= 0) {
+                if ((c == '?' || c == '*' || c == '{') && prefix.length() > 0) {
+                    // The preceding character is optional
+                    prefix.setLength(prefix.length() - 1);
+                }
+
+                break;
+            }
+
+            prefix.append(c);
+        }
+
+        return prefix.toString();
+    }
+
+    private static int[] concat(final int[] a, final int[] b) {
+        final int[] result = new int[a.length + b.length];
+
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+
+        return result;
+    }
+
+    private static final class Rule {
+        private final Pattern pattern;
+
+        private final String flushPath;
+
+        private final AtomicLong matches = new AtomicLong();
+
+        private Rule(final Pattern pattern, final String flushPath) {
+            this.pattern = pattern;
+            this.flushPath = flushPath;
+        }
+    }
+}
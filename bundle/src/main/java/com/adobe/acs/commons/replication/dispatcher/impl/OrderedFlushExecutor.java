@@ -0,0 +1,261 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor that runs flush tasks in the background, in submission order per key (flush path).
+ *
+ * Tasks are assigned to one of a fixed number of single threaded lanes by the hash of their key, so tasks with the
+ * same key never run concurrently or out of order. When a lane's queue is full, the submitting thread blocks until
+ * there is room (backpressure), rather than dropping the flush. Flushes submitted to, or still waiting for room when,
+ * the executor is closed are dropped (and logged).
+ */
+public final class OrderedFlushExecutor {
+    private static final Logger log = LoggerFactory.getLogger(OrderedFlushExecutor.class);
+
+    /* Milliseconds a blocked submission waits for room before re-checking the executor has not been closed */
+    private static final long BLOCKED_POLL_INTERVAL = 100L;
+
+    private final ThreadPoolExecutor[] lanes;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong blocked = new AtomicLong();
+
+    private final DispatcherFlushMetrics metrics;
+
+    /**
+     * @param threads number of lanes (threads)
+     * @param queueSize maximum number of queued tasks per lane
+     */
+    public OrderedFlushExecutor(final int threads, final int queueSize) {
+        this(threads, queueSize, null);
+    }
+
+    /**
+     * @param threads number of lanes (threads)
+     * @param queueSize maximum number of queued tasks per lane
+     * @param metrics the flush metrics the task counts are also recorded in; may be null
+     */
+    public OrderedFlushExecutor(final int threads, final int queueSize, final DispatcherFlushMetrics metrics) {
+        this.metrics = metrics;
+
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable,
+                        "ACS AEM Commons - Dispatcher Flush Rules Executor " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        final RejectedExecutionHandler blockingHandler = new RejectedExecutionHandler() {
+            public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    throw rejected(runnable, "Flush executor is shut down");
+                }
+
+                blocked.incrementAndGet();
+                if (metrics != null) {
+                    metrics.countBackgroundBlocked();
+                }
+
+                try {
+                    // Wait for room, but stop waiting as soon as the executor is closed
+                    while (!executor.getQueue().offer(runnable, BLOCKED_POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                        if (executor.isShutdown()) {
+                            throw rejected(runnable, "Flush executor was shut down while waiting to queue flush");
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw rejected(runnable, "Interrupted while waiting to queue flush");
+                }
+
+                // Closed after the flush was queued; don't leave it to be silently drained
+                if (executor.isShutdown() && executor.remove(runnable)) {
+                    throw rejected(runnable, "Flush executor was shut down while queueing flush");
+                }
+            }
+        };
+
+        this.lanes = new ThreadPoolExecutor[Math.max(1, threads)];
+
+        for (int i = 0; i < this.lanes.length; i++) {
+            this.lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(Math.max(1, queueSize)), threadFactory, blockingHandler);
+        }
+    }
+
+    /**
+     * Run the task in the background, after all previously submitted tasks with the same key.
+     *
+     * Blocks while the key's lane is full.
+     *
+     * @param key ordering key; the flush path
+     * @param task the flush task; counted as failed if it throws a RuntimeException
+     * @throws RejectedExecutionException if the executor is closed, or the submitting thread is interrupted
+     */
+    public void execute(final String key, final Runnable task) {
+        final ThreadPoolExecutor lane = this.lanes[(key.hashCode() & Integer.MAX_VALUE) % this.lanes.length];
+
+        this.submitted.incrementAndGet();
+        if (this.metrics != null) {
+            this.metrics.countBackgroundSubmitted();
+        }
+
+        lane.execute(new FlushTask(key, task));
+    }
+
+    /**
+     * Stop accepting tasks and wait for the queued tasks to complete.
+     *
+     * @param timeout milliseconds to wait for the queued tasks to complete
+     */
+    public void close(final long timeout) {
+        for (final ThreadPoolExecutor lane : this.lanes) {
+            lane.shutdown();
+        }
+
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        try {
+            for (final ThreadPoolExecutor lane : this.lanes) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0 || !lane.awaitTermination(remaining, TimeUnit.MILLISECONDS)) {
+                    log.warn("Dispatcher flush tasks did not complete before shutdown; [ {} ] pending flushes dropped",
+                            this.getQueueDepth());
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (final ThreadPoolExecutor lane : this.lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    /**
+     * Log the flush as dropped.
+     *
+     * @param runnable the rejected flush task
+     * @param reason why the flush was rejected
+     * @return the exception to throw to the submitting thread
+     */
+    private static RejectedExecutionException rejected(final Runnable runnable, final String reason) {
+        final String key = runnable instanceof FlushTask ? ((FlushTask) runnable).key : String.valueOf(runnable);
+
+        log.warn("Dropped flush task for [ {} ]: {}", key, reason);
+
+        return new RejectedExecutionException(reason + " [ " + key + " ]");
+    }
+
+    /**
+     * @return the number of submitted tasks
+     */
+    public long getSubmittedCount() {
+        return this.submitted.get();
+    }
+
+    /**
+     * @return the number of completed (successful or failed) tasks
+     */
+    public long getCompletedCount() {
+        return this.completed.get();
+    }
+
+    /**
+     * @return the number of tasks that failed with an exception
+     */
+    public long getFailedCount() {
+        return this.failed.get();
+    }
+
+    /**
+     * @return the number of submissions that blocked because their lane was full
+     */
+    public long getBlockedCount() {
+        return this.blocked.get();
+    }
+
+    /**
+     * @return the number of queued tasks
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+
+        for (final ThreadPoolExecutor lane : this.lanes) {
+            depth += lane.getQueue().size();
+        }
+
+        return depth;
+    }
+
+    /**
+     * Runs a flush task, counting its completion.
+     */
+    private final class FlushTask implements Runnable {
+        private final String key;
+
+        private final Runnable task;
+
+        FlushTask(final String key, final Runnable task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        public void run() {
+            boolean success = false;
+
+            try {
+                this.task.run();
+                success = true;
+            } catch (RuntimeException e) {
+                failed.incrementAndGet();
+                log.error("Could not run flush task for [ " + this.key + " ]", e);
+            } finally {
+                completed.incrementAndGet();
+                if (metrics != null) {
+                    metrics.countBackgroundCompleted(success);
+                }
+            }
+        }
+    }
+}
@@ -28,36 +28,229 @@ import com.day.cq.replication.ReplicationResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Replication Listener that stores replication results for a series of agents.
+ * Replication Listener that stores the replication result of each agent and path.
+ *
+ * Safe for use by concurrent replications. An optional callback is notified of each result as it is recorded, and
+ * the duration of each flush is captured when its start was observed.
  */
 public class ReplicationResultListener implements ReplicationListener {
     private static final Logger log = LoggerFactory.getLogger(ReplicationResultListener.class);
 
-    private final Map<Agent, ReplicationResult> results = new HashMap<Agent, ReplicationResult>();
+    private final Queue<Result> results = new ConcurrentLinkedQueue<Result>();
+
+    private final ConcurrentMap<Key, Long> starts = new ConcurrentHashMap<Key, Long>();
+
+    private final ConcurrentMap<Key, Exception> errors = new ConcurrentHashMap<Key, Exception>();
+
+    private final Callback callback;
+
+    public ReplicationResultListener() {
+        this(null);
+    }
+
+    /**
+     * @param callback notified of each result as it is recorded; may be null
+     */
+    public ReplicationResultListener(final Callback callback) {
+        this.callback = callback;
+    }
 
     public final void onStart(final Agent agent, final ReplicationAction action) {
+        this.starts.put(new Key(agent, action), System.nanoTime());
     }
 
     public final void onMessage(final ReplicationLog.Level level, final String message) {
     }
 
     public final void onEnd(final Agent agent, final ReplicationAction action, final ReplicationResult result) {
-        this.results.put(agent, result);
+        final Key key = new Key(agent, action);
+        final Long start = this.starts.remove(key);
+        final long duration = start == null ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        final Result record = new Result(agent, key.path, result, this.errors.remove(key), duration);
+        this.results.add(record);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Flush of [ {} ] via agent [ {} ] completed in {} ms; success: {}",
+                    new Object[]{ key.path, agent == null ? null : agent.getId(), duration,
+                            result == null ? null : result.isSuccess() });
+        }
+
+        if (this.callback != null) {
+            try {
+                this.callback.onResult(record);
+            } catch (RuntimeException e) {
+                log.warn("Replication result callback failed: {}", e.getMessage());
+            }
+        }
     }
 
     public final void onError(final Agent agent, final ReplicationAction action, final Exception error) {
+        this.errors.put(new Key(agent, action), error);
     }
 
     /**
      * Gets the results of the Replication operation.
      *
-     * @return the Mapped results between the Agent and ReplicationResult
+     * @return the Mapped results between the Agent and its last ReplicationResult
      */
     public final Map<Agent, ReplicationResult> getResults() {
-        return this.results;
+        final Map<Agent, ReplicationResult> map = new LinkedHashMap<Agent, ReplicationResult>();
+
+        for (final Result result : this.results) {
+            map.put(result.getAgent(), result.getResult());
+        }
+
+        return map;
+    }
+
+    /**
+     * Gets the results of the Replication operation for each replicated path.
+     *
+     * @return the Mapped results between the replicated path, and the Agent and ReplicationResult
+     */
+    public final Map<String, Map<Agent, ReplicationResult>> getResultsByPath() {
+        final Map<String, Map<Agent, ReplicationResult>> map =
+                new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+
+        for (final Result result : this.results) {
+            if (result.getPath() == null) {
+                continue;
+            }
+
+            Map<Agent, ReplicationResult> pathResults = map.get(result.getPath());
+            if (pathResults == null) {
+                pathResults = new LinkedHashMap<Agent, ReplicationResult>();
+                map.put(result.getPath(), pathResults);
+            }
+
+            pathResults.put(result.getAgent(), result.getResult());
+        }
+
+        return map;
+    }
+
+    /**
+     * Gets every recorded result, in the order they were recorded.
+     *
+     * @return the results of each agent and path
+     */
+    public final List<Result> getAllResults() {
+        return new ArrayList<Result>(this.results);
+    }
+
+    /**
+     * Notified of each replication result as it is recorded; may be called concurrently.
+     */
+    public interface Callback {
+        /**
+         * @param result the recorded result
+         */
+        void onResult(Result result);
+    }
+
+    /**
+     * The replication result of a single agent and path.
+     */
+    public static final class Result {
+        private final Agent agent;
+
+        private final String path;
+
+        private final ReplicationResult result;
+
+        private final Exception error;
+
+        private final long duration;
+
+        private Result(final Agent agent, final String path, final ReplicationResult result, final Exception error,
+                       final long duration) {
+            this.agent = agent;
+            this.path = path;
+            this.result = result;
+            this.error = error;
+            this.duration = duration;
+        }
+
+        /**
+         * @return the replication agent
+         */
+        public Agent getAgent() {
+            return this.agent;
+        }
+
+        /**
+         * @return the replicated path; null if unknown
+         */
+        public String getPath() {
+            return this.path;
+        }
+
+        /**
+         * @return the replication result
+         */
+        public ReplicationResult getResult() {
+            return this.result;
+        }
+
+        /**
+         * @return the error reported by the agent; null if none was reported
+         */
+        public Exception getError() {
+            return this.error;
+        }
+
+        /**
+         * @return the duration of the replication in milliseconds; -1 if its start was not observed
+         */
+        public long getDuration() {
+            return this.duration;
+        }
+
+        /**
+         * @return true if the replication succeeded
+         */
+        public boolean isSuccess() {
+            return this.result != null && this.result.isSuccess();
+        }
+    }
+
+    /* Identifies the replication of a path via an agent */
+    private static final class Key {
+        private final Agent agent;
+
+        private final String path;
+
+        private Key(final Agent agent, final ReplicationAction action) {
+            this.agent = agent;
+            this.path = action == null ? null : action.getPath();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            return this.agent == other.agent
+                    && (this.path == null ? other.path == null : this.path.equals(other.path));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(this.agent) + (this.path == null ? 0 : this.path.hashCode());
+        }
     }
 }
@@ -0,0 +1,154 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Reusable view of an element's attributes for transformers which rewrite attribute values of some elements.
+ * <p/>
+ * The element's attributes are only copied when a value is first set, so elements which are passed through
+ * unchanged cost no allocation; lookups of attribute indexes by local name are cached for the current element.
+ * <p/>
+ * Instances are not thread safe and are intended to be held by a single transformer and reset for each element.
+ * Each modified element gets its own copy, as content handlers further down the pipeline may keep the attributes
+ * they were passed.
+ */
+public final class CopyOnWriteAttributes {
+    private static final int MAX_CACHED_INDEXES = 8;
+
+    private final String[] cachedNames = new String[MAX_CACHED_INDEXES];
+
+    private final int[] cachedIndexes = new int[MAX_CACHED_INDEXES];
+
+    private int cachedCount = 0;
+
+    private AttributesImpl copy = null;
+
+    private Attributes attributes = null;
+
+    private boolean modified = false;
+
+    /**
+     * Reset to the attributes of the next element.
+     *
+     * @param attributes the element's attributes
+     * @return this
+     */
+    public CopyOnWriteAttributes reset(final Attributes attributes) {
+        this.attributes = attributes;
+        this.copy = null;
+        this.modified = false;
+        this.cachedCount = 0;
+
+        return this;
+    }
+
+    /**
+     * Gets the index of the attribute with no namespace URI.
+     *
+     * @param localName the attribute's local name
+     * @return the attribute's index; -1 if the element has no such attribute
+     */
+    public int getIndex(final String localName) {
+        for (int i = 0; i < this.cachedCount; i++) {
+            if (this.cachedNames[i].equals(localName)) {
+                return this.cachedIndexes[i];
+            }
+        }
+
+        final int index = this.attributes.getIndex("", localName);
+
+        if (this.cachedCount < MAX_CACHED_INDEXES) {
+            this.cachedNames[this.cachedCount] = localName;
+            this.cachedIndexes[this.cachedCount] = index;
+            this.cachedCount++;
+        }
+
+        return index;
+    }
+
+    /**
+     * Gets the value of the attribute with no namespace URI.
+     *
+     * @param localName the attribute's local name
+     * @return the attribute's value; null if the element has no such attribute
+     */
+    public String getValue(final String localName) {
+        final int index = this.getIndex(localName);
+
+        return index < 0 ? null : this.getValue(index);
+    }
+
+    /**
+     * Set the value of an attribute, copying the element's attributes if not already copied.
+     *
+     * @param index the attribute's index
+     * @param value the attribute's new value
+     */
+    public void setValue(final int index, final String value) {
+        if (!this.modified) {
+            this.copy = new AttributesImpl(this.attributes);
+            this.modified = true;
+        }
+
+        this.copy.setValue(index, value);
+    }
+
+    /**
+     * @return true if any attribute value was set since the last reset
+     */
+    public boolean isModified() {
+        return this.modified;
+    }
+
+    /**
+     * Gets the attributes to pass to the next content handler.
+     *
+     * @return the element's original attributes if unchanged, else the modified copy
+     */
+    public Attributes getAttributes() {
+        return this.modified ? this.copy : this.attributes;
+    }
+
+    /**
+     * @return the number of attributes
+     */
+    public int getLength() {
+        return this.getAttributes().getLength();
+    }
+
+    /**
+     * @param index the attribute's index
+     * @return the attribute's local name
+     */
+    public String getLocalName(final int index) {
+        return this.getAttributes().getLocalName(index);
+    }
+
+    /**
+     * @param index the attribute's index
+     * @return the attribute's value
+     */
+    public String getValue(final int index) {
+        return this.getAttributes().getValue(index);
+    }
+}
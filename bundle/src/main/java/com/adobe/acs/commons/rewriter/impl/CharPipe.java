@@ -0,0 +1,182 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Bounded ring buffer of characters connecting a writing thread to a reading thread.
+ * <p/>
+ * Unlike java.io.PipedWriter, writes never block indefinitely once the reader is closed (they are discarded), and
+ * neither side depends on the liveness of the other side's thread, so both may be pooled threads.
+ */
+final class CharPipe {
+    private final char[] buffer;
+
+    private int readPosition = 0;
+
+    private int count = 0;
+
+    private boolean writerClosed = false;
+
+    private boolean readerClosed = false;
+
+    private final Reader reader = new PipeReader();
+
+    private final Writer writer = new PipeWriter();
+
+    CharPipe(final int size) {
+        this.buffer = new char[size];
+    }
+
+    /**
+     * @return the read side of the pipe; reads block until characters are written or the writer is closed
+     */
+    Reader getReader() {
+        return this.reader;
+    }
+
+    /**
+     * @return the write side of the pipe; writes block while the pipe is full and the reader is open
+     */
+    Writer getWriter() {
+        return this.writer;
+    }
+
+    private synchronized void write(final char[] chars, final int offset, final int length) throws IOException {
+        int written = 0;
+
+        while (written < length) {
+            if (this.writerClosed) {
+                throw new IOException("Pipe closed");
+            }
+
+            if (this.readerClosed) {
+                // Nothing will read the remaining characters
+                return;
+            }
+
+            if (this.count == this.buffer.length) {
+                this.await();
+                continue;
+            }
+
+            final int writePosition = (this.readPosition + this.count) % this.buffer.length;
+            final int chunk = Math.min(length - written,
+                    Math.min(this.buffer.length - this.count, this.buffer.length - writePosition));
+
+            System.arraycopy(chars, offset + written, this.buffer, writePosition, chunk);
+            this.count += chunk;
+            written += chunk;
+
+            this.notifyAll();
+        }
+    }
+
+    private synchronized int read(final char[] chars, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (this.count == 0) {
+            if (this.readerClosed) {
+                throw new IOException("Pipe closed");
+            }
+
+            if (this.writerClosed) {
+                return -1;
+            }
+
+            this.await();
+        }
+
+        if (this.readerClosed) {
+            throw new IOException("Pipe closed");
+        }
+
+        final int chunk = Math.min(length, Math.min(this.count, this.buffer.length - this.readPosition));
+
+        System.arraycopy(this.buffer, this.readPosition, chars, offset, chunk);
+        this.readPosition = (this.readPosition + chunk) % this.buffer.length;
+        this.count -= chunk;
+
+        this.notifyAll();
+
+        return chunk;
+    }
+
+    /**
+     * Close the write side of the pipe; the reader reads the remaining characters and then the end of the stream.
+     */
+    synchronized void closeWriter() {
+        this.writerClosed = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Close the read side of the pipe; remaining and subsequently written characters are discarded.
+     */
+    synchronized void closeReader() {
+        this.readerClosed = true;
+        this.count = 0;
+        this.notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            this.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting on pipe");
+        }
+    }
+
+    private final class PipeReader extends Reader {
+        @Override
+        public int read(final char[] chars, final int offset, final int length) throws IOException {
+            return CharPipe.this.read(chars, offset, length);
+        }
+
+        @Override
+        public void close() {
+            CharPipe.this.closeReader();
+        }
+    }
+
+    private final class PipeWriter extends Writer {
+        @Override
+        public void write(final char[] chars, final int offset, final int length) throws IOException {
+            CharPipe.this.write(chars, offset, length);
+        }
+
+        @Override
+        public void flush() {
+            // Written characters are readable immediately
+        }
+
+        @Override
+        public void close() {
+            CharPipe.this.closeWriter();
+        }
+    }
+}
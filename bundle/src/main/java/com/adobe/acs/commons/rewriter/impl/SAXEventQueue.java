@@ -0,0 +1,183 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Queue of SAX events recorded on a parser thread and replayed to a content handler on another thread.
+ * <p/>
+ * Characters and attributes are copied when recorded, as SAX only guarantees them for the duration of the callback.
+ * The parser's locator is only meaningful on the parser thread, so it is not passed on.
+ */
+final class SAXEventQueue implements ContentHandler {
+    private List<Event> events = new ArrayList<Event>();
+
+    private boolean closed = false;
+
+    /**
+     * Replay the queued events to the content handler, on the calling thread.
+     *
+     * @param handler the content handler
+     * @param wait if true, wait for events while the queue is open
+     * @return false once the queue is closed and all its events replayed
+     * @throws SAXException if the content handler fails
+     * @throws InterruptedException if interrupted while waiting for events
+     */
+    boolean replay(final ContentHandler handler, final boolean wait) throws SAXException, InterruptedException {
+        final List<Event> replayed;
+
+        synchronized (this) {
+            while (wait && this.events.isEmpty() && !this.closed) {
+                this.wait();
+            }
+
+            if (this.events.isEmpty()) {
+                return !this.closed;
+            }
+
+            replayed = this.events;
+            this.events = new ArrayList<Event>();
+        }
+
+        // The content handler is called without holding the lock, so the parser is never blocked by it
+        for (final Event event : replayed) {
+            event.replay(handler);
+        }
+
+        return true;
+    }
+
+    /**
+     * Close the queue; called once no more events will be recorded.
+     */
+    synchronized void close() {
+        this.closed = true;
+        this.notifyAll();
+    }
+
+    private synchronized void add(final Event event) {
+        this.events.add(event);
+        this.notifyAll();
+    }
+
+    public void setDocumentLocator(final Locator locator) {
+        // Not passed on
+    }
+
+    public void startDocument() {
+        this.add(new Event() {
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.startDocument();
+            }
+        });
+    }
+
+    public void endDocument() {
+        this.add(new Event() {
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.endDocument();
+            }
+        });
+    }
+
+    public void startPrefixMapping(final String prefix, final String uri) {
+        this.add(new Event() {
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.startPrefixMapping(prefix, uri);
+            }
+        });
+    }
+
+    public void endPrefixMapping(final String prefix) {
+        this.add(new Event() {
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.endPrefixMapping(prefix);
+            }
+        });
+    }
+
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts) {
+        final Attributes copy = new AttributesImpl(atts);
+
+        this.add(new Event() {
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.startElement(uri, localName, qName, copy);
+            }
+        });
+    }
+
+    public void endElement(final String uri, final String localName, final String qName) {
+        this.add(new Event() {
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.endElement(uri, localName, qName);
+            }
+        });
+    }
+
+    public void characters(final char[] ch, final int start, final int length) {
+        final char[] copy = new char[length];
+        System.arraycopy(ch, start, copy, 0, length);
+
+        this.add(new Event() {
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.characters(copy, 0, copy.length);
+            }
+        });
+    }
+
+    public void ignorableWhitespace(final char[] ch, final int start, final int length) {
+        final char[] copy = new char[length];
+        System.arraycopy(ch, start, copy, 0, length);
+
+        this.add(new Event() {
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.ignorableWhitespace(copy, 0, copy.length);
+            }
+        });
+    }
+
+    public void processingInstruction(final String target, final String data) {
+        this.add(new Event() {
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.processingInstruction(target, data);
+            }
+        });
+    }
+
+    public void skippedEntity(final String name) {
+        this.add(new Event() {
+            void replay(final ContentHandler handler) throws SAXException {
+                handler.skippedEntity(name);
+            }
+        });
+    }
+
+    private abstract static class Event {
+        abstract void replay(ContentHandler handler) throws SAXException;
+    }
+}
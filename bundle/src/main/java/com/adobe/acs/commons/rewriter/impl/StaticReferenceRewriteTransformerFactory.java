@@ -35,9 +35,9 @@ import org.apache.sling.rewriter.TransformerFactory;
 import org.osgi.service.component.ComponentContext;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
-import org.xml.sax.helpers.AttributesImpl;
 
 import com.adobe.acs.commons.rewriter.AbstractTransformer;
+import com.adobe.acs.commons.rewriter.CopyOnWriteAttributes;
 import com.adobe.acs.commons.util.OsgiPropertyUtil;
 
 /**
@@ -55,9 +55,12 @@ public final class StaticReferenceRewriteTransformerFactory implements Transform
 
     public final class StaticReferenceRewriteTransformer extends AbstractTransformer {
 
+        private final CopyOnWriteAttributes attributes = new CopyOnWriteAttributes();
+
         public void startElement(String namespaceURI, String localName, String qName, Attributes atts)
                 throws SAXException {
-            getContentHandler().startElement(namespaceURI, localName, qName, rebuildAttributes(localName, atts));
+            getContentHandler().startElement(namespaceURI, localName, qName,
+                    rebuildAttributes(localName, attributes.reset(atts)));
         }
     }
 
@@ -129,12 +132,11 @@ public final class StaticReferenceRewriteTransformerFactory implements Transform
         }
     }
 
-    private Attributes rebuildAttributes(final String elementName, final Attributes attrs) {
+    private Attributes rebuildAttributes(final String elementName, final CopyOnWriteAttributes newAttrs) {
         if (attributes.containsKey(elementName)) {
             final String[] modifyableAttributes = attributes.get(elementName);
 
-            // clone the attributes
-            final AttributesImpl newAttrs = new AttributesImpl(attrs);
+            // the attributes are only copied if a value is rewritten
             final int len = newAttrs.getLength();
 
             // first - check for the nostatic class
@@ -162,10 +164,9 @@ public final class StaticReferenceRewriteTransformerFactory implements Transform
                     }
                 }
             }
-            return newAttrs;
-        } else {
-            return attrs;
         }
+
+        return newAttrs.getAttributes();
     }
 
     @Activate
@@ -0,0 +1,295 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter.impl;
+
+import java.io.CharArrayReader;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.sling.rewriter.Generator;
+import org.apache.sling.rewriter.ProcessingComponentConfiguration;
+import org.apache.sling.rewriter.ProcessingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Generator which parses the document as it is written, rather than once it is complete.
+ * <p/>
+ * The document is parsed by a parser thread reading from a bounded pipe, so at most the pipe's size of the document
+ * is held in memory and the rest of the pipeline produces output while the document is still being rendered. The
+ * parser thread only records the SAX events; they are passed to the pipeline's content handlers on the request
+ * thread as the document is written and when it is finished, so transformers and the serializer may use request
+ * scoped state. If no parser thread is available, the document is buffered and parsed when finished, as by the
+ * XMLParserGenerator.
+ */
+public final class StreamingXMLParserGenerator implements Generator {
+    private static final Logger log = LoggerFactory.getLogger(StreamingXMLParserGenerator.class);
+
+    private final ExecutorService executor;
+
+    private final int bufferSize;
+
+    private final SAXParser saxParser;
+
+    private final PrintWriter printWriter;
+
+    private ContentHandler contentHandler;
+
+    /* The pipe to the parser thread, or the buffered document; null until the document is first written to */
+    private Writer writer = null;
+
+    private CharPipe pipe = null;
+
+    private CharArrayWriter bufferedDocument = null;
+
+    private SAXEventQueue events = null;
+
+    private Future<Void> parse = null;
+
+    /* Failure of the pipeline's content handlers, thrown when finished */
+    private SAXException handlerException = null;
+
+    public StreamingXMLParserGenerator(final ExecutorService executor, final int bufferSize)
+            throws ParserConfigurationException, SAXException {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+
+        this.saxParser = factory.newSAXParser();
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+        this.printWriter = new PrintWriter(new DocumentWriter());
+    }
+
+    public void finished() throws IOException, SAXException {
+        this.printWriter.flush();
+
+        if (this.writer == null) {
+            // Nothing was written
+            return;
+        }
+
+        if (this.bufferedDocument != null) {
+            this.parse(new CharArrayReader(this.bufferedDocument.toCharArray()));
+            return;
+        }
+
+        // Signal the end of the document to the parser, and pass on its events until it finishes
+        this.pipe.closeWriter();
+
+        try {
+            boolean parsing = true;
+
+            while (parsing) {
+                parsing = this.replay(true);
+            }
+
+            if (this.handlerException != null) {
+                throw this.handlerException;
+            }
+
+            this.parse.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.cancel();
+            throw new IOException("Interrupted waiting for the XML parser to finish");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new SAXException("Unable to parse XML document", (Exception) cause);
+            }
+        }
+    }
+
+    public PrintWriter getWriter() {
+        return printWriter;
+    }
+
+    public void init(ProcessingContext context, ProcessingComponentConfiguration config) throws IOException {
+        // nothing to do
+    }
+
+    public void setContentHandler(ContentHandler handler) {
+        this.contentHandler = handler;
+    }
+
+    public void dispose() {
+        // Stop the parser if the document was never finished (ex. rendering failed); the parser thread only touches
+        // the pipe and the event queue, so it is safe to interrupt
+        this.cancel();
+    }
+
+    private void parse(final Reader reader) throws IOException, SAXException {
+        this.saxParser.parse(new InputSource(reader), new ContentHandlerAdapter(contentHandler));
+    }
+
+    /**
+     * Start parsing the document on a parser thread; the document is buffered if no parser thread is available.
+     */
+    private void start() {
+        if (this.executor == null) {
+            this.buffer();
+            return;
+        }
+
+        final CharPipe charPipe = new CharPipe(this.bufferSize);
+        final SAXEventQueue eventQueue = new SAXEventQueue();
+
+        try {
+            this.parse = this.executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        saxParser.parse(new InputSource(charPipe.getReader()), new ContentHandlerAdapter(eventQueue));
+                        return null;
+                    } finally {
+                        // Discard anything written after the parser finished or failed
+                        charPipe.closeReader();
+                        eventQueue.close();
+                    }
+                }
+            });
+
+            this.pipe = charPipe;
+            this.events = eventQueue;
+            this.writer = charPipe.getWriter();
+        } catch (RejectedExecutionException e) {
+            log.debug("No XML parser thread available; buffering the document");
+            this.buffer();
+        }
+    }
+
+    private void buffer() {
+        this.bufferedDocument = new CharArrayWriter();
+        this.writer = this.bufferedDocument;
+    }
+
+    /**
+     * Pass the events parsed so far to the pipeline's content handler, on the calling (request) thread.
+     *
+     * @param wait if true, wait for the parser to parse more of the document
+     * @return false once the parser has finished and all its events have been passed on
+     */
+    private boolean replay(final boolean wait) throws InterruptedException {
+        if (this.handlerException != null) {
+            return false;
+        }
+
+        try {
+            return this.events.replay(this.contentHandler, wait);
+        } catch (SAXException e) {
+            // Stop parsing; the failure is thrown when finished
+            this.handlerException = e;
+            this.cancel();
+            return false;
+        }
+    }
+
+    /**
+     * Pass on the events parsed so far without waiting for the parser.
+     */
+    private void replayAvailable() throws IOException {
+        if (this.events == null) {
+            return;
+        }
+
+        try {
+            this.replay(false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.cancel();
+            throw new IOException("Interrupted passing on XML events");
+        }
+    }
+
+    private void cancel() {
+        if (this.pipe != null && !this.parse.isDone()) {
+            this.pipe.closeReader();
+            this.parse.cancel(true);
+        }
+    }
+
+    /**
+     * Writes the document to the parser, starting the parser when the document is first written to.
+     */
+    private final class DocumentWriter extends Writer {
+        @Override
+        public void write(final char[] chars, final int offset, final int length) throws IOException {
+            if (writer == null) {
+                start();
+            }
+
+            if (pipe == null) {
+                writer.write(chars, offset, length);
+                return;
+            }
+
+            // Write at most the pipe's size at a time, passing on the events parsed in between, so the events queued
+            // for the request thread stay bounded by the size of the pipe
+            int written = 0;
+
+            while (written < length) {
+                final int chunk = Math.min(length - written, bufferSize);
+
+                writer.write(chars, offset + written, chunk);
+                written += chunk;
+
+                replayAvailable();
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+
+            replayAvailable();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The end of the document is signalled when finished
+            this.flush();
+        }
+    }
+}
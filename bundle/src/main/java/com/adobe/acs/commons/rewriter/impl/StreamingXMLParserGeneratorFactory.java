@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter.impl;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.rewriter.Generator;
+import org.apache.sling.rewriter.GeneratorFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+@Component(
+        label = "ACS AEM Commons - Streaming XML Generator",
+        description = "Rewriter pipeline generator which parses XML documents as they are written, rather than "
+                + "buffering the whole document. Pipeline components after this generator are called on the "
+                + "request thread.",
+        metatype = true)
+@Service
+@Property(name = "pipeline.type", value = "xml-streaming-generator")
+public final class StreamingXMLParserGeneratorFactory implements GeneratorFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamingXMLParserGeneratorFactory.class);
+
+    private static final int DEFAULT_PARSER_THREADS = 20;
+    @Property(label = "Parser threads",
+            description = "Maximum number of documents parsed concurrently; further documents are buffered and "
+                    + "parsed once complete. [Default: 20]",
+            intValue = DEFAULT_PARSER_THREADS)
+    private static final String PROP_PARSER_THREADS = "prop.parser-threads";
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    @Property(label = "Buffer size",
+            description = "Number of characters buffered between the writer and the parser of each document. "
+                    + "[Default: 8192]",
+            intValue = DEFAULT_BUFFER_SIZE)
+    private static final String PROP_BUFFER_SIZE = "prop.buffer-size";
+
+    private static final long PARSER_THREAD_KEEP_ALIVE = 60;
+
+    private ExecutorService executor = null;
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+    @Override
+    public Generator createGenerator() {
+        try {
+            return new StreamingXMLParserGenerator(executor, bufferSize);
+        } catch (Exception e) {
+            log.error("Unable to create parser", e);
+            return null;
+        }
+    }
+
+    @Activate
+    protected void activate(final Map<String, Object> properties) {
+        final int parserThreads = Math.max(1,
+                PropertiesUtil.toInteger(properties.get(PROP_PARSER_THREADS), DEFAULT_PARSER_THREADS));
+        this.bufferSize = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_BUFFER_SIZE), DEFAULT_BUFFER_SIZE));
+
+        final AtomicInteger threadCount = new AtomicInteger();
+
+        // Parser threads are only kept while in use; documents are buffered when all are busy
+        this.executor = new ThreadPoolExecutor(0, parserThreads, PARSER_THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "ACS AEM Commons - Streaming XML Parser " + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        log.debug("Parser threads: {}, buffer size: {}", parserThreads, this.bufferSize);
+    }
+
+    @Deactivate
+    protected void deactivate(final Map<String, Object> properties) {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+}
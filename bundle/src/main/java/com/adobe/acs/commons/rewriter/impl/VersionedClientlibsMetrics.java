@@ -0,0 +1,105 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter.impl;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+
+import javax.management.DynamicMBean;
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records and exposes (via JMX) the versioned clientlib path cache metrics.
+ */
+@Component(label = "ACS AEM Commons - Versioned Clientlibs Rewriter Metrics",
+        description = "Records and exposes (via JMX) metrics for the Versioned Clientlibs Rewriter.",
+        immediate = true)
+@Property(name = "jmx.objectname",
+        value = "com.adobe.acs.commons:type=Versioned Clientlibs",
+        propertyPrivate = true)
+@Service(value = { VersionedClientlibsMetrics.class, DynamicMBean.class })
+public class VersionedClientlibsMetrics extends StandardMBean implements VersionedClientlibsMetricsMXBean {
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public VersionedClientlibsMetrics() throws NotCompliantMBeanException {
+        super(VersionedClientlibsMetricsMXBean.class, true);
+    }
+
+    /** Recording Methods **/
+
+    /**
+     * Record a versioned path cache hit or miss.
+     *
+     * @param hit true if the cache lookup was a hit
+     */
+    public void recordCacheLookup(final boolean hit) {
+        if (hit) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Count an invalidation of the versioned path cache.
+     */
+    public void countInvalidation() {
+        this.invalidations.incrementAndGet();
+    }
+
+    /** MBean Methods **/
+
+    @Override
+    public long getCacheHits() {
+        return this.hits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return this.misses.get();
+    }
+
+    @Override
+    public double getCacheHitRate() {
+        final long hitCount = this.hits.get();
+        final long total = hitCount + this.misses.get();
+        return total == 0L ? 0D : hitCount / (double) total;
+    }
+
+    @Override
+    public long getInvalidationCount() {
+        return this.invalidations.get();
+    }
+
+    @Override
+    public void reset() {
+        this.hits.set(0L);
+        this.misses.set(0L);
+        this.invalidations.set(0L);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter.impl;
+
+/**
+ * JMX view of the Versioned Clientlibs Rewriter's metrics.
+ */
+public interface VersionedClientlibsMetricsMXBean {
+
+    /**
+     * @return the number of versioned paths served from the cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return the number of versioned paths resolved via the HtmlLibraryManager
+     */
+    long getCacheMisses();
+
+    /**
+     * @return the ratio of cache hits to lookups
+     */
+    double getCacheHitRate();
+
+    /**
+     * @return the number of times the cache was invalidated by clientlib changes
+     */
+    long getInvalidationCount();
+
+    /**
+     * Reset all metrics.
+     */
+    void reset();
+}
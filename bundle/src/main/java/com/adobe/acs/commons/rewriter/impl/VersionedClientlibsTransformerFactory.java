@@ -20,32 +20,61 @@
 package com.adobe.acs.commons.rewriter.impl;
 
 import com.adobe.acs.commons.rewriter.AbstractTransformer;
+import com.adobe.acs.commons.rewriter.CopyOnWriteAttributes;
 import com.day.cq.commons.PathInfo;
 import com.day.cq.widget.HtmlLibrary;
 import com.day.cq.widget.HtmlLibraryManager;
 import com.day.cq.widget.LibraryType;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.rewriter.Transformer;
 import org.apache.sling.rewriter.TransformerFactory;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
-import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Component(
         label = "ACS AEM Commons - Versioned Clientlibs (CSS/JS) Rewriter",
         description = "Re-writes paths to CSS and JS clientlibs to include the last modified timestamp as a "
-                + "selector; in the form: /path/to/clientlib.123456789.css")
-@Property(name = "pipeline.type",
-        value = "versioned-clientlibs",
-        propertyPrivate = true)
-@Service
-public final class VersionedClientlibsTransformerFactory implements TransformerFactory {
+                + "selector; in the form: /path/to/clientlib.123456789.css",
+        metatype = true)
+@Properties({
+    @Property(name = "pipeline.type",
+            value = "versioned-clientlibs",
+            propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_TOPIC,
+            value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+                    SlingConstants.TOPIC_RESOURCE_CHANGED,
+                    SlingConstants.TOPIC_RESOURCE_REMOVED },
+            propertyPrivate = true),
+    @Property(name = EventConstants.EVENT_FILTER,
+            value = "(|(path=/etc/clientlibs/*)(path=/apps/*))",
+            propertyPrivate = true)
+})
+@Service(value = { TransformerFactory.class, EventHandler.class })
+public final class VersionedClientlibsTransformerFactory implements TransformerFactory, EventHandler {
     private static final Logger log = LoggerFactory.getLogger(VersionedClientlibsTransformerFactory.class);
 
     private static final String ATTR_JS_PATH = "src";
@@ -54,48 +83,101 @@ public final class VersionedClientlibsTransformerFactory implements TransformerF
     private static final String CSS_TYPE = "text/css";
     private static final String JS_TYPE = "text/javascript";
 
+    private static final String OPTION_LAST_MODIFIED = "LAST_MODIFIED";
+    private static final String OPTION_CONTENT_HASH = "CONTENT_HASH";
+
+    /* Version Mode */
+    private static final String DEFAULT_VERSION_MODE = OPTION_LAST_MODIFIED;
+    private boolean contentHash = false;
+    @Property(label = "Version",
+            description = "The version selector added to clientlib paths. 'Last Modified' changes whenever the "
+                    + "clientlib is redeployed; 'Content Hash' is a digest of the clientlib's output, so only "
+                    + "changes when its content does, and is the same on every instance. [Default: Last Modified]",
+            value = DEFAULT_VERSION_MODE,
+            options = {
+                    @PropertyOption(name = OPTION_LAST_MODIFIED, value = "Last Modified"),
+                    @PropertyOption(name = OPTION_CONTENT_HASH, value = "Content Hash")
+            })
+    private static final String PROP_VERSION_MODE = "prop.version-mode";
+
+    private static final String DIGEST_ALGORITHM = "MD5";
+
+    /* Cached in place of a versioned path for paths which are not clientlibs */
+    private static final String NOT_A_CLIENTLIB = "";
+
+    /* Maximum number of cached versioned paths; paths beyond this are resolved on each request */
+    private static final int MAX_CACHE_SIZE = 1000;
+
     @Reference
     private HtmlLibraryManager htmlLibraryManager;
 
+    @Reference
+    private VersionedClientlibsMetrics metrics;
+
+    /* Original path -> versioned path (or NOT_A_CLIENTLIB) */
+    private final ConcurrentMap<String, String> versionedPaths = new ConcurrentHashMap<String, String>();
+
+    /* Incremented on each clientlib change, so lookups racing an invalidation do not cache stale paths */
+    private final AtomicInteger cacheVersion = new AtomicInteger();
+
+    /* Library type and path -> content hash; recomputed only when the library's last modified date changes */
+    private final ConcurrentMap<String, ContentHash> contentHashes = new ConcurrentHashMap<String, ContentHash>();
+
     public Transformer createTransformer() {
         return new VersionableClientlibsTransformer();
     }
 
-    private Attributes versionClientLibs(final String elementName, final Attributes attrs) {
+    /**
+     * Invalidates the versioned path cache when clientlibs change; a change to any clientlib may change the last
+     * modified date of the clientlibs embedding it, so the whole cache is invalidated.
+     *
+     * @param event resource change event
+     */
+    public void handleEvent(final Event event) {
+        log.debug("Clientlib changed at [ {} ]; invalidating versioned clientlib paths",
+                event.getProperty(SlingConstants.PROPERTY_PATH));
+
+        this.cacheVersion.incrementAndGet();
+        this.versionedPaths.clear();
+        metrics.countInvalidation();
+    }
+
+    private Attributes versionClientLibs(final String elementName, final CopyOnWriteAttributes attrs) {
         if (this.isCSS(elementName, attrs)) {
-            return this.rebuildAttributes(new AttributesImpl(attrs), attrs.getIndex("", ATTR_CSS_PATH),
-                    attrs.getValue("", ATTR_CSS_PATH), LibraryType.CSS);
+            this.rebuildAttributes(attrs, ATTR_CSS_PATH, LibraryType.CSS);
 
         } else if (this.isJavaScript(elementName, attrs)) {
-            return this.rebuildAttributes(new AttributesImpl(attrs), attrs.getIndex("", ATTR_JS_PATH),
-                    attrs.getValue("", ATTR_JS_PATH), LibraryType.JS);
-
-        } else {
-            return attrs;
+            this.rebuildAttributes(attrs, ATTR_JS_PATH, LibraryType.JS);
         }
+
+        // The original attributes, unless the path was versioned
+        return attrs.getAttributes();
     }
 
-    private Attributes rebuildAttributes(final AttributesImpl newAttributes, final int index, final String path,
-                                         final LibraryType libraryType) {
-        final String versionedPath = this.getVersionedPath(path, libraryType);
+    private void rebuildAttributes(final CopyOnWriteAttributes attrs, final String pathAttribute,
+                                   final LibraryType libraryType) {
+        final int index = attrs.getIndex(pathAttribute);
+        final String versionedPath = this.getVersionedPath(attrs.getValue(index), libraryType);
 
         if (StringUtils.isNotBlank(versionedPath)) {
             log.debug("Rewriting to: {}", versionedPath);
-            newAttributes.setValue(index, versionedPath);
+            attrs.setValue(index, versionedPath);
         } else {
             log.debug("Versioned Path could not be created properly");
         }
-
-        return newAttributes;
     }
 
-    private boolean isCSS(final String elementName, final Attributes attrs) {
-        final String rel = attrs.getValue("", "rel");
-        final String type = attrs.getValue("", "type");
-        final String href = attrs.getValue("", "href");
+    private boolean isCSS(final String elementName, final CopyOnWriteAttributes attrs) {
+        // Check the element before looking up its attributes, as most elements are neither CSS nor JavaScript
+        if (!StringUtils.equals("link", elementName)) {
+            return false;
+        }
+
+        final String rel = attrs.getValue("rel");
+        final String type = attrs.getValue("type");
+        final String href = attrs.getValue(ATTR_CSS_PATH);
 
-        if (StringUtils.equals("link", elementName)
-                && StringUtils.equals(rel, "stylesheet")
+        if (StringUtils.equals(rel, "stylesheet")
                 && StringUtils.equals(type, CSS_TYPE)
                 && StringUtils.startsWith(href, "/")
                 && !StringUtils.startsWith(href, "//")
@@ -106,12 +188,15 @@ public final class VersionedClientlibsTransformerFactory implements TransformerF
         return false;
     }
 
-    private boolean isJavaScript(final String elementName, final Attributes attrs) {
-        final String type = attrs.getValue("", "type");
-        final String src = attrs.getValue("", "src");
+    private boolean isJavaScript(final String elementName, final CopyOnWriteAttributes attrs) {
+        if (!StringUtils.equals("script", elementName)) {
+            return false;
+        }
 
-        if (StringUtils.equals("script", elementName)
-                && StringUtils.equals(type, JS_TYPE)
+        final String type = attrs.getValue("type");
+        final String src = attrs.getValue(ATTR_JS_PATH);
+
+        if (StringUtils.equals(type, JS_TYPE)
                 && StringUtils.startsWith(src, "/")
                 && !StringUtils.startsWith(src, "//")
                 && StringUtils.endsWith(src, LibraryType.JS.extension)) {
@@ -122,13 +207,41 @@ public final class VersionedClientlibsTransformerFactory implements TransformerF
     }
 
     private String getVersionedPath(final String originalPath, final LibraryType libraryType) {
+        final String cachedPath = this.versionedPaths.get(originalPath);
+
+        metrics.recordCacheLookup(cachedPath != null);
+
+        if (cachedPath != null) {
+            return NOT_A_CLIENTLIB.equals(cachedPath) ? null : cachedPath;
+        }
+
+        final int version = this.cacheVersion.get();
+        final String versionedPath = this.resolveVersionedPath(originalPath, libraryType);
+
+        // Paths which could not be resolved (returned as-is) are not cached
+        if (!StringUtils.equals(versionedPath, originalPath)
+                && this.versionedPaths.size() < MAX_CACHE_SIZE
+                && version == this.cacheVersion.get()) {
+            this.versionedPaths.putIfAbsent(originalPath, versionedPath == null ? NOT_A_CLIENTLIB : versionedPath);
+
+            if (version != this.cacheVersion.get()) {
+                // Invalidated while caching; the cached path may be stale
+                this.versionedPaths.remove(originalPath);
+            }
+        }
+
+        return versionedPath;
+    }
+
+    private String resolveVersionedPath(final String originalPath, final LibraryType libraryType) {
         try {
             final PathInfo pathInfo = new PathInfo(originalPath);
 
             final HtmlLibrary htmlLibrary = htmlLibraryManager.getLibrary(libraryType, pathInfo.getResourcePath());
 
             if (htmlLibrary != null) {
-                return htmlLibrary.getLibraryPath() + "." + htmlLibrary.getLastModified() + libraryType.extension;
+                return htmlLibrary.getLibraryPath() + "." + this.getVersion(htmlLibrary, libraryType)
+                        + libraryType.extension;
             } else {
                 log.debug("Could not find HtmlLibrary at path: {}", pathInfo.getResourcePath());
                 return null;
@@ -141,11 +254,99 @@ public final class VersionedClientlibsTransformerFactory implements TransformerF
         }
     }
 
+    private String getVersion(final HtmlLibrary htmlLibrary, final LibraryType libraryType) {
+        final long lastModified = htmlLibrary.getLastModified();
+
+        if (!this.contentHash) {
+            return String.valueOf(lastModified);
+        }
+
+        final String key = libraryType.name() + ":" + htmlLibrary.getLibraryPath();
+        final ContentHash cached = this.contentHashes.get(key);
+
+        if (cached != null && cached.lastModified == lastModified) {
+            return cached.digest;
+        }
+
+        try {
+            final String digest = this.digest(htmlLibrary);
+            this.contentHashes.put(key, new ContentHash(lastModified, digest));
+
+            return digest;
+        } catch (IOException e) {
+            log.error("Could not read HtmlLibrary [ {} ] to hash its content; using its last modified date: {}",
+                    htmlLibrary.getLibraryPath(), e.getMessage());
+            return String.valueOf(lastModified);
+        }
+    }
+
+    private String digest(final HtmlLibrary htmlLibrary) throws IOException {
+        final MessageDigest messageDigest;
+
+        try {
+            messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(DIGEST_ALGORITHM + " is not supported");
+        }
+
+        InputStream inputStream = null;
+
+        try {
+            inputStream = htmlLibrary.getInputStream();
+
+            if (inputStream == null) {
+                throw new IOException("No content");
+            }
+
+            final byte[] buffer = new byte[8192];
+            int read;
+
+            while ((read = inputStream.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+
+        final StringBuilder digest = new StringBuilder();
+
+        for (final byte b : messageDigest.digest()) {
+            digest.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return digest.toString();
+    }
+
+    @Activate
+    protected void activate(final Map<String, String> properties) {
+        this.contentHash = OPTION_CONTENT_HASH.equals(
+                PropertiesUtil.toString(properties.get(PROP_VERSION_MODE), DEFAULT_VERSION_MODE));
+
+        this.versionedPaths.clear();
+        this.contentHashes.clear();
+
+        log.debug("Version mode: {}", this.contentHash ? OPTION_CONTENT_HASH : OPTION_LAST_MODIFIED);
+    }
+
+    private static final class ContentHash {
+        private final long lastModified;
+
+        private final String digest;
+
+        private ContentHash(final long lastModified, final String digest) {
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
     private class VersionableClientlibsTransformer extends AbstractTransformer {
+        private final CopyOnWriteAttributes attributes = new CopyOnWriteAttributes();
+
         public void startElement(final String namespaceURI, final String localName, final String qName,
                                  final Attributes attrs)
                 throws SAXException {
-            getContentHandler().startElement(namespaceURI, localName, qName, versionClientLibs(localName, attrs));
+            getContentHandler().startElement(namespaceURI, localName, qName,
+                    versionClientLibs(localName, this.attributes.reset(attrs)));
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.util;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Base for servlets exposing metrics as a JSON object, to administrators only.
+ */
+@SuppressWarnings("serial")
+public abstract class AbstractMetricsServlet extends SlingSafeMethodsServlet {
+
+    @Override
+    protected final void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+            throws ServletException, IOException {
+        if (!isAdministrator(request)) {
+            response.sendError(SlingHttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        final JSONWriter writer = new JSONWriter(response.getWriter());
+
+        try {
+            writer.object();
+            this.writeMetrics(writer);
+            writer.endObject();
+        } catch (JSONException e) {
+            throw new ServletException("Unable to output JSON data", e);
+        }
+    }
+
+    /**
+     * Write the metrics as keys and values of the response's JSON object.
+     *
+     * @param writer the writer, positioned within the response's JSON object
+     * @throws JSONException
+     */
+    protected abstract void writeMetrics(JSONWriter writer) throws JSONException;
+
+    /**
+     * Write the latency snapshots as a JSON object of operation names to their count, mean and percentiles.
+     *
+     * @param writer the writer
+     * @param latencies operation names and their latency snapshots
+     * @throws JSONException
+     */
+    protected static void writeLatencies(final JSONWriter writer,
+                                         final Map<String, LatencyHistogram.Snapshot> latencies)
+            throws JSONException {
+        writer.object();
+
+        for (final Map.Entry<String, LatencyHistogram.Snapshot> entry : latencies.entrySet()) {
+            final LatencyHistogram.Snapshot snapshot = entry.getValue();
+
+            writer.key(entry.getKey()).object();
+            writer.key("count").value(snapshot.getCount());
+            writer.key("mean").value(snapshot.getMean());
+            writer.key("p50").value(snapshot.getP50());
+            writer.key("p99").value(snapshot.getP99());
+            writer.key("max").value(snapshot.getMax());
+            writer.endObject();
+        }
+
+        writer.endObject();
+    }
+
+    /**
+     * Checks the requesting user holds jcr:all on the repository root, as administrators do.
+     *
+     * @param request the request
+     * @return true if the requesting user is an administrator
+     */
+    protected static boolean isAdministrator(final SlingHttpServletRequest request) {
+        final Session session = request.getResourceResolver().adaptTo(Session.class);
+
+        if (session == null) {
+            return false;
+        }
+
+        try {
+            final AccessControlManager accessControlManager = session.getAccessControlManager();
+
+            return accessControlManager.hasPrivileges("/",
+                    new Privilege[]{ accessControlManager.privilegeFromName(Privilege.JCR_ALL) });
+        } catch (RepositoryException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, suitable for recording on hot code paths.
+ * <p/>
+ * Latencies are counted in buckets whose bounds are powers of two microseconds, so percentiles are approximations
+ * (reported as the upper bound of the bucket they fall in, capped at the maximum recorded latency).
+ */
+public final class LatencyHistogram {
+    /* Bucket n holds latencies from 2^(n-1) (inclusive) up to 2^n (exclusive) microseconds; ~3 days at most */
+    private static final int BUCKET_COUNT = 39;
+
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0L, nanos);
+        final long micros = TimeUnit.NANOSECONDS.toMicros(value);
+        final int bucket = Math.min(BUCKET_COUNT - 1, Long.SIZE - Long.numberOfLeadingZeros(micros));
+
+        this.buckets.incrementAndGet(bucket);
+        this.count.incrementAndGet();
+        this.totalNanos.addAndGet(value);
+
+        long max = this.maxNanos.get();
+        while (value > max && !this.maxNanos.compareAndSet(max, value)) {
+            max = this.maxNanos.get();
+        }
+    }
+
+    /**
+     * Record the latency since the start time.
+     *
+     * @param startNanos start time, as returned by System.nanoTime()
+     */
+    public void recordSince(final long startNanos) {
+        this.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * Clear all recorded latencies.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            this.buckets.set(i, 0L);
+        }
+
+        this.count.set(0L);
+        this.totalNanos.set(0L);
+        this.maxNanos.set(0L);
+    }
+
+    /**
+     * Take a point-in-time snapshot of the recorded latencies.
+     *
+     * @return the snapshot
+     */
+    public Snapshot getSnapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        long total = 0L;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+        }
+
+        final long max = this.maxNanos.get();
+        final double mean = total == 0L ? 0D : this.totalNanos.get() / (double) this.count.get() / NANOS_PER_MILLI;
+
+        return new Snapshot(total, mean,
+                this.getPercentile(counts, total, 0.50D, max),
+                this.getPercentile(counts, total, 0.99D, max),
+                max / NANOS_PER_MILLI);
+    }
+
+    private double getPercentile(final long[] counts, final long total, final double percentile, final long max) {
+        if (total == 0L) {
+            return 0D;
+        }
+
+        final long rank = (long) Math.ceil(percentile * total);
+        long seen = 0L;
+
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+
+            if (seen >= rank) {
+                final long upperBoundNanos = TimeUnit.MICROSECONDS.toNanos(1L << i);
+                return Math.min(upperBoundNanos, max) / NANOS_PER_MILLI;
+            }
+        }
+
+        return max / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Point-in-time view of a LatencyHistogram; all latencies are in milliseconds.
+     */
+    public static final class Snapshot {
+        private final long count;
+
+        private final double mean;
+
+        private final double p50;
+
+        private final double p99;
+
+        private final double max;
+
+        public Snapshot(final long count, final double mean, final double p50, final double p99, final double max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
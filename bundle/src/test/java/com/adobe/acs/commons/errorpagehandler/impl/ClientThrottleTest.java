@@ -0,0 +1,67 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClientThrottleTest {
+
+    @Test
+    public void testBurst() throws Exception {
+        final ClientThrottle throttle = new ClientThrottle(1D, 3);
+        final long now = System.nanoTime();
+
+        assertTrue(throttle.tryAcquire("10.0.0.1", now));
+        assertTrue(throttle.tryAcquire("10.0.0.1", now));
+        assertTrue(throttle.tryAcquire("10.0.0.1", now));
+        assertFalse(throttle.tryAcquire("10.0.0.1", now));
+    }
+
+    @Test
+    public void testRefill() throws Exception {
+        final ClientThrottle throttle = new ClientThrottle(2D, 1);
+        final long now = System.nanoTime();
+
+        assertTrue(throttle.tryAcquire("10.0.0.1", now));
+        assertFalse(throttle.tryAcquire("10.0.0.1", now + TimeUnit.MILLISECONDS.toNanos(100)));
+        assertTrue(throttle.tryAcquire("10.0.0.1", now + TimeUnit.MILLISECONDS.toNanos(500)));
+    }
+
+    @Test
+    public void testClientsAreIndependent() throws Exception {
+        final ClientThrottle throttle = new ClientThrottle(1D, 1, 1 << 16);
+        final long now = System.nanoTime();
+
+        assertTrue(throttle.tryAcquire("10.0.0.1", now));
+        assertFalse(throttle.tryAcquire("10.0.0.1", now));
+        assertTrue(throttle.tryAcquire("192.168.1.20", now));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRate() throws Exception {
+        new ClientThrottle(0D, 1);
+    }
+}
@@ -0,0 +1,731 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import com.adobe.acs.commons.wcm.ComponentHelper;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.search.PredicateGroup;
+import com.day.cq.search.Query;
+import com.day.cq.search.QueryBuilder;
+import com.day.cq.search.result.Hit;
+import com.day.cq.search.result.SearchResult;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ErrorPageHandlerImplTest {
+
+    @Mock
+    private ResourceResolver resourceResolver;
+
+    @Mock
+    private ResourceResolver restrictedResourceResolver;
+
+    @Mock
+    private ResourceResolver adminResourceResolver;
+
+    @Mock
+    private ResourceResolverFactory resourceResolverFactory;
+
+    @Mock
+    private QueryBuilder queryBuilder;
+
+    @Mock
+    private SearchResult searchResult;
+
+    @Mock
+    private ComponentContext componentContext;
+
+    @Mock
+    private ComponentHelper componentHelper;
+
+    @Spy
+    private ErrorPageHandlerMetrics metrics;
+
+    @InjectMocks
+    private ErrorPageHandlerImpl errorPageHandler = new ErrorPageHandlerImpl();
+
+    /* Pages with an authored errorPages property, as found by the query on activation */
+    private final List<Hit> hits = new ArrayList<Hit>();
+
+    /* Error pages found by the error page queries */
+    private final List<Node> errorPageNodes = new ArrayList<Node>();
+
+    public ErrorPageHandlerImplTest() throws Exception {
+        // The metrics MBean's constructor throws a checked exception, so cannot be a field initializer
+        metrics = new ErrorPageHandlerMetrics();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final Query query = mock(Query.class);
+
+        when(resourceResolverFactory.getAdministrativeResourceResolver(null)).thenReturn(adminResourceResolver);
+        when(queryBuilder.createQuery(any(PredicateGroup.class), any(Session.class))).thenReturn(query);
+        when(query.getResult()).thenReturn(searchResult);
+        when(searchResult.getHits()).thenReturn(hits);
+        when(searchResult.getNodes()).thenAnswer(new Answer<Iterator<Node>>() {
+            public Iterator<Node> answer(final InvocationOnMock invocation) throws Throwable {
+                return new ArrayList<Node>(errorPageNodes).iterator();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        errorPageHandler.deactivate(componentContext);
+    }
+
+    @Test
+    public void testFindErrorPage_FollowsAuthoredErrorPages() throws Exception {
+        mockExistingPaths(resourceResolver, "/", "/content", "/content/site", "/content/site/en",
+                "/content/site/errors", "/content/site/en/errors", "/content/site/en/oops");
+
+        // Indexed on activation
+        hits.add(mockHit("/content/site", "/content/site/errors"));
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        final Resource contentResource = mock(Resource.class);
+        when(contentResource.adaptTo(ValueMap.class)).thenReturn(new ValueMapDecorator(properties));
+        when(adminResourceResolver.getResource("/content/site/en/jcr:content")).thenReturn(contentResource);
+
+        activate(new Hashtable<String, Object>());
+
+        assertEquals("/content/site/errors.html", findErrorPage("/content/site/en/missing.html"));
+
+        // Added
+        properties.put("errorPages", "/content/site/en/errors");
+        errorPageHandler.handleEvent(changeEvent("/content/site/en/jcr:content",
+                SlingConstants.PROPERTY_ADDED_ATTRIBUTES, "errorPages"));
+
+        awaitErrorPages("/content/site/en", "/content/site/en/errors");
+        assertEquals("/content/site/en/errors.html", findErrorPage("/content/site/en/missing.html"));
+
+        // Changed
+        properties.put("errorPages", "/content/site/en/oops");
+        errorPageHandler.handleEvent(changeEvent("/content/site/en/jcr:content",
+                SlingConstants.PROPERTY_CHANGED_ATTRIBUTES, "errorPages"));
+
+        awaitErrorPages("/content/site/en", "/content/site/en/oops");
+        assertEquals("/content/site/en/oops.html", findErrorPage("/content/site/en/missing.html"));
+
+        // Removed
+        properties.remove("errorPages");
+        errorPageHandler.handleEvent(changeEvent("/content/site/en/jcr:content",
+                SlingConstants.PROPERTY_REMOVED_ATTRIBUTES, "errorPages"));
+
+        awaitErrorPages("/content/site/en", null);
+        assertFalse(errorPageHandler.getErrorPagesMap().containsKey("/content/site/en"));
+        assertEquals("/content/site/errors.html", findErrorPage("/content/site/en/missing.html"));
+    }
+
+    @Test
+    public void testFindErrorPage_IgnoresOtherPropertyChanges() throws Exception {
+        mockExistingPaths(resourceResolver, "/", "/content", "/content/site", "/content/site/errors");
+
+        hits.add(mockHit("/content/site", "/content/site/errors"));
+
+        activate(new Hashtable<String, Object>());
+
+        errorPageHandler.handleEvent(changeEvent("/content/site/jcr:content",
+                SlingConstants.PROPERTY_CHANGED_ATTRIBUTES, "jcr:title"));
+
+        // The page is not re-read, so the index is unchanged
+        Thread.sleep(100);
+        verify(adminResourceResolver, never()).getResource("/content/site/jcr:content");
+        assertEquals("/content/site/errors.html", findErrorPage("/content/site/missing.html"));
+    }
+
+    @Test
+    public void testFindErrorPage_CachesErrorPagesLazily() throws Exception {
+        mockExistingPaths(resourceResolver, "/", "/content", "/content/site", "/content/site/errors",
+                "/content/site/errors/404");
+        mockExistingPaths(adminResourceResolver, "/content/site/errors/404");
+        errorPageNodes.add(mockNode("/content/site/errors/404"));
+
+        activate(configuredPaths("/content/site:errors"));
+
+        // Nothing is searched for until the first error
+        verify(searchResult, never()).getNodes();
+
+        assertEquals("/content/site/errors/404.html", findErrorPage("/content/site/missing.html"));
+        assertEquals("/content/site/errors/404.html", findErrorPage("/content/site/other.html"));
+
+        verify(searchResult, times(1)).getNodes();
+
+        assertEquals(1, metrics.getCaches().get(ErrorPageHandlerMetrics.ERROR_PAGE_CACHE).getHits());
+        assertEquals(1, metrics.getCaches().get(ErrorPageHandlerMetrics.ERROR_PAGE_CACHE).getMisses());
+    }
+
+    @Test
+    public void testFindErrorPage_CachedErrorPageNotReadable() throws Exception {
+        mockExistingPaths(resourceResolver, "/", "/content", "/content/site", "/content/site/errors",
+                "/content/site/errors/404", "/content/site/errors/en/404");
+        mockExistingPaths(adminResourceResolver, "/content/site/errors/404", "/content/site/errors/en/404");
+        errorPageNodes.add(mockNode("/content/site/errors/404"));
+        errorPageNodes.add(mockNode("/content/site/errors/en/404"));
+
+        // The restricted user cannot read the error page found (and cached) by the administrative resolver
+        mockExistingPaths(restrictedResourceResolver, "/", "/content", "/content/site", "/content/site/errors",
+                "/content/site/errors/en/404");
+
+        activate(configuredPaths("/content/site:errors"));
+
+        assertEquals("/content/site/errors/404.html", findErrorPage("/content/site/missing.html"));
+        assertEquals("/content/site/errors/en/404.html",
+                findErrorPage(restrictedResourceResolver, "/content/site/missing.html"));
+
+        // The restricted user's search is not cached
+        assertEquals("/content/site/errors/404.html", findErrorPage("/content/site/missing.html"));
+
+        verify(searchResult, times(2)).getNodes();
+        assertEquals(1, metrics.getCaches().get(ErrorPageHandlerMetrics.ERROR_PAGE_CACHE).getHits());
+        assertEquals(2, metrics.getCaches().get(ErrorPageHandlerMetrics.ERROR_PAGE_CACHE).getMisses());
+    }
+
+    @Test
+    public void testFindErrorPage_CacheInvalidatedUnderErrorsRoot() throws Exception {
+        mockExistingPaths(resourceResolver, "/", "/content", "/content/site", "/content/site/errors",
+                "/content/site/errors/404");
+        mockExistingPaths(adminResourceResolver, "/content/site/errors/404");
+        errorPageNodes.add(mockNode("/content/site/errors/404"));
+
+        activate(configuredPaths("/content/site:errors"));
+
+        assertEquals("/content/site/errors/404.html", findErrorPage("/content/site/missing.html"));
+        verify(searchResult, times(1)).getNodes();
+
+        // Changes to page content do not affect which pages exist
+        errorPageHandler.handleEvent(changeEvent("/content/site/errors/404/jcr:content",
+                SlingConstants.PROPERTY_CHANGED_ATTRIBUTES, "jcr:title"));
+
+        assertEquals("/content/site/errors/404.html", findErrorPage("/content/site/missing.html"));
+        verify(searchResult, times(1)).getNodes();
+
+        // Created
+        errorPageHandler.handleEvent(pageEvent(SlingConstants.TOPIC_RESOURCE_ADDED, "/content/site/errors/500"));
+
+        assertEquals("/content/site/errors/404.html", findErrorPage("/content/site/missing.html"));
+        verify(searchResult, times(2)).getNodes();
+
+        // Moved (the source is removed, and the destination added)
+        errorPageNodes.clear();
+        errorPageNodes.add(mockNode("/content/site/errors/moved/404"));
+        mockExistingPaths(resourceResolver, "/content/site/errors/moved/404");
+        mockExistingPaths(adminResourceResolver, "/content/site/errors/moved/404");
+        when(resourceResolver.getResource("/content/site/errors/404")).thenReturn(null);
+        when(adminResourceResolver.getResource("/content/site/errors/404")).thenReturn(null);
+
+        errorPageHandler.handleEvent(pageEvent(SlingConstants.TOPIC_RESOURCE_REMOVED, "/content/site/errors/404"));
+        errorPageHandler.handleEvent(pageEvent(SlingConstants.TOPIC_RESOURCE_ADDED,
+                "/content/site/errors/moved/404"));
+
+        assertEquals("/content/site/errors/moved/404.html", findErrorPage("/content/site/missing.html"));
+        verify(searchResult, times(3)).getNodes();
+
+        // Deleted
+        errorPageNodes.clear();
+        when(resourceResolver.getResource("/content/site/errors/moved/404")).thenReturn(null);
+        when(adminResourceResolver.getResource("/content/site/errors/moved/404")).thenReturn(null);
+
+        errorPageHandler.handleEvent(pageEvent(SlingConstants.TOPIC_RESOURCE_REMOVED,
+                "/content/site/errors/moved/404"));
+
+        // Falls back to the errors root's default error page
+        assertEquals("/content/site/errors.html", findErrorPage("/content/site/missing.html"));
+        verify(searchResult, times(4)).getNodes();
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        mockExistingPaths(adminResourceResolver, "/content/site", "/content/site/errors", "/content/site/errors/404");
+        errorPageNodes.add(mockNode("/content/site/errors/404"));
+
+        // Only the content tree is readable by the requesting user
+        mockExistingPaths(resourceResolver, "/content/site", "/content/site/errors", "/content/site/errors/404");
+
+        final Hashtable<String, Object> properties = configuredPaths("/content/site:errors");
+        properties.put("prop.warm-up.enabled", true);
+        properties.put("prop.warm-up.error-page-names", new String[]{ "404" });
+
+        activate(properties);
+
+        // Wait for the warm-up to finish (activation's index also closes its resource resolver)
+        verify(adminResourceResolver, timeout(5000).times(2)).close();
+        verify(searchResult, times(1)).getNodes();
+
+        assertEquals("/content/site/errors/404.html", findErrorPage("/content/site/missing.html"));
+
+        // The first request is served from the caches; the repository root is never walked
+        verify(searchResult, times(1)).getNodes();
+        verify(resourceResolver, never()).getResource("/");
+
+        assertEquals(1, metrics.getCaches().get(ErrorPageHandlerMetrics.ERROR_PAGE_CACHE).getHits());
+        assertEquals(0, metrics.getCaches().get(ErrorPageHandlerMetrics.ERROR_PAGE_CACHE).getMisses());
+        assertEquals(1, metrics.getCaches().get(ErrorPageHandlerMetrics.KNOWN_PATH_CACHE).getHits());
+        assertEquals(0, metrics.getCaches().get(ErrorPageHandlerMetrics.KNOWN_PATH_CACHE).getMisses());
+    }
+
+    @Test
+    public void testWarmUp_StoppedOnDeactivate() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final AtomicInteger warmedUp = new AtomicInteger();
+
+        // Each content tree's warm-up blocks until interrupted
+        final Answer<Resource> blocking = new Answer<Resource>() {
+            public Resource answer(final InvocationOnMock invocation) throws Throwable {
+                warmedUp.incrementAndGet();
+                started.countDown();
+
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    Thread.currentThread().interrupt();
+                }
+
+                return null;
+            }
+        };
+
+        when(adminResourceResolver.getResource("/content/a")).thenAnswer(blocking);
+        when(adminResourceResolver.getResource("/content/b")).thenAnswer(blocking);
+
+        final Hashtable<String, Object> properties = configuredPaths("/content/a:errors", "/content/b:errors");
+        properties.put("prop.warm-up.enabled", true);
+
+        activate(properties);
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        errorPageHandler.deactivate(componentContext);
+
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+        // The warm-up closes its resource resolver without moving on to the next content tree
+        verify(adminResourceResolver, timeout(5000).times(2)).close();
+        assertEquals(1, warmedUp.get());
+    }
+
+    @Test
+    public void testIncludeErrorPage_ReplaysContentTypeAndCharset() throws Exception {
+        activate(renderedPageCache(300));
+
+        final RequestDispatcher dispatcher = mockErrorPageDispatcher("<html>Not Found</html>");
+        final SlingHttpServletRequest request = mockErrorRequest(dispatcher, false);
+
+        // Rendered
+        final StringWriter out = new StringWriter();
+        final SlingHttpServletResponse response = mockResponse(out);
+        when(response.getContentType()).thenReturn("application/xhtml+xml");
+        when(response.getCharacterEncoding()).thenReturn("ISO-8859-1");
+
+        errorPageHandler.includeErrorPage(request, response, "/content/site/errors/404.html");
+
+        assertEquals("<html>Not Found</html>", out.toString());
+
+        // Served from the cache, with the headers the error page set when rendered
+        final StringWriter cachedOut = new StringWriter();
+        final SlingHttpServletResponse cachedResponse = mockResponse(cachedOut);
+
+        errorPageHandler.includeErrorPage(request, cachedResponse, "/content/site/errors/404.html");
+
+        assertEquals("<html>Not Found</html>", cachedOut.toString());
+        verify(cachedResponse).setContentType("application/xhtml+xml");
+        verify(cachedResponse).setCharacterEncoding("ISO-8859-1");
+
+        verify(dispatcher, times(1)).include(any(ServletRequest.class), any(ServletResponse.class));
+        assertEquals(1, metrics.getCaches().get(ErrorPageHandlerMetrics.RENDERED_PAGE_CACHE).getHits());
+    }
+
+    @Test
+    public void testIncludeErrorPage_Expires() throws Exception {
+        activate(renderedPageCache(1));
+
+        final RequestDispatcher dispatcher = mockErrorPageDispatcher("<html>Not Found</html>");
+        final SlingHttpServletRequest request = mockErrorRequest(dispatcher, false);
+
+        errorPageHandler.includeErrorPage(request, mockResponse(new StringWriter()), "/content/site/errors/404.html");
+        errorPageHandler.includeErrorPage(request, mockResponse(new StringWriter()), "/content/site/errors/404.html");
+
+        verify(dispatcher, times(1)).include(any(ServletRequest.class), any(ServletResponse.class));
+
+        // Re-rendered once the TTL has passed
+        Thread.sleep(1100);
+
+        final StringWriter out = new StringWriter();
+        errorPageHandler.includeErrorPage(request, mockResponse(out), "/content/site/errors/404.html");
+
+        assertEquals("<html>Not Found</html>", out.toString());
+        verify(dispatcher, times(2)).include(any(ServletRequest.class), any(ServletResponse.class));
+    }
+
+    @Test
+    public void testIncludeErrorPage_NotCachedForAuthenticatedRequests() throws Exception {
+        activate(renderedPageCache(300));
+
+        final RequestDispatcher dispatcher = mockErrorPageDispatcher("<html>Not Found</html>");
+        final SlingHttpServletRequest request = mockErrorRequest(dispatcher, true);
+        final SlingHttpServletResponse response = mockResponse(new StringWriter());
+
+        errorPageHandler.includeErrorPage(request, response, "/content/site/errors/404.html");
+        errorPageHandler.includeErrorPage(request, response, "/content/site/errors/404.html");
+
+        // Rendered directly into the response every time
+        verify(dispatcher, times(2)).include(request, response);
+        assertEquals(0, metrics.getCaches().get(ErrorPageHandlerMetrics.RENDERED_PAGE_CACHE).getMisses());
+    }
+
+    @Test
+    public void testIncludeErrorPage_InvalidatedOnReplication() throws Exception {
+        activate(renderedPageCache(300));
+
+        final RequestDispatcher dispatcher = mockErrorPageDispatcher("<html>Not Found</html>");
+        final SlingHttpServletRequest request = mockErrorRequest(dispatcher, false);
+
+        errorPageHandler.includeErrorPage(request, mockResponse(new StringWriter()), "/content/site/errors/404.html");
+
+        // Replication of other content does not invalidate the error page
+        errorPageHandler.handleEvent(
+                new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/site/en").toEvent());
+        errorPageHandler.includeErrorPage(request, mockResponse(new StringWriter()), "/content/site/errors/404.html");
+
+        verify(dispatcher, times(1)).include(any(ServletRequest.class), any(ServletResponse.class));
+
+        errorPageHandler.handleEvent(
+                new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/site/errors/404").toEvent());
+        errorPageHandler.includeErrorPage(request, mockResponse(new StringWriter()), "/content/site/errors/404.html");
+
+        verify(dispatcher, times(2)).include(any(ServletRequest.class), any(ServletResponse.class));
+    }
+
+    @Test
+    public void testFindFirstRealParentOrSelf_Existing() throws Exception {
+        final Resource resource = mockResource(resourceResolver, "/content/site/en");
+
+        assertSame(resource, errorPageHandler.findFirstRealParentOrSelf(resource));
+    }
+
+    @Test
+    public void testFindFirstRealParentOrSelf_WalksDownFromKnownPath() throws Exception {
+        mockResource(resourceResolver, "/");
+        mockResource(resourceResolver, "/content");
+        mockResource(resourceResolver, "/content/site");
+        final Resource en = mockResource(resourceResolver, "/content/site/en");
+
+        // Nothing is known yet, so walks down from the root
+        assertSame(en, errorPageHandler.findFirstRealParentOrSelf(
+                mockNonExistingResource(resourceResolver, "/content/site/en/missing/deeper.html")));
+
+        // Walks up (without repository access) to the known /content/site/en
+        assertSame(en, errorPageHandler.findFirstRealParentOrSelf(
+                mockNonExistingResource(resourceResolver, "/content/site/en/missing/other.html")));
+
+        verify(resourceResolver, times(1)).getResource("/");
+        verify(resourceResolver, times(1)).getResource("/content");
+        verify(resourceResolver, times(1)).getResource("/content/site");
+        verify(resourceResolver, times(2)).getResource("/content/site/en");
+        verify(resourceResolver, times(2)).getResource("/content/site/en/missing");
+
+        assertEquals(1, metrics.getCaches().get(ErrorPageHandlerMetrics.KNOWN_PATH_CACHE).getHits());
+        assertEquals(1, metrics.getCaches().get(ErrorPageHandlerMetrics.KNOWN_PATH_CACHE).getMisses());
+    }
+
+    @Test
+    public void testFindFirstRealParentOrSelf_UnreadableKnownAncestor() throws Exception {
+        mockResource(resourceResolver, "/");
+        mockResource(resourceResolver, "/content");
+        mockResource(resourceResolver, "/content/site");
+        mockResource(resourceResolver, "/content/site/en");
+
+        // Caches /content, /content/site and /content/site/en as known paths
+        errorPageHandler.findFirstRealParentOrSelf(
+                mockNonExistingResource(resourceResolver, "/content/site/en/missing.html"));
+
+        // The restricted user can read /content/site, but not /content/site/en
+        final Resource site = mockResource(restrictedResourceResolver, "/content/site");
+
+        assertSame(site, errorPageHandler.findFirstRealParentOrSelf(
+                mockNonExistingResource(restrictedResourceResolver, "/content/site/en/missing.html")));
+
+        verify(restrictedResourceResolver, times(2)).getResource("/content/site/en");
+        verify(restrictedResourceResolver, never()).getResource("/content");
+        verify(restrictedResourceResolver, never()).getResource("/");
+    }
+
+    @Test
+    public void testFindFirstRealParentOrSelf_EvictsLeastRecentlyUsedKnownPaths() throws Exception {
+        final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("prop.cache.known-paths.size", 4);
+        activate(properties);
+
+        mockResource(resourceResolver, "/");
+        mockResource(resourceResolver, "/content");
+        mockResource(resourceResolver, "/content/a");
+        mockResource(resourceResolver, "/content/b");
+        final Resource c = mockResource(resourceResolver, "/content/c");
+        mockResource(resourceResolver, "/content/d");
+
+        // Each walk uses /content and adds its child; the fourth child exceeds the cache size
+        for (final String name : new String[]{ "a", "b", "c", "d" }) {
+            errorPageHandler.findFirstRealParentOrSelf(
+                    mockNonExistingResource(resourceResolver, "/content/" + name + "/missing.html"));
+        }
+
+        verify(resourceResolver, times(4)).getResource("/content");
+
+        // The recently used /content/c is still known
+        assertSame(c, errorPageHandler.findFirstRealParentOrSelf(
+                mockNonExistingResource(resourceResolver, "/content/c/missing.html")));
+        verify(resourceResolver, times(4)).getResource("/content");
+
+        // The least recently used /content/a was evicted, so is found again from /content
+        errorPageHandler.findFirstRealParentOrSelf(
+                mockNonExistingResource(resourceResolver, "/content/a/missing.html"));
+        verify(resourceResolver, times(5)).getResource("/content");
+    }
+
+    @Test
+    public void testGetException_NotTruncated() throws Exception {
+        final Exception exception = new Exception("deep");
+        final StackTraceElement[] stackTrace = new StackTraceElement[150];
+        for (int i = 0; i < stackTrace.length; i++) {
+            stackTrace[i] = new StackTraceElement("com.example.Deep", "method" + i, "Deep.java", i);
+        }
+        exception.setStackTrace(stackTrace);
+
+        final SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getAttribute(SlingConstants.ERROR_EXCEPTION)).thenReturn(exception);
+
+        final String trace = errorPageHandler.getException(request);
+
+        assertTrue(trace.contains("method0("));
+        assertTrue(trace.contains("method149("));
+
+        // Only writeException is limited to the configured stack depth
+        final StringWriter out = new StringWriter();
+        errorPageHandler.writeException(request, out, false);
+
+        assertTrue(out.toString().contains("method99("));
+        assertFalse(out.toString().contains("method100("));
+    }
+
+    private void activate(final Hashtable<String, Object> properties) {
+        // Warm-up is only enabled by its own tests
+        if (!properties.containsKey("prop.warm-up.enabled")) {
+            properties.put("prop.warm-up.enabled", false);
+        }
+
+        when(componentContext.getProperties()).thenReturn(properties);
+
+        errorPageHandler.activate(componentContext);
+    }
+
+    private Hashtable<String, Object> renderedPageCache(final int ttl) {
+        final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("prop.cache.rendered-pages.enabled", true);
+        properties.put("prop.cache.rendered-pages.ttl", ttl);
+
+        return properties;
+    }
+
+    private RequestDispatcher mockErrorPageDispatcher(final String html) throws Exception {
+        final RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+
+        doAnswer(new Answer<Void>() {
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                ((ServletResponse) invocation.getArguments()[1]).getWriter().write(html);
+                return null;
+            }
+        }).when(dispatcher).include(any(ServletRequest.class), any(ServletResponse.class));
+
+        return dispatcher;
+    }
+
+    private SlingHttpServletRequest mockErrorRequest(final RequestDispatcher dispatcher, final boolean authenticated) {
+        final SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getAttribute(SlingConstants.ERROR_STATUS)).thenReturn(404);
+        when(request.getRequestDispatcher("/content/site/errors/404.html")).thenReturn(dispatcher);
+        when(componentHelper.isDisabledMode(request)).thenReturn(true);
+
+        if (authenticated) {
+            when(request.getAuthType()).thenReturn("BASIC");
+            when(request.getRemoteUser()).thenReturn("admin");
+        }
+
+        return request;
+    }
+
+    private SlingHttpServletResponse mockResponse(final StringWriter out) throws Exception {
+        final SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        when(response.getWriter()).thenReturn(new PrintWriter(out));
+
+        return response;
+    }
+
+    private Hashtable<String, Object> configuredPaths(final String... paths) {
+        final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("prop.paths", paths);
+
+        return properties;
+    }
+
+    private String findErrorPage(final String path) {
+        return findErrorPage(resourceResolver, path);
+    }
+
+    private String findErrorPage(final ResourceResolver resolver, final String path) {
+        final SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        when(request.getAttribute(SlingConstants.ERROR_STATUS)).thenReturn(404);
+
+        return errorPageHandler.findErrorPage(request, mockNonExistingResource(resolver, path));
+    }
+
+    /**
+     * Wait for the index thread to map the root path to the errors path (or to no errors path, if null).
+     */
+    private void awaitErrorPages(final String rootPath, final String errorsPath) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            final String indexed = errorPageHandler.getErrorPagesMap().get(rootPath);
+
+            if (errorsPath == null ? indexed == null : errorsPath.equals(indexed)) {
+                return;
+            }
+
+            Thread.sleep(50);
+        }
+    }
+
+    private Event changeEvent(final String path, final String attributesProperty, final String... attributes) {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(SlingConstants.PROPERTY_PATH, path);
+        properties.put(attributesProperty, attributes);
+
+        return new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, properties);
+    }
+
+    private Event pageEvent(final String topic, final String path) {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(SlingConstants.PROPERTY_PATH, path);
+        properties.put(SlingConstants.PROPERTY_RESOURCE_TYPE, "cq:Page");
+
+        return new Event(topic, properties);
+    }
+
+    private Node mockNode(final String path) throws Exception {
+        final Node node = mock(Node.class);
+        when(node.getPath()).thenReturn(path);
+
+        return node;
+    }
+
+    private Hit mockHit(final String pagePath, final String errorsPath) throws Exception {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("errorPages", errorsPath);
+
+        final Resource contentResource = mock(Resource.class);
+        when(contentResource.adaptTo(ValueMap.class)).thenReturn(new ValueMapDecorator(properties));
+
+        final Resource page = mock(Resource.class);
+        when(page.getChild("jcr:content")).thenReturn(contentResource);
+
+        final Hit hit = mock(Hit.class);
+        when(hit.getPath()).thenReturn(pagePath);
+        when(hit.getResource()).thenReturn(page);
+
+        return hit;
+    }
+
+    private void mockExistingPaths(final ResourceResolver resolver, final String... paths) {
+        for (final String path : paths) {
+            final Resource resource = mockResource(resolver, path);
+            when(resolver.resolve(path)).thenReturn(resource);
+        }
+    }
+
+    private Resource mockResource(final ResourceResolver resolver, final String path) {
+        final Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(path);
+        when(resource.getResourceType()).thenReturn("cq:Page");
+        when(resource.getResourceResolver()).thenReturn(resolver);
+        when(resolver.getResource(path)).thenReturn(resource);
+
+        return resource;
+    }
+
+    private Resource mockNonExistingResource(final ResourceResolver resolver, final String path) {
+        final Resource resource = mock(Resource.class);
+        when(resource.getPath()).thenReturn(path);
+        when(resource.getResourceType()).thenReturn(Resource.RESOURCE_TYPE_NON_EXISTING);
+        when(resource.getResourceResolver()).thenReturn(resolver);
+
+        return resource;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PathTrieTest {
+
+    private PathTrie<String> createTrie() {
+        final Map<String, String> paths = new LinkedHashMap<String, String>();
+        paths.put("/content/geometrixx/en/products", "/content/geometrixx/en/products/errors");
+        paths.put("/content/geometrixx/en", "/content/geometrixx/en/errors");
+        paths.put("/content/geometrixx", "/content/geometrixx/errors");
+        paths.put("/content/geometrixx-media", "/content/geometrixx-media/errors");
+        return new PathTrie<String>(paths);
+    }
+
+    @Test
+    public void testGetDeepestMatch() throws Exception {
+        final PathTrie<String> trie = createTrie();
+
+        assertEquals("/content/geometrixx/en/products/errors", trie.get("/content/geometrixx/en/products/triangle"));
+        assertEquals("/content/geometrixx/en/products/errors", trie.get("/content/geometrixx/en/products"));
+        assertEquals("/content/geometrixx/en/errors", trie.get("/content/geometrixx/en/company"));
+        assertEquals("/content/geometrixx/errors", trie.get("/content/geometrixx/fr"));
+        assertEquals("/content/geometrixx-media/errors", trie.get("/content/geometrixx-media/articles"));
+    }
+
+    @Test
+    public void testGetDeepestMatch_NoMatch() throws Exception {
+        final PathTrie<String> trie = createTrie();
+
+        assertNull(trie.get("/content"));
+        assertNull(trie.get("/content/geometrixx-outdoors"));
+        assertNull(trie.get("/content/geo"));
+        assertNull(trie.get("/etc/geometrixx"));
+        assertNull(trie.get(null));
+    }
+
+    @Test
+    public void testGetParentMatch() throws Exception {
+        final PathTrie<String> trie = createTrie();
+
+        PathTrie.Entry<String> match = trie.getDeepestMatch("/content/geometrixx/en/products/triangle/jcr:content");
+        assertEquals("/content/geometrixx/en/products", match.getPath());
+
+        match = match.getParentMatch();
+        assertEquals("/content/geometrixx/en", match.getPath());
+
+        match = match.getParentMatch();
+        assertEquals("/content/geometrixx", match.getPath());
+
+        assertNull(match.getParentMatch());
+    }
+
+    @Test
+    public void testRootPath() throws Exception {
+        final Map<String, String> paths = new LinkedHashMap<String, String>();
+        paths.put("/content/geometrixx/", "/content/geometrixx/errors");
+        paths.put("/", "/content/errors");
+
+        final PathTrie<String> trie = new PathTrie<String>(paths);
+
+        assertEquals("/content/geometrixx/errors", trie.get("/content/geometrixx/en"));
+        assertEquals("/content/errors", trie.get("/etc/designs"));
+        assertEquals("/content/errors", trie.get("/"));
+    }
+
+    @Test
+    public void testAsMap() throws Exception {
+        final Map<String, String> paths = new LinkedHashMap<String, String>();
+        paths.put("/content/a", "first");
+        paths.put("/content/a/", "duplicate");
+        paths.put("/content/b", "second");
+
+        final PathTrie<String> trie = new PathTrie<String>(paths);
+
+        assertEquals(2, trie.size());
+        assertEquals("first", trie.get("/content/a/b"));
+        assertTrue(trie.asMap().containsKey("/content/b"));
+        assertTrue(new PathTrie<String>(new LinkedHashMap<String, String>()).isEmpty());
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.errorpagehandler.impl;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StackTraceWriterTest {
+
+    private static StackTraceElement frame(String method) {
+        return new StackTraceElement("com.example.Foo", method, "Foo.java", 1);
+    }
+
+    private static String write(Throwable throwable, int maxFrames, boolean escapeHtml) throws Exception {
+        final StringWriter writer = new StringWriter();
+        new StackTraceWriter(writer, maxFrames, escapeHtml).write(throwable);
+        return writer.toString();
+    }
+
+    @Test
+    public void testCauseFramesInCommon() throws Exception {
+        final Exception cause = new IllegalStateException("cause");
+        cause.setStackTrace(new StackTraceElement[]{ frame("c"), frame("b"), frame("a") });
+
+        final Exception exception = new RuntimeException("outer", cause);
+        exception.setStackTrace(new StackTraceElement[]{ frame("d"), frame("b"), frame("a") });
+
+        final String expected = "java.lang.RuntimeException: outer\n"
+                + "\tat com.example.Foo.d(Foo.java:1)\n"
+                + "\tat com.example.Foo.b(Foo.java:1)\n"
+                + "\tat com.example.Foo.a(Foo.java:1)\n"
+                + "Caused by: java.lang.IllegalStateException: cause\n"
+                + "\tat com.example.Foo.c(Foo.java:1)\n"
+                + "\t... 2 more\n";
+
+        assertEquals(expected, write(exception, 0, false));
+    }
+
+    @Test
+    public void testRepeatedFrames() throws Exception {
+        final Exception exception = new RuntimeException("recursion");
+        exception.setStackTrace(new StackTraceElement[]{ frame("a"), frame("b"), frame("b"), frame("b"), frame("c") });
+
+        final String expected = "java.lang.RuntimeException: recursion\n"
+                + "\tat com.example.Foo.a(Foo.java:1)\n"
+                + "\tat com.example.Foo.b(Foo.java:1)\n"
+                + "\t... repeated 2 more times\n"
+                + "\tat com.example.Foo.c(Foo.java:1)\n";
+
+        assertEquals(expected, write(exception, 0, false));
+    }
+
+    @Test
+    public void testMaxFrames() throws Exception {
+        final Exception exception = new RuntimeException("deep");
+        exception.setStackTrace(new StackTraceElement[]{ frame("a"), frame("b"), frame("c"), frame("d") });
+
+        final String expected = "java.lang.RuntimeException: deep\n"
+                + "\tat com.example.Foo.a(Foo.java:1)\n"
+                + "\tat com.example.Foo.b(Foo.java:1)\n"
+                + "\t... 2 frames truncated\n";
+
+        assertEquals(expected, write(exception, 2, false));
+    }
+
+    @Test
+    public void testEscapeHtml() throws Exception {
+        final Exception exception = new RuntimeException("<script>");
+        exception.setStackTrace(new StackTraceElement[0]);
+
+        assertEquals("java.lang.RuntimeException: &lt;script&gt;\n", write(exception, 0, true));
+    }
+
+    @Test
+    public void testCircularCause() throws Exception {
+        final Exception first = new RuntimeException("first");
+        final Exception second = new RuntimeException("second", first);
+        first.initCause(second);
+
+        assertTrue(write(first, 1, false).contains("[CIRCULAR REFERENCE: java.lang.RuntimeException: first]"));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.day.cq.replication.ReplicationActionType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoalescingFlushQueueTest {
+    private final List<String> flushes = new ArrayList<String>();
+
+    private CoalescingFlushQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        // Long window; the tests drain the queue explicitly
+        this.queue = new CoalescingFlushQueue(60000, new CoalescingFlushQueue.FlushHandler() {
+            public void flush(final ReplicationActionType actionType, final DispatcherFlushFilter agentFilter,
+                              final String[] paths) {
+                flushes.add(actionType.name() + " " + agentFilter.getFlushType() + " " + Arrays.asList(paths));
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.queue.close();
+    }
+
+    @Test
+    public void testReduce_hierarchical() throws Exception {
+        final List<String> actual = CoalescingFlushQueue.reduce(Arrays.asList("/content/a/b", "/content/a-b",
+                "/content/a", "/content/a/b/c", "/content/a", "/etc/x"), true);
+
+        assertEquals(Arrays.asList("/content/a", "/content/a-b", "/etc/x"), actual);
+    }
+
+    @Test
+    public void testReduce_root() throws Exception {
+        final List<String> actual = CoalescingFlushQueue.reduce(Arrays.asList("/content/a", "/"), true);
+
+        assertEquals(Arrays.asList("/"), actual);
+    }
+
+    @Test
+    public void testReduce_resourceOnly() throws Exception {
+        final List<String> actual = CoalescingFlushQueue.reduce(Arrays.asList("/content/a/b", "/content/a",
+                "/content/a/b"), false);
+
+        assertEquals(Arrays.asList("/content/a", "/content/a/b"), actual);
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        queue.add(ReplicationActionType.ACTIVATE, DispatcherFlushFilter.HIERARCHICAL, "/content/a/b");
+        queue.add(ReplicationActionType.ACTIVATE, DispatcherFlushFilter.HIERARCHICAL, "/content/a");
+        queue.add(ReplicationActionType.ACTIVATE, DispatcherFlushFilter.HIERARCHICAL, "/content/a");
+        queue.add(ReplicationActionType.DELETE, DispatcherFlushFilter.HIERARCHICAL, "/content/a/b");
+        queue.add(ReplicationActionType.ACTIVATE, DispatcherFlushFilter.RESOURCE_ONLY, "/content/a/b");
+
+        queue.drain();
+
+        assertEquals(Arrays.asList("ACTIVATE Hierarchical [/content/a]", "DELETE Hierarchical [/content/a/b]",
+                "ACTIVATE ResourceOnly [/content/a/b]"), flushes);
+        assertEquals(5, queue.getSubmittedCount());
+        assertEquals(3, queue.getFlushedCount());
+
+        // Nothing left to flush
+        queue.drain();
+        assertEquals(3, flushes.size());
+    }
+}
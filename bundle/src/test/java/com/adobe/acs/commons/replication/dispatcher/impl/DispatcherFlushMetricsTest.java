@@ -0,0 +1,128 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DispatcherFlushMetricsTest {
+
+    private DispatcherFlushMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        metrics = new DispatcherFlushMetrics();
+    }
+
+    @Test
+    public void testRecordResult() throws Exception {
+        metrics.recordResult(DispatcherFlushMetrics.FLUSH, ReplicationActionType.ACTIVATE, "/content/foo",
+                "flush-1", new ReplicationResult(true, 200, "OK"), 10);
+        metrics.recordResult(DispatcherFlushMetrics.FLUSH, ReplicationActionType.ACTIVATE, "/content/foo",
+                "flush-2", new ReplicationResult(false, 500, "Error"), 20);
+        metrics.recordResult(DispatcherFlushMetrics.FLUSH, ReplicationActionType.ACTIVATE, "/content/bar",
+                "flush-2", new ReplicationResult(true, 200, "OK"), 30);
+
+        assertEquals(3, metrics.getFlushCount());
+        assertEquals(1, metrics.getFailureCount());
+        assertEquals(1, metrics.getAgents().get("flush-1").getFlushes());
+        assertEquals(2, metrics.getAgents().get("flush-2").getFlushes());
+        assertEquals(1, metrics.getAgents().get("flush-2").getFailures());
+
+        final List<DispatcherFlushMetrics.AuditEntry> auditLog = metrics.getAuditLog();
+
+        assertEquals(3, auditLog.size());
+        assertEquals("/content/bar", auditLog.get(0).getPath());
+        assertTrue(auditLog.get(0).isSuccess());
+        assertEquals("flush-2", auditLog.get(1).getAgentId());
+        assertFalse(auditLog.get(1).isSuccess());
+        assertEquals(500, auditLog.get(1).getCode());
+    }
+
+    @Test
+    public void testAuditLog_Bounded() throws Exception {
+        final int total = DispatcherFlushMetrics.AUDIT_LOG_SIZE + 10;
+
+        for (int i = 0; i < total; i++) {
+            metrics.recordResult(DispatcherFlushMetrics.FLUSH_DIRECTLY, ReplicationActionType.ACTIVATE,
+                    "/content/" + i, "flush-1", new ReplicationResult(true, 200, "OK"), -1);
+        }
+
+        final List<DispatcherFlushMetrics.AuditEntry> auditLog = metrics.getAuditLog();
+
+        assertEquals(DispatcherFlushMetrics.AUDIT_LOG_SIZE, auditLog.size());
+        assertEquals("/content/" + (total - 1), auditLog.get(0).getPath());
+        assertEquals("/content/10", auditLog.get(auditLog.size() - 1).getPath());
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        metrics.countDeduplicated(3);
+        metrics.countCoalescingQueued();
+        metrics.countCoalescingQueued();
+        metrics.countCoalescingQueued();
+        metrics.countCoalescingFlushed(1);
+
+        assertEquals(3, metrics.getDeduplicatedCount());
+        assertEquals(2, metrics.getCoalescedCount());
+
+        metrics.reset();
+
+        assertEquals(0, metrics.getFlushCount());
+        assertTrue(metrics.getAuditLog().isEmpty());
+    }
+
+    @Test
+    public void testRuleMatches() throws Exception {
+        final Map<Pattern, String> rules = new LinkedHashMap<Pattern, String>();
+        rules.put(Pattern.compile("/content/.*"), "/content/foo");
+
+        final FlushRuleIndex hierarchical = new FlushRuleIndex(rules);
+        final FlushRuleIndex resourceOnly = new FlushRuleIndex(rules);
+
+        metrics.addRuleIndex(hierarchical);
+        metrics.addRuleIndex(resourceOnly);
+
+        hierarchical.getFlushPaths("/content/a");
+        hierarchical.getFlushPaths("/content/b");
+        resourceOnly.getFlushPaths("/content/a");
+
+        // Published from the indexes' counts; a rule configured for both flush types is counted once per match
+        assertEquals(Long.valueOf(3), metrics.getRuleMatches().get("/content/.*=/content/foo"));
+
+        metrics.reset();
+        assertEquals(Long.valueOf(0), metrics.getRuleMatches().get("/content/.*=/content/foo"));
+
+        metrics.removeRuleIndex(hierarchical);
+        metrics.removeRuleIndex(resourceOnly);
+        assertTrue(metrics.getRuleMatches().isEmpty());
+    }
+}
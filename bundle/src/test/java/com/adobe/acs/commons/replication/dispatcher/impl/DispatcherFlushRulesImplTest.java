@@ -36,6 +36,7 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
@@ -64,6 +65,9 @@ public class DispatcherFlushRulesImplTest {
     @Mock
     private ResourceResolverFactory resourceResolverFactory;
 
+    @Mock
+    private DispatcherFlushMetrics metrics;
+
     @InjectMocks
     private DispatcherFlushRulesImpl dispatcherFlushRules = new DispatcherFlushRulesImpl();
 
@@ -223,6 +227,25 @@ public class DispatcherFlushRulesImplTest {
         verifyZeroInteractions(dispatcherFlusher);
     }
 
+    @Test
+    public void testPreprocess_notAccepts_FlushRulesFlush() throws Exception {
+        // The flush target matches the rule's own pattern
+        this.hierarchicalFlushRules.put(Pattern.compile("/content/.*"), "/content/site");
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/site");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        final ReplicationOptions replicationOptions = new ReplicationOptions();
+        replicationOptions.setSynchronous(false);
+        replicationOptions.setFilter(new DispatcherFlushRulesImpl.DispatcherFlushRulesFilter(
+                DispatcherFlushFilter.FlushType.Hierarchical));
+
+        dispatcherFlushRules.preprocess(replicationAction, replicationOptions);
+
+        verifyZeroInteractions(dispatcherFlusher);
+    }
+
     @Test
     public void testPreprocess_notAccepts_NonMatchingPath() throws Exception {
         this.hierarchicalFlushRules.put(Pattern.compile("/content/foo.*"), "/content/target");
@@ -268,6 +291,33 @@ public class DispatcherFlushRulesImplTest {
         verifyNoMoreInteractions(dispatcherFlusher);
     }
 
+    @Test
+    public void testPreprocess_RuleMatchesCountedByIndex() throws Exception {
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put("prop.rules.hierarchical", "/content/acs-aem-commons/.*=/content/target");
+
+        dispatcherFlushRules.activate(properties);
+
+        // The hierarchical and ResourceOnly rule indexes are published by the metrics
+        final ArgumentCaptor<FlushRuleIndex> indexCaptor = ArgumentCaptor.forClass(FlushRuleIndex.class);
+        verify(metrics, times(2)).addRuleIndex(indexCaptor.capture());
+
+        final ReplicationAction replicationAction = mock(ReplicationAction.class);
+        when(replicationAction.getPath()).thenReturn("/content/acs-aem-commons/page");
+        when(replicationAction.getType()).thenReturn(ReplicationActionType.ACTIVATE);
+
+        dispatcherFlushRules.preprocess(replicationAction, new ReplicationOptions());
+
+        final FlushRuleIndex hierarchicalIndex = indexCaptor.getAllValues().get(0);
+        assertEquals(Long.valueOf(1),
+                hierarchicalIndex.getMatchCounts().get("/content/acs-aem-commons/.*=/content/target"));
+
+        dispatcherFlushRules.deactivate(properties);
+
+        verify(metrics).removeRuleIndex(indexCaptor.getAllValues().get(0));
+        verify(metrics).removeRuleIndex(indexCaptor.getAllValues().get(1));
+    }
+
     @Test
     public void testPreprocess_success_resourceOnly() throws Exception {
         resourceOnlyFlushRules.put(Pattern.compile("/content/acs-aem-commons/.*"), "/content/target");
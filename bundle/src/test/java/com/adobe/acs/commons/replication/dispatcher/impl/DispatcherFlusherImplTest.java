@@ -20,36 +20,60 @@
 
 package com.adobe.acs.commons.replication.dispatcher.impl;
 
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
 import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
 import com.day.cq.replication.Agent;
 import com.day.cq.replication.AgentConfig;
 import com.day.cq.replication.AgentManager;
+import com.day.cq.replication.ReplicationAction;
 import com.day.cq.replication.ReplicationActionType;
 import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.ReplicationResult;
 import com.day.cq.replication.Replicator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
 
 import javax.jcr.Session;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 public class DispatcherFlusherImplTest {
@@ -59,6 +83,9 @@ public class DispatcherFlusherImplTest {
     @Mock
     private AgentManager agentManager;
 
+    @Mock
+    private DispatcherFlushMetrics metrics;
+
     @InjectMocks
     private DispatcherFlusher dispatcherFlusher = new DispatcherFlusherImpl();
 
@@ -122,6 +149,95 @@ public class DispatcherFlusherImplTest {
         verifyNoMoreInteractions(replicator);
     }
 
+    @Test
+    public void testFlush_Hierarchical_RemovesCoveredPaths() throws Exception {
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final Session session = mock(Session.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+
+        dispatcherFlusher.flush(resourceResolver, ReplicationActionType.ACTIVATE, false,
+                DispatcherFlushFilter.HIERARCHICAL, "/content/foo/bar", "/content/foo", "/content/foo");
+
+        verify(replicator, times(1)).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), eq("/content/foo"),
+                any(ReplicationOptions.class));
+
+        verifyNoMoreInteractions(replicator);
+    }
+
+    @Test
+    public void testFlush_ResourceOnly_KeepsCoveredPaths() throws Exception {
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final Session session = mock(Session.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+
+        dispatcherFlusher.flush(resourceResolver, ReplicationActionType.ACTIVATE, false,
+                DispatcherFlushFilter.RESOURCE_ONLY, "/content/foo/bar", "/content/foo");
+
+        verify(replicator, times(1)).replicate(eq(session), eq(ReplicationActionType.ACTIVATE),
+                eq("/content/foo/bar"), any(ReplicationOptions.class));
+
+        verify(replicator, times(1)).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), eq("/content/foo"),
+                any(ReplicationOptions.class));
+
+        verifyNoMoreInteractions(replicator);
+    }
+
+    @Test
+    public void testFlush_FilterUsesClassification() throws Exception {
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final Session session = mock(Session.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+
+        final Agent agent = mockFlushAgent("Agent 1");
+        final Agent other = mock(Agent.class);
+        when(other.getId()).thenReturn("Agent 2");
+
+        final Map<String, Agent> agents = new HashMap<String, Agent>();
+        agents.put("Agent 1", agent);
+        when(agentManager.getAgents()).thenReturn(agents);
+
+        final ArgumentCaptor<ReplicationOptions> options = ArgumentCaptor.forClass(ReplicationOptions.class);
+
+        dispatcherFlusher.flush(resourceResolver, ReplicationActionType.ACTIVATE, false,
+                DispatcherFlushFilter.ALL, "/content/foo");
+
+        verify(replicator).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), eq("/content/foo"),
+                options.capture());
+
+        final AgentConfig agentConfig = agent.getConfiguration();
+        verify(agentConfig, times(3)).getSerializationType();
+
+        assertTrue(options.getValue().getFilter().isIncluded(agent));
+        assertFalse(options.getValue().getFilter().isIncluded(other));
+
+        // The agents' configurations are not re-evaluated by the filter
+        verify(agentConfig, times(3)).getSerializationType();
+    }
+
+    @Test
+    public void testFlush_FlushRulesFilterPassedThrough() throws Exception {
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final Session session = mock(Session.class);
+        when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+
+        final Map<String, Agent> agents = new HashMap<String, Agent>();
+        agents.put("Agent 1", mockFlushAgent("Agent 1"));
+        when(agentManager.getAgents()).thenReturn(agents);
+
+        final DispatcherFlushFilter rulesFilter = new DispatcherFlushRulesImpl.DispatcherFlushRulesFilter(
+                DispatcherFlushFilter.FlushType.Hierarchical);
+        final ArgumentCaptor<ReplicationOptions> options = ArgumentCaptor.forClass(ReplicationOptions.class);
+
+        dispatcherFlusher.flush(resourceResolver, ReplicationActionType.ACTIVATE, false, rulesFilter,
+                "/content/site");
+
+        verify(replicator).replicate(eq(session), eq(ReplicationActionType.ACTIVATE), eq("/content/site"),
+                options.capture());
+
+        // The Flush Rules recognize their own flushes by their filter
+        assertSame(rulesFilter, options.getValue().getFilter());
+    }
+
     @Test
     public void testGetFlushAgents() throws Exception {
         final Agent agent1 = mock(Agent.class);
@@ -165,4 +281,285 @@ public class DispatcherFlusherImplTest {
 
         assertEquals("Agent 1", actual[0].getId());
     }
+
+    @Test
+    public void testGetFlushAgents_Cached() throws Exception {
+        final Agent agent = mock(Agent.class);
+        final AgentConfig agentConfig = mock(AgentConfig.class);
+        final Map<String, Agent> agents = new HashMap<String, Agent>();
+        agents.put("Agent 1", agent);
+
+        when(agentManager.getAgents()).thenReturn(agents);
+        when(agent.isEnabled()).thenReturn(true);
+        when(agent.getConfiguration()).thenReturn(agentConfig);
+        when(agentConfig.getSerializationType()).thenReturn("flush");
+        when(agentConfig.getTransportURI()).thenReturn("http://localhost/dispatcher/invalidate.cache");
+
+        Map<String, Object> tmp = new HashMap<String, Object>();
+        tmp.put(AgentConfig.PROTOCOL_HTTP_HEADERS, new String[] {"CQ-Action:{action}", "CQ-Handle:{path}",
+                "CQ-Path: {path}", "CQ-Action-Scope: ResourceOnly"});
+        when(agentConfig.getProperties()).thenReturn(new ValueMapDecorator(tmp));
+
+        assertEquals(1, dispatcherFlusher.getAgents(DispatcherFlushFilter.RESOURCE_ONLY).length);
+        assertEquals(0, dispatcherFlusher.getAgents(DispatcherFlushFilter.HIERARCHICAL).length);
+        assertEquals(1, dispatcherFlusher.getFlushAgents().length);
+
+        // Classified once (All, Hierarchical and ResourceOnly)
+        verify(agentConfig, times(3)).getSerializationType();
+
+        when(agent.isEnabled()).thenReturn(false);
+        ((DispatcherFlusherImpl) dispatcherFlusher).handleEvent(mock(Event.class));
+
+        assertEquals(0, dispatcherFlusher.getAgents(DispatcherFlushFilter.RESOURCE_ONLY).length);
+        verify(agentConfig, times(6)).getSerializationType();
+    }
+
+    @Test
+    public void testFlushInParallel() throws Exception {
+        final Map<String, String> config = new HashMap<String, String>();
+        config.put("prop.parallel-timeout", "500");
+        ((DispatcherFlusherImpl) dispatcherFlusher).activate(config);
+
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final ResourceResolver clone = mock(ResourceResolver.class);
+        final Thread callingThread = Thread.currentThread();
+        when(resourceResolver.clone(null)).thenAnswer(new Answer<ResourceResolver>() {
+            public ResourceResolver answer(final InvocationOnMock invocation) throws Throwable {
+                // The resource resolver is only used by the thread which owns it
+                assertSame(callingThread, Thread.currentThread());
+                return clone;
+            }
+        });
+        when(clone.adaptTo(Session.class)).thenReturn(mock(Session.class));
+
+        final Agent fastAgent = mockFlushAgent("Fast Agent");
+        final Agent slowAgent = mockFlushAgent("Slow Agent");
+
+        final Map<String, Agent> agents = new LinkedHashMap<String, Agent>();
+        agents.put("Fast Agent", fastAgent);
+        agents.put("Slow Agent", slowAgent);
+        when(agentManager.getAgents()).thenReturn(agents);
+
+        doAnswer(new Answer<Void>() {
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                final String path = (String) invocation.getArguments()[2];
+                final ReplicationOptions options = (ReplicationOptions) invocation.getArguments()[3];
+                final ReplicationAction action = mock(ReplicationAction.class);
+                when(action.getPath()).thenReturn(path);
+
+                if (options.getFilter().isIncluded(slowAgent)) {
+                    Thread.sleep(10000);
+                } else if ("/content/foo".equals(path)) {
+                    options.getListener().onEnd(fastAgent, action, new ReplicationResult(true, 200, "OK"));
+                } else {
+                    options.getListener().onEnd(fastAgent, action, new ReplicationResult(false, 500, "Error"));
+                }
+
+                return null;
+            }
+        }).when(replicator).replicate(any(Session.class), eq(ReplicationActionType.ACTIVATE), any(String.class),
+                any(ReplicationOptions.class));
+
+        try {
+            final Map<String, Map<Agent, ReplicationResult>> results = dispatcherFlusher.flushInParallel(
+                    resourceResolver, ReplicationActionType.ACTIVATE, DispatcherFlushFilter.ALL, "/content/foo",
+                    "/content/bar");
+
+            assertEquals(2, results.size());
+
+            // Results are reported per path and agent
+            assertTrue(results.get("/content/foo").get(fastAgent).isSuccess());
+            assertFalse(results.get("/content/bar").get(fastAgent).isSuccess());
+            assertEquals(500, results.get("/content/bar").get(fastAgent).getCode());
+
+            // The paths of an agent which timed out are reported with its failure
+            assertFalse(results.get("/content/foo").get(slowAgent).isSuccess());
+            assertFalse(results.get("/content/bar").get(slowAgent).isSuccess());
+        } finally {
+            ((DispatcherFlusherImpl) dispatcherFlusher).deactivate(config);
+        }
+
+        verify(resourceResolver, times(2)).clone(null);
+        verify(clone, times(2)).close();
+    }
+
+    @Test
+    public void testFlushInParallel_QueueFull() throws Exception {
+        final Map<String, String> config = new HashMap<String, String>();
+        config.put("prop.parallel-threads", "1");
+        config.put("prop.parallel-queue-size", "1");
+        config.put("prop.parallel-timeout", "500");
+        ((DispatcherFlusherImpl) dispatcherFlusher).activate(config);
+
+        final ResourceResolver resourceResolver = mock(ResourceResolver.class);
+        final ResourceResolver clone = mock(ResourceResolver.class);
+        when(resourceResolver.clone(null)).thenReturn(clone);
+        when(clone.adaptTo(Session.class)).thenReturn(mock(Session.class));
+
+        final Map<String, Agent> agents = new LinkedHashMap<String, Agent>();
+        agents.put("Running Agent", mockFlushAgent("Running Agent"));
+        agents.put("Queued Agent", mockFlushAgent("Queued Agent"));
+        agents.put("Rejected Agent", mockFlushAgent("Rejected Agent"));
+        when(agentManager.getAgents()).thenReturn(agents);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        doAnswer(new Answer<Void>() {
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                release.await();
+                return null;
+            }
+        }).when(replicator).replicate(any(Session.class), eq(ReplicationActionType.ACTIVATE), eq("/content/foo"),
+                any(ReplicationOptions.class));
+
+        final Map<String, Map<Agent, ReplicationResult>> results;
+
+        try {
+            results = dispatcherFlusher.flushInParallel(resourceResolver, ReplicationActionType.ACTIVATE,
+                    DispatcherFlushFilter.ALL, "/content/foo");
+        } finally {
+            release.countDown();
+            ((DispatcherFlusherImpl) dispatcherFlusher).deactivate(config);
+        }
+
+        assertEquals(3, results.get("/content/foo").size());
+        assertEquals("Too many flushes queued",
+                results.get("/content/foo").get(agents.get("Rejected Agent")).getMessage());
+
+        // The running flush closes its clone when interrupted; the queued and rejected clones are closed unused
+        verify(clone, timeout(1000).times(3)).close();
+    }
+
+    @Test
+    public void testFlushDirectly_MoreThanThreadsAndQueue() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/dispatcher/invalidate.cache", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        final Map<String, String> config = new HashMap<String, String>();
+        config.put("prop.parallel-threads", "1");
+        config.put("prop.parallel-queue-size", "1");
+        ((DispatcherFlusherImpl) dispatcherFlusher).activate(config);
+
+        final Map<String, Agent> agents = new LinkedHashMap<String, Agent>();
+        for (final String id : new String[]{ "Agent 1", "Agent 2" }) {
+            final Agent agent = mockFlushAgent(id);
+            when(agent.getConfiguration().getTransportURI()).thenReturn("http://127.0.0.1:"
+                    + server.getAddress().getPort() + "/dispatcher/invalidate.cache");
+            agents.put(id, agent);
+        }
+        when(agentManager.getAgents()).thenReturn(agents);
+
+        final String[] paths = new String[60];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "/content/page-" + i;
+        }
+
+        final Map<String, Map<Agent, ReplicationResult>> results;
+
+        try {
+            // 120 path and agent pairs for 1 thread and a queue of 1
+            results = dispatcherFlusher.flushDirectly(ReplicationActionType.ACTIVATE, DispatcherFlushFilter.ALL,
+                    paths);
+        } finally {
+            ((DispatcherFlusherImpl) dispatcherFlusher).deactivate(config);
+            server.stop(0);
+        }
+
+        assertEquals(paths.length, results.size());
+
+        for (final String path : paths) {
+            assertEquals(2, results.get(path).size());
+
+            for (final ReplicationResult result : results.get(path).values()) {
+                assertTrue(result.isSuccess());
+            }
+        }
+
+        assertEquals(paths.length * 2, requests.get());
+    }
+
+    @Test
+    public void testFlushInBatches() throws Exception {
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/dispatcher/invalidate.cache", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                final String handle = exchange.getRequestHeaders().getFirst("CQ-Handle");
+                requests.add(handle);
+                exchange.sendResponseHeaders("/content/bar".equals(handle) ? 503 : 200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        final Agent agent = mockFlushAgent("Agent 1");
+        when(agent.getConfiguration().getTransportURI()).thenReturn("http://127.0.0.1:"
+                + server.getAddress().getPort() + "/dispatcher/invalidate.cache");
+
+        final Map<String, Agent> agents = new HashMap<String, Agent>();
+        agents.put("Agent 1", agent);
+        when(agentManager.getAgents()).thenReturn(agents);
+
+        final Map<String, String> config = new HashMap<String, String>();
+        config.put("prop.batch-size", "2");
+        ((DispatcherFlusherImpl) dispatcherFlusher).activate(config);
+
+        final Map<String, Map<Agent, ReplicationResult>> results;
+
+        try {
+            results = dispatcherFlusher.flushInBatches(ReplicationActionType.ACTIVATE, DispatcherFlushFilter.ALL,
+                    "/content/foo", "/content/bar", "/content/baz");
+        } finally {
+            ((DispatcherFlusherImpl) dispatcherFlusher).deactivate(config);
+            server.stop(0);
+        }
+
+        // Invalidated directly, in order, without the replication queue
+        verifyZeroInteractions(replicator);
+        assertEquals(Arrays.asList("/content/foo", "/content/bar", "/content/baz"), requests);
+
+        assertEquals(3, results.size());
+        assertTrue(results.get("/content/foo").get(agent).isSuccess());
+        assertFalse(results.get("/content/bar").get(agent).isSuccess());
+        assertEquals(503, results.get("/content/bar").get(agent).getCode());
+        assertTrue(results.get("/content/baz").get(agent).isSuccess());
+    }
+
+    @Test
+    public void testFlushInBatches_NoAgents() throws Exception {
+        when(agentManager.getAgents()).thenReturn(new HashMap<String, Agent>());
+
+        final Map<String, Map<Agent, ReplicationResult>> results = dispatcherFlusher.flushInBatches(
+                ReplicationActionType.ACTIVATE, DispatcherFlushFilter.ALL, "/content/foo", "/content/bar");
+
+        verifyZeroInteractions(replicator);
+
+        assertTrue(results.isEmpty());
+    }
+
+    private Agent mockFlushAgent(final String id) {
+        final Agent agent = mock(Agent.class);
+        final AgentConfig agentConfig = mock(AgentConfig.class);
+
+        when(agent.getId()).thenReturn(id);
+        when(agent.isEnabled()).thenReturn(true);
+        when(agent.getConfiguration()).thenReturn(agentConfig);
+        when(agentConfig.getSerializationType()).thenReturn("flush");
+        when(agentConfig.getTransportURI()).thenReturn("http://localhost/dispatcher/invalidate.cache");
+
+        Map<String, Object> tmp = new HashMap<String, Object>();
+        tmp.put(AgentConfig.PROTOCOL_HTTP_HEADERS, new String[] {"CQ-Action:{action}", "CQ-Handle:{path}",
+                "CQ-Path: {path}"});
+        when(agentConfig.getProperties()).thenReturn(new ValueMapDecorator(tmp));
+
+        return agent;
+    }
 }
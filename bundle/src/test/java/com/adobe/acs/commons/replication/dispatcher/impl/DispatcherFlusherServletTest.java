@@ -0,0 +1,307 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlushFilter;
+import com.adobe.acs.commons.replication.dispatcher.DispatcherFlusher;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import com.day.cq.wcm.api.PageManager;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DispatcherFlusherServletTest {
+    @Mock
+    private DispatcherFlusher dispatcherFlusher;
+
+    @InjectMocks
+    private DispatcherFlusherServlet servlet = new DispatcherFlusherServlet();
+
+    private ResourceResolver resourceResolver;
+
+    private Agent agent;
+
+    /* The paths passed to each flushInParallel call */
+    private final List<List<String>> flushed = Collections.synchronizedList(new ArrayList<List<String>>());
+
+    /* Released to let flushInParallel calls return */
+    private CountDownLatch release;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        resourceResolver = mock(ResourceResolver.class);
+        when(resourceResolver.adaptTo(PageManager.class)).thenReturn(mock(PageManager.class));
+        when(resourceResolver.clone(null)).thenReturn(mock(ResourceResolver.class));
+        when(resourceResolver.getUserID()).thenReturn("admin");
+
+        agent = mock(Agent.class);
+        when(agent.getId()).thenReturn("flush");
+
+        release = new CountDownLatch(0);
+
+        when(dispatcherFlusher.flushInParallel(any(ResourceResolver.class), eq(ReplicationActionType.ACTIVATE),
+                eq(DispatcherFlushFilter.HIERARCHICAL), Matchers.<String>anyVararg())).thenAnswer(
+                new Answer<Map<String, Map<Agent, ReplicationResult>>>() {
+                    public Map<String, Map<Agent, ReplicationResult>> answer(final InvocationOnMock invocation)
+                            throws Throwable {
+                        final List<String> paths = new ArrayList<String>();
+
+                        for (int i = 3; i < invocation.getArguments().length; i++) {
+                            final Object argument = invocation.getArguments()[i];
+
+                            if (argument instanceof String[]) {
+                                Collections.addAll(paths, (String[]) argument);
+                            } else {
+                                paths.add((String) argument);
+                            }
+                        }
+
+                        flushed.add(paths);
+                        release.await();
+
+                        final Map<String, Map<Agent, ReplicationResult>> results =
+                                new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+
+                        for (final String path : paths) {
+                            results.put(path, Collections.singletonMap(agent, new ReplicationResult(true, 200, "OK")));
+                        }
+
+                        return results;
+                    }
+                });
+
+        servlet.activate(new HashMap<String, String>());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        servlet.deactivate(new HashMap<String, String>());
+    }
+
+    @Test
+    public void testStreamFlush_Chunked() throws Exception {
+        final String[] paths = new String[DispatcherFlusherServlet.CHUNK_SIZE + 51];
+
+        for (int i = 0; i < paths.length - 1; i++) {
+            paths[i] = "/content/page-" + i;
+        }
+
+        // Covered by the flush of /content/page-0, though it falls in a later chunk
+        paths[paths.length - 1] = "/content/page-0/child";
+
+        final StringWriter out = new StringWriter();
+        final SlingHttpServletResponse response = mockResponse(out);
+
+        servlet.doPost(mockRequest("stream", paths), response);
+
+        assertEquals(2, flushed.size());
+        assertEquals(DispatcherFlusherServlet.CHUNK_SIZE, flushed.get(0).size());
+        assertEquals(50, flushed.get(1).size());
+        assertTrue(!flushed.get(1).contains("/content/page-0/child"));
+
+        // Each chunk's results are sent as they are flushed
+        verify(response, times(2)).flushBuffer();
+
+        final JSONObject json = new JSONObject(out.toString());
+        final JSONArray results = json.getJSONArray("results");
+
+        // Results are reported per flushed path
+        assertTrue(json.getBoolean("complete"));
+        assertEquals(DispatcherFlusherServlet.CHUNK_SIZE + 50, results.length());
+
+        final JSONObject result = results.getJSONObject(DispatcherFlusherServlet.CHUNK_SIZE + 10);
+        assertEquals("/content/page-" + (DispatcherFlusherServlet.CHUNK_SIZE + 10), result.getString("path"));
+        assertTrue(result.getBoolean("success"));
+        assertTrue(result.getJSONObject("agents").getJSONObject("flush").getBoolean("success"));
+    }
+
+    @Test
+    public void testJob() throws Exception {
+        final StringWriter out = new StringWriter();
+        final SlingHttpServletResponse response = mockResponse(out);
+
+        servlet.doPost(mockRequest("job", "/content/a", "/content/b", "/content/a/c"), response);
+
+        verify(response).setStatus(SlingHttpServletResponse.SC_ACCEPTED);
+
+        final String jobId = new JSONObject(out.toString()).getString("id");
+
+        // Poll until the job completes
+        JSONObject status = null;
+
+        for (int i = 0; i < 100; i++) {
+            final StringWriter statusOut = new StringWriter();
+            final SlingHttpServletRequest statusRequest = mock(SlingHttpServletRequest.class);
+            when(statusRequest.getParameter("job")).thenReturn(jobId);
+            when(statusRequest.getResourceResolver()).thenReturn(resourceResolver);
+
+            servlet.doGet(statusRequest, mockResponse(statusOut));
+
+            status = new JSONObject(statusOut.toString());
+
+            if ("COMPLETE".equals(status.getString("state"))) {
+                break;
+            }
+
+            Thread.sleep(50);
+        }
+
+        assertEquals("COMPLETE", status.getString("state"));
+        assertEquals(2, status.getInt("total"));
+        assertEquals(2, status.getInt("completed"));
+        assertEquals(0, status.getInt("failed"));
+
+        // Both paths are flushed together, and reported separately
+        assertEquals(1, flushed.size());
+        assertEquals(2, status.getJSONArray("results").length());
+        assertEquals("/content/b", status.getJSONArray("results").getJSONObject(1).getString("path"));
+    }
+
+    @Test
+    public void testJob_OtherUser() throws Exception {
+        final StringWriter out = new StringWriter();
+
+        servlet.doPost(mockRequest("job", "/content/a"), mockResponse(out));
+
+        final String jobId = new JSONObject(out.toString()).getString("id");
+
+        final ResourceResolver otherResourceResolver = mock(ResourceResolver.class);
+        when(otherResourceResolver.getUserID()).thenReturn("author");
+
+        final SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        final SlingHttpServletResponse response = mockResponse(new StringWriter());
+        when(request.getParameter("job")).thenReturn(jobId);
+        when(request.getResourceResolver()).thenReturn(otherResourceResolver);
+
+        servlet.doGet(request, response);
+
+        // Jobs are only visible to the user who submitted them
+        verify(response).sendError(SlingHttpServletResponse.SC_NOT_FOUND);
+    }
+
+    @Test
+    public void testGetAgentResults() throws Exception {
+        final Map<String, Map<Agent, ReplicationResult>> results =
+                new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+        results.put("/content/a", Collections.singletonMap(agent, new ReplicationResult(true, 200, "OK")));
+        results.put("/content/b", Collections.singletonMap(agent, new ReplicationResult(false, 500, "Error")));
+        results.put("/content/c", Collections.singletonMap(agent, new ReplicationResult(true, 200, "OK")));
+
+        // An agent's result is its first failure
+        assertEquals(500, DispatcherFlusherServlet.getAgentResults(results).get(agent).getCode());
+    }
+
+    @Test
+    public void testJob_UnknownJob() throws Exception {
+        final SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        final SlingHttpServletResponse response = mockResponse(new StringWriter());
+        when(request.getParameter("job")).thenReturn("unknown");
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+
+        servlet.doGet(request, response);
+
+        verify(response).sendError(SlingHttpServletResponse.SC_NOT_FOUND);
+    }
+
+    @Test
+    public void testJob_RejectedWhenFull() throws Exception {
+        release = new CountDownLatch(1);
+
+        // The first job runs until released; the others are queued
+        for (int i = 0; i < DispatcherFlusherServlet.MAX_JOBS; i++) {
+            final SlingHttpServletResponse response = mockResponse(new StringWriter());
+
+            servlet.doPost(mockRequest("job", "/content/" + i), response);
+
+            verify(response).setStatus(SlingHttpServletResponse.SC_ACCEPTED);
+        }
+
+        final SlingHttpServletResponse rejected = mockResponse(new StringWriter());
+
+        servlet.doPost(mockRequest("job", "/content/rejected"), rejected);
+
+        verify(rejected).sendError(SlingHttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(rejected, never()).setStatus(SlingHttpServletResponse.SC_ACCEPTED);
+
+        // No resource resolver is cloned for the rejected job
+        verify(resourceResolver, times(DispatcherFlusherServlet.MAX_JOBS)).clone(null);
+    }
+
+    private SlingHttpServletRequest mockRequest(final String mode, final String... paths) {
+        final SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+        final Resource resource = mock(Resource.class);
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("paths", paths);
+
+        when(resource.adaptTo(ValueMap.class)).thenReturn(new ValueMapDecorator(properties));
+        when(request.getResource()).thenReturn(resource);
+        when(request.getResourceResolver()).thenReturn(resourceResolver);
+        when(request.getParameter("mode")).thenReturn(mode);
+
+        return request;
+    }
+
+    private SlingHttpServletResponse mockResponse(final StringWriter out) throws Exception {
+        final SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+        when(response.getWriter()).thenReturn(new PrintWriter(out));
+
+        return response;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DispatcherInvalidationClientTest {
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    private HttpServer server;
+
+    private int status = 200;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/dispatcher/invalidate.cache", new HttpHandler() {
+            public void handle(final HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestMethod() + " "
+                        + exchange.getRequestHeaders().getFirst("CQ-Action") + " "
+                        + exchange.getRequestHeaders().getFirst("CQ-Handle") + " "
+                        + exchange.getRequestHeaders().getFirst("CQ-Action-Scope"));
+
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        final Agent agent = mockAgent("http://127.0.0.1:" + server.getAddress().getPort()
+                + "/dispatcher/invalidate.cache");
+        final DispatcherInvalidationClient client = new DispatcherInvalidationClient(1000, 1000);
+
+        final ReplicationResult foo = client.invalidate(agent, ReplicationActionType.ACTIVATE, "/content/foo");
+        final ReplicationResult bar = client.invalidate(agent, ReplicationActionType.DELETE, "/content/bar");
+
+        assertTrue(foo.isSuccess());
+        assertEquals(200, foo.getCode());
+        assertTrue(bar.isSuccess());
+
+        assertEquals("POST Activate /content/foo ResourceOnly", requests.get(0));
+        assertEquals("POST Delete /content/bar ResourceOnly", requests.get(1));
+    }
+
+    @Test
+    public void testInvalidate_ErrorResponse() throws Exception {
+        status = 503;
+
+        final Agent agent = mockAgent("http://127.0.0.1:" + server.getAddress().getPort()
+                + "/dispatcher/invalidate.cache");
+        final ReplicationResult result = new DispatcherInvalidationClient(1000, 1000).invalidate(agent,
+                ReplicationActionType.ACTIVATE, "/content/foo");
+
+        assertFalse(result.isSuccess());
+        assertEquals(503, result.getCode());
+    }
+
+    @Test
+    public void testInvalidate_Unreachable() throws Exception {
+        final int port = server.getAddress().getPort();
+        server.stop(0);
+
+        final Agent agent = mockAgent("http://127.0.0.1:" + port + "/dispatcher/invalidate.cache");
+        final ReplicationResult result = new DispatcherInvalidationClient(1000, 1000).invalidate(agent,
+                ReplicationActionType.ACTIVATE, "/content/foo");
+
+        assertFalse(result.isSuccess());
+        assertEquals(0, result.getCode());
+    }
+
+    @Test
+    public void testInvalidate_Pipelined() throws Exception {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final ServerSocket serverSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+
+        // Responds only once all three requests have been received, so the requests must be pipelined
+        final Thread dispatcher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    final BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                            "ISO-8859-1"));
+
+                    while (received.size() < 3) {
+                        for (String line = reader.readLine(); line.length() > 0; line = reader.readLine()) {
+                            if (line.startsWith("CQ-Handle:")) {
+                                received.add(line.substring("CQ-Handle:".length()).trim());
+                            }
+                        }
+                    }
+
+                    final OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nfirst"
+                            + "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n6\r\nsecond\r\n0\r\n\r\n"
+                            + "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\n\r\n").getBytes("ISO-8859-1"));
+                    out.flush();
+                    socket.close();
+                } catch (IOException e) {
+                    // The client reports the failure
+                }
+            }
+        });
+        dispatcher.start();
+
+        final Agent agent = mockAgent("http://127.0.0.1:" + serverSocket.getLocalPort()
+                + "/dispatcher/invalidate.cache");
+
+        final Map<String, ReplicationResult> results;
+
+        try {
+            results = new DispatcherInvalidationClient(1000, 5000).invalidate(agent, ReplicationActionType.ACTIVATE,
+                    3, "/content/foo", "/content/bar", "/content/baz");
+            dispatcher.join(5000);
+        } finally {
+            serverSocket.close();
+        }
+
+        assertEquals(Arrays.asList("/content/foo", "/content/bar", "/content/baz"), received);
+        assertEquals(Arrays.asList("/content/foo", "/content/bar", "/content/baz"),
+                new ArrayList<String>(results.keySet()));
+        assertTrue(results.get("/content/foo").isSuccess());
+        assertTrue(results.get("/content/bar").isSuccess());
+        assertFalse(results.get("/content/baz").isSuccess());
+        assertEquals(503, results.get("/content/baz").getCode());
+    }
+
+    @Test
+    public void testInvalidate_PipelinedReconnects() throws Exception {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final ServerSocket serverSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+
+        // Answers only the first request of each connection, and closes it
+        final Thread dispatcher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (received.size() < 3) {
+                        final Socket socket = serverSocket.accept();
+                        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                                socket.getInputStream(), "ISO-8859-1"));
+
+                        for (String line = reader.readLine(); line.length() > 0; line = reader.readLine()) {
+                            if (line.startsWith("CQ-Handle:")) {
+                                received.add(line.substring("CQ-Handle:".length()).trim());
+                            }
+                        }
+
+                        socket.getOutputStream().write(("HTTP/1.1 200 OK\r\nConnection: close\r\n"
+                                + "Content-Length: 0\r\n\r\n").getBytes("ISO-8859-1"));
+
+                        // Lingering close, discarding the unanswered requests until the client disconnects
+                        socket.shutdownOutput();
+                        while (socket.getInputStream().read() >= 0) {
+                            continue;
+                        }
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // The client reports the failure
+                }
+            }
+        });
+        dispatcher.start();
+
+        final Agent agent = mockAgent("http://127.0.0.1:" + serverSocket.getLocalPort()
+                + "/dispatcher/invalidate.cache");
+
+        final Map<String, ReplicationResult> results;
+
+        try {
+            results = new DispatcherInvalidationClient(1000, 5000).invalidate(agent, ReplicationActionType.ACTIVATE,
+                    3, "/content/foo", "/content/bar", "/content/baz");
+            dispatcher.join(5000);
+        } finally {
+            serverSocket.close();
+        }
+
+        assertEquals(Arrays.asList("/content/foo", "/content/bar", "/content/baz"), received);
+
+        for (final ReplicationResult result : results.values()) {
+            assertTrue(result.isSuccess());
+        }
+    }
+
+    @Test
+    public void testInvalidate_PipelinedUnreachable() throws Exception {
+        final int port = server.getAddress().getPort();
+        server.stop(0);
+
+        final Agent agent = mockAgent("http://127.0.0.1:" + port + "/dispatcher/invalidate.cache");
+        final Map<String, ReplicationResult> results = new DispatcherInvalidationClient(1000, 1000).invalidate(agent,
+                ReplicationActionType.ACTIVATE, 10, "/content/foo", "/content/bar");
+
+        assertEquals(2, results.size());
+        assertFalse(results.get("/content/foo").isSuccess());
+        assertFalse(results.get("/content/bar").isSuccess());
+    }
+
+    @Test
+    public void testReadResponse() throws Exception {
+        final DispatcherInvalidationClient.Response response = DispatcherInvalidationClient.readResponse(
+                new ByteArrayInputStream(("HTTP/1.1 100 Continue\r\n\r\n"
+                        + "HTTP/1.0 200 OK\r\nContent-Length: 2\r\n\r\nok").getBytes("ISO-8859-1")));
+
+        assertEquals(200, response.getCode());
+        // HTTP/1.0 responses close the connection unless kept alive
+        assertTrue(response.isClosed());
+    }
+
+    @Test
+    public void testGetHeaders() throws Exception {
+        final Agent agent = mockAgent("http://localhost/dispatcher/invalidate.cache");
+
+        final Map<String, String> headers = DispatcherInvalidationClient.getHeaders(agent.getConfiguration(),
+                ReplicationActionType.DEACTIVATE, "/content/foo");
+
+        assertEquals(4, headers.size());
+        assertEquals("Deactivate", headers.get("CQ-Action"));
+        assertEquals("/content/foo", headers.get("CQ-Handle"));
+        assertEquals("/content/foo", headers.get("CQ-Path"));
+        assertEquals("ResourceOnly", headers.get("CQ-Action-Scope"));
+    }
+
+    private Agent mockAgent(final String transportURI) {
+        final Agent agent = mock(Agent.class);
+        final AgentConfig agentConfig = mock(AgentConfig.class);
+
+        when(agent.getId()).thenReturn("Agent 1");
+        when(agent.getConfiguration()).thenReturn(agentConfig);
+        when(agentConfig.getTransportURI()).thenReturn(transportURI);
+
+        Map<String, Object> tmp = new HashMap<String, Object>();
+        tmp.put(AgentConfig.PROTOCOL_HTTP_HEADERS, new String[] {"CQ-Action:{action}", "CQ-Handle:{path}",
+                "CQ-Path: {path}", "CQ-Action-Scope: ResourceOnly", "Malformed"});
+        when(agentConfig.getProperties()).thenReturn(new ValueMapDecorator(tmp));
+
+        return agent;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationResult;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FlushJobTest {
+
+    private Agent agent;
+
+    @Before
+    public void setUp() throws Exception {
+        agent = mock(Agent.class);
+        when(agent.getId()).thenReturn("flush");
+    }
+
+    @Test
+    public void testLifecycle() throws Exception {
+        final FlushJob job = new FlushJob(3, "admin");
+
+        assertEquals(FlushJob.State.QUEUED, job.getState());
+        assertFalse(job.isDone());
+        assertTrue(job.isSubmittedBy("admin"));
+        assertFalse(job.isSubmittedBy("author"));
+        assertFalse(job.isSubmittedBy(null));
+
+        job.start();
+        assertEquals(FlushJob.State.RUNNING, job.getState());
+
+        final Map<String, Map<Agent, ReplicationResult>> results =
+                new LinkedHashMap<String, Map<Agent, ReplicationResult>>();
+        results.put("/content/a", Collections.singletonMap(agent, new ReplicationResult(true, 200, "OK")));
+        results.put("/content/b", Collections.singletonMap(agent, new ReplicationResult(false, 500, "Error")));
+        job.addResults(results);
+        job.addResults(Collections.singletonMap("/content/c",
+                Collections.singletonMap(agent, new ReplicationResult(true, 200, "OK"))));
+
+        // Failures are counted per path
+        assertEquals(3, job.getCompletedCount());
+        assertEquals(1, job.getFailedCount());
+        assertFalse(job.isDone());
+
+        job.complete();
+        assertEquals(FlushJob.State.COMPLETE, job.getState());
+        assertTrue(job.isDone());
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        final FlushJob job = new FlushJob(2, "admin");
+
+        job.start();
+        job.addResults(Collections.singletonMap("/content/a",
+                Collections.singletonMap(agent, new ReplicationResult(true, 200, "OK"))));
+        job.fail("Interrupted");
+
+        final StringWriter out = new StringWriter();
+        job.write(new JSONWriter(out));
+
+        final JSONObject json = new JSONObject(out.toString());
+
+        assertEquals(job.getId(), json.getString("id"));
+        assertEquals("FAILED", json.getString("state"));
+        assertEquals("Interrupted", json.getString("message"));
+        assertEquals(2, json.getInt("total"));
+        assertEquals(1, json.getInt("completed"));
+        assertEquals(0, json.getInt("failed"));
+
+        final JSONArray results = json.getJSONArray("results");
+        assertEquals(1, results.length());
+
+        final JSONObject path = results.getJSONObject(0);
+        assertEquals("/content/a", path.getString("path"));
+        assertTrue(path.getBoolean("success"));
+        assertTrue(path.getJSONObject("agents").getJSONObject("flush").getBoolean("success"));
+        assertEquals(200, path.getJSONObject("agents").getJSONObject("flush").getInt("code"));
+    }
+}
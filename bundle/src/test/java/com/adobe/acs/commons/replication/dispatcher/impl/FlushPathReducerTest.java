@@ -0,0 +1,47 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FlushPathReducerTest {
+
+    @Test
+    public void testReduce() throws Exception {
+        final String[] actual = FlushPathReducer.reduce("/content/b", "/content/a/b", "/content/a-b",
+                "/content/a", "/content/b", "/content/a/b/c");
+
+        assertArrayEquals(new String[]{ "/content/b", "/content/a-b", "/content/a" }, actual);
+    }
+
+    @Test
+    public void testReduce_root() throws Exception {
+        assertArrayEquals(new String[]{ "/" }, FlushPathReducer.reduce("/content/a", "/", "/etc"));
+    }
+
+    @Test
+    public void testReduce_nothingCovered() throws Exception {
+        final String[] expected = new String[]{ "/content/foo", "/content/bar" };
+
+        assertArrayEquals(expected, FlushPathReducer.reduce("/content/foo", "/content/bar"));
+    }
+}
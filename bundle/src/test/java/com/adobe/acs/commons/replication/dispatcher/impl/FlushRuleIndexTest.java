@@ -0,0 +1,102 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+public class FlushRuleIndexTest {
+
+    @Test
+    public void testGetLiteralPrefix() throws Exception {
+        assertEquals("/content/a/", FlushRuleIndex.getLiteralPrefix(Pattern.compile("/content/a/.*")));
+        assertEquals("/content/a", FlushRuleIndex.getLiteralPrefix(Pattern.compile("^/content/a(/.*)?")));
+        assertEquals("/content/", FlushRuleIndex.getLiteralPrefix(Pattern.compile("/content/a?")));
+        assertEquals("/content/a.html", FlushRuleIndex.getLiteralPrefix(Pattern.compile("/content/a\\.html")));
+        assertEquals("/content/", FlushRuleIndex.getLiteralPrefix(Pattern.compile("/content/\\w+")));
+        assertEquals("", FlushRuleIndex.getLiteralPrefix(Pattern.compile("/content/a|/etc/b")));
+        assertEquals("", FlushRuleIndex.getLiteralPrefix(Pattern.compile("/content/.*", Pattern.CASE_INSENSITIVE)));
+        assertEquals("", FlushRuleIndex.getLiteralPrefix(Pattern.compile(".*/jcr:content")));
+    }
+
+    @Test
+    public void testGetFlushPaths() throws Exception {
+        final Map<Pattern, String> rules = new LinkedHashMap<Pattern, String>();
+        rules.put(Pattern.compile("/content/a/.*"), "/flush/1");
+        rules.put(Pattern.compile(".*\\.html"), "/flush/2");
+        rules.put(Pattern.compile("/etc/.*"), "/flush/3");
+        rules.put(Pattern.compile("/content/.*"), "/flush/4");
+        rules.put(Pattern.compile("/content/a/b"), "/flush/5");
+
+        final FlushRuleIndex index = new FlushRuleIndex(rules);
+
+        assertEquals(Arrays.asList("/flush/1", "/flush/4", "/flush/5"), index.getFlushPaths("/content/a/b"));
+        assertEquals(Arrays.asList("/flush/1", "/flush/2", "/flush/4"), index.getFlushPaths("/content/a/c.html"));
+        assertEquals(Arrays.asList("/flush/3"), index.getFlushPaths("/etc/x"));
+        assertEquals(Arrays.asList(), index.getFlushPaths("/var/x"));
+
+        // "/etc/.*" is never evaluated for paths under /content
+        assertEquals(4 + 4 + 2 + 1, index.getEvaluationCount());
+        assertEquals(4, index.getLookupCount());
+
+        final Map<String, Long> matches = index.getMatchCounts();
+        assertEquals(Long.valueOf(2), matches.get("/content/a/.*=/flush/1"));
+        assertEquals(Long.valueOf(1), matches.get(".*\\.html=/flush/2"));
+        assertEquals(Long.valueOf(1), matches.get("/etc/.*=/flush/3"));
+    }
+
+    @Test
+    public void testGetMatchCounts_SameFlushPath() throws Exception {
+        final Map<Pattern, String> rules = new LinkedHashMap<Pattern, String>();
+        rules.put(Pattern.compile("/content/a/.*"), "/flush/1");
+        rules.put(Pattern.compile("/content/b/.*"), "/flush/1");
+        rules.put(Pattern.compile(".*\\.html"), "/flush/2");
+
+        final FlushRuleIndex index = new FlushRuleIndex(rules);
+
+        assertEquals(Arrays.asList("/flush/1", "/flush/2"), index.getFlushPaths("/content/b/c.html"));
+
+        // Rules with the same flush path are told apart by their pattern
+        final Map<String, Long> matches = index.getMatchCounts();
+        assertEquals(Long.valueOf(0), matches.get("/content/a/.*=/flush/1"));
+        assertEquals(Long.valueOf(1), matches.get("/content/b/.*=/flush/1"));
+        assertEquals(Long.valueOf(1), matches.get(".*\\.html=/flush/2"));
+    }
+
+    @Test
+    public void testResetCounts() throws Exception {
+        final Map<Pattern, String> rules = new LinkedHashMap<Pattern, String>();
+        rules.put(Pattern.compile("/content/.*"), "/flush/1");
+
+        final FlushRuleIndex index = new FlushRuleIndex(rules);
+        index.getFlushPaths("/content/a");
+        index.resetCounts();
+
+        assertEquals(0, index.getLookupCount());
+        assertEquals(0, index.getEvaluationCount());
+        assertEquals(Long.valueOf(0), index.getMatchCounts().get("/content/.*=/flush/1"));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrderedFlushExecutorTest {
+
+    @Test
+    public void testExecute_orderedPerKey() throws Exception {
+        final OrderedFlushExecutor executor = new OrderedFlushExecutor(4, 100);
+        final List<Integer> a = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> b = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> expected = new ArrayList<Integer>();
+
+        for (int i = 0; i < 50; i++) {
+            final int value = i;
+            expected.add(value);
+
+            executor.execute("/content/a", new Runnable() {
+                public void run() {
+                    a.add(value);
+                }
+            });
+
+            executor.execute("/content/b", new Runnable() {
+                public void run() {
+                    b.add(value);
+                }
+            });
+        }
+
+        executor.close(10000);
+
+        assertEquals(expected, a);
+        assertEquals(expected, b);
+        assertEquals(100, executor.getSubmittedCount());
+        assertEquals(100, executor.getCompletedCount());
+        assertEquals(0, executor.getFailedCount());
+    }
+
+    @Test
+    public void testExecute_failure() throws Exception {
+        final OrderedFlushExecutor executor = new OrderedFlushExecutor(1, 10);
+        final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+
+        executor.execute("/content/a", new Runnable() {
+            public void run() {
+                throw new IllegalStateException("expected");
+            }
+        });
+
+        executor.execute("/content/a", new Runnable() {
+            public void run() {
+                ran.add("/content/a");
+            }
+        });
+
+        executor.close(10000);
+
+        assertEquals(1, ran.size());
+        assertEquals(1, executor.getFailedCount());
+        assertEquals(2, executor.getCompletedCount());
+    }
+
+    @Test
+    public void testExecute_metrics() throws Exception {
+        final DispatcherFlushMetrics metrics = new DispatcherFlushMetrics();
+        final OrderedFlushExecutor executor = new OrderedFlushExecutor(1, 10, metrics);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        metrics.addBackgroundExecutor(executor);
+
+        executor.execute("/content/a", new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("expected");
+            }
+        });
+
+        executor.execute("/content/a", new Runnable() {
+            public void run() {
+            }
+        });
+
+        assertEquals(2, metrics.getBackgroundSubmittedCount());
+        assertEquals(1, metrics.getBackgroundQueueDepth());
+
+        release.countDown();
+        executor.close(10000);
+        metrics.removeBackgroundExecutor(executor);
+
+        assertEquals(2, metrics.getBackgroundCompletedCount());
+        assertEquals(1, metrics.getBackgroundFailedCount());
+        assertEquals(0, metrics.getBackgroundQueueDepth());
+    }
+
+    @Test
+    public void testExecute_blocksWhenFull() throws Exception {
+        final OrderedFlushExecutor executor = new OrderedFlushExecutor(1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        executor.execute("/content/a", new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // Fills the queue
+        executor.execute("/content/a", new Runnable() {
+            public void run() {
+            }
+        });
+
+        final Thread submitter = new Thread(new Runnable() {
+            public void run() {
+                executor.execute("/content/a", new Runnable() {
+                    public void run() {
+                    }
+                });
+            }
+        });
+        submitter.start();
+
+        // The third submission waits for room in the queue
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+
+        release.countDown();
+        submitter.join(10000);
+
+        executor.close(10000);
+
+        assertEquals(1, executor.getBlockedCount());
+        assertEquals(3, executor.getCompletedCount());
+    }
+
+    @Test
+    public void testExecute_blockedSubmissionRejectedOnClose() throws Exception {
+        final OrderedFlushExecutor executor = new OrderedFlushExecutor(1, 1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean ran = new AtomicBoolean();
+        final AtomicBoolean rejected = new AtomicBoolean();
+
+        executor.execute("/content/a", new Runnable() {
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // Fills the queue
+        executor.execute("/content/a", new Runnable() {
+            public void run() {
+            }
+        });
+
+        final Thread submitter = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    executor.execute("/content/a", new Runnable() {
+                        public void run() {
+                            ran.set(true);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    rejected.set(true);
+                }
+            }
+        });
+        submitter.start();
+
+        submitter.join(200);
+        assertTrue(submitter.isAlive());
+
+        // The blocked submission fails once closed, without waiting for room in the queue
+        executor.close(1000);
+        submitter.join(10000);
+
+        assertFalse(submitter.isAlive());
+        assertTrue(rejected.get());
+        assertFalse(ran.get());
+        assertEquals(1, executor.getBlockedCount());
+
+        release.countDown();
+    }
+}
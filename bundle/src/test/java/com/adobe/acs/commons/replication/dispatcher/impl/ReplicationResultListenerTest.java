@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.replication.dispatcher.impl;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationResult;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class ReplicationResultListenerTest {
+    private static final ReplicationResult OK = new ReplicationResult(true, 200, "OK");
+
+    private static final ReplicationResult FAILED = new ReplicationResult(false, 500, "Error");
+
+    @Test
+    public void testGetResultsByPath() throws Exception {
+        final Agent agent1 = mock(Agent.class);
+        final Agent agent2 = mock(Agent.class);
+        final ReplicationAction foo = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/foo");
+        final ReplicationAction bar = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/bar");
+
+        final ReplicationResultListener listener = new ReplicationResultListener();
+
+        listener.onStart(agent1, foo);
+        listener.onEnd(agent1, foo, OK);
+        listener.onEnd(agent2, foo, FAILED);
+        listener.onEnd(agent1, bar, FAILED);
+        listener.onEnd(agent2, bar, OK);
+
+        final Map<String, Map<Agent, ReplicationResult>> byPath = listener.getResultsByPath();
+
+        assertEquals(2, byPath.size());
+        assertSame(OK, byPath.get("/content/foo").get(agent1));
+        assertSame(FAILED, byPath.get("/content/foo").get(agent2));
+        assertSame(FAILED, byPath.get("/content/bar").get(agent1));
+        assertSame(OK, byPath.get("/content/bar").get(agent2));
+
+        // Last result per agent
+        assertSame(FAILED, listener.getResults().get(agent1));
+        assertSame(OK, listener.getResults().get(agent2));
+
+        final List<ReplicationResultListener.Result> all = listener.getAllResults();
+        assertEquals(4, all.size());
+        assertTrue(all.get(0).getDuration() >= 0);
+        assertEquals(-1, all.get(1).getDuration());
+    }
+
+    @Test
+    public void testOnError() throws Exception {
+        final Agent agent = mock(Agent.class);
+        final ReplicationAction foo = new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/foo");
+        final Exception error = new Exception("Connection refused");
+
+        final ReplicationResultListener listener = new ReplicationResultListener();
+
+        listener.onError(agent, foo, error);
+        listener.onEnd(agent, foo, FAILED);
+        listener.onEnd(agent, foo, OK);
+
+        final List<ReplicationResultListener.Result> all = listener.getAllResults();
+        assertSame(error, all.get(0).getError());
+        assertFalse(all.get(0).isSuccess());
+        assertNull(all.get(1).getError());
+    }
+
+    @Test
+    public void testConcurrentCallbacks() throws Exception {
+        final int threads = 8;
+        final int paths = 250;
+
+        final List<String> streamed = Collections.synchronizedList(new ArrayList<String>());
+        final ReplicationResultListener listener = new ReplicationResultListener(
+                new ReplicationResultListener.Callback() {
+                    public void onResult(final ReplicationResultListener.Result result) {
+                        streamed.add(result.getPath());
+                    }
+                });
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final Agent agent = mock(Agent.class);
+
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < paths; i++) {
+                            final ReplicationAction action =
+                                    new ReplicationAction(ReplicationActionType.ACTIVATE, "/content/" + i);
+                            listener.onStart(agent, action);
+                            listener.onEnd(agent, action, OK);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        start.countDown();
+        done.await();
+
+        assertEquals(threads * paths, listener.getAllResults().size());
+        assertEquals(threads * paths, streamed.size());
+        assertEquals(paths, listener.getResultsByPath().size());
+        assertEquals(threads, listener.getResultsByPath().get("/content/0").size());
+    }
+}
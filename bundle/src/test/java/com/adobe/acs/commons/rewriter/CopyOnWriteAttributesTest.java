@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.AttributesImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CopyOnWriteAttributesTest {
+
+    private CopyOnWriteAttributes attributes;
+
+    private AttributesImpl in;
+
+    @Before
+    public void setUp() throws Exception {
+        attributes = new CopyOnWriteAttributes();
+
+        in = new AttributesImpl();
+        in.addAttribute("", "src", "", "CDATA", "/etc/clientlibs/test.js");
+        in.addAttribute("", "type", "", "CDATA", "text/javascript");
+    }
+
+    @Test
+    public void testUnmodified() throws Exception {
+        attributes.reset(in);
+
+        assertEquals(1, attributes.getIndex("type"));
+        assertEquals("/etc/clientlibs/test.js", attributes.getValue("src"));
+        assertNull(attributes.getValue("href"));
+        assertFalse(attributes.isModified());
+        assertSame(in, attributes.getAttributes());
+    }
+
+    @Test
+    public void testSetValue() throws Exception {
+        attributes.reset(in);
+        attributes.setValue(attributes.getIndex("src"), "/etc/clientlibs/test.123.js");
+
+        final Attributes out = attributes.getAttributes();
+
+        assertTrue(attributes.isModified());
+        assertNotSame(in, out);
+        assertEquals("/etc/clientlibs/test.123.js", out.getValue(0));
+        assertEquals("text/javascript", out.getValue(1));
+        assertEquals("/etc/clientlibs/test.123.js", attributes.getValue("src"));
+
+        // The element's attributes are never modified
+        assertEquals("/etc/clientlibs/test.js", in.getValue(0));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        attributes.reset(in);
+        attributes.getIndex("src");
+        attributes.setValue(0, "/etc/clientlibs/test.123.js");
+
+        final AttributesImpl next = new AttributesImpl();
+        next.addAttribute("", "type", "", "CDATA", "text/css");
+        next.addAttribute("", "href", "", "CDATA", "/etc/clientlibs/test.css");
+
+        attributes.reset(next);
+
+        assertFalse(attributes.isModified());
+        assertSame(next, attributes.getAttributes());
+        assertEquals(-1, attributes.getIndex("src"));
+        assertEquals(1, attributes.getIndex("href"));
+    }
+
+    @Test
+    public void testCopyPerElement() throws Exception {
+        attributes.reset(in);
+        attributes.setValue(0, "/etc/clientlibs/test.123.js");
+
+        final Attributes first = attributes.getAttributes();
+
+        attributes.reset(in);
+        attributes.setValue(0, "/etc/clientlibs/test.456.js");
+
+        final Attributes second = attributes.getAttributes();
+
+        // Attributes passed down the pipeline for an earlier element are left untouched
+        assertNotSame(first, second);
+        assertEquals("/etc/clientlibs/test.123.js", first.getValue(0));
+        assertEquals("/etc/clientlibs/test.456.js", second.getValue(0));
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.rewriter.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class StreamingXMLParserGeneratorTest {
+
+    private StreamingXMLParserGeneratorFactory factory;
+
+    private RecordingHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        factory = new StreamingXMLParserGeneratorFactory();
+        handler = new RecordingHandler();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        factory.deactivate(new HashMap<String, Object>());
+    }
+
+    @Test
+    public void testParsedWhileWritten() throws Exception {
+        factory.activate(new HashMap<String, Object>());
+
+        StreamingXMLParserGenerator generator = (StreamingXMLParserGenerator) factory.createGenerator();
+        generator.setContentHandler(handler);
+
+        PrintWriter printWriter = generator.getWriter();
+        printWriter.println("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+        printWriter.println("<root><item/><item/>");
+
+        // Parsed and passed on as the document is flushed, before it is finished
+        final long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (handler.itemCount < 2 && System.currentTimeMillis() < timeout) {
+            printWriter.flush();
+            Thread.sleep(10);
+        }
+        assertEquals(2, handler.itemCount);
+
+        printWriter.println("</root>");
+        generator.finished();
+        generator.dispose();
+
+        assertEquals("startDocument", handler.events.get(0));
+        assertEquals("startElement:root", handler.events.get(1));
+        assertEquals("endDocument", handler.events.get(handler.events.size() - 1));
+    }
+
+    @Test
+    public void testDocumentLargerThanBuffer() throws Exception {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("prop.buffer-size", 16);
+        factory.activate(properties);
+
+        StreamingXMLParserGenerator generator = (StreamingXMLParserGenerator) factory.createGenerator();
+        generator.setContentHandler(handler);
+
+        PrintWriter printWriter = generator.getWriter();
+        printWriter.print("<root>");
+        for (int i = 0; i < 1000; i++) {
+            printWriter.print("<item id=\"" + i + "\"/>");
+        }
+        printWriter.print("</root>");
+
+        generator.finished();
+
+        assertEquals(1000, handler.itemCount);
+        assertEquals("endDocument", handler.events.get(handler.events.size() - 1));
+    }
+
+    @Test
+    public void testCalledOnRequestThread() throws Exception {
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put("prop.buffer-size", 16);
+        factory.activate(properties);
+
+        StreamingXMLParserGenerator generator = (StreamingXMLParserGenerator) factory.createGenerator();
+        generator.setContentHandler(handler);
+
+        PrintWriter printWriter = generator.getWriter();
+        printWriter.print("<root>");
+        for (int i = 0; i < 100; i++) {
+            printWriter.print("<item id=\"" + i + "\">text</item>");
+            printWriter.flush();
+        }
+        printWriter.print("</root>");
+
+        generator.finished();
+
+        assertEquals(100, handler.itemCount);
+        assertEquals(1, handler.threads.size());
+        assertTrue(handler.threads.contains(Thread.currentThread()));
+    }
+
+    @Test
+    public void testContentHandlerFailure() throws Exception {
+        factory.activate(new HashMap<String, Object>());
+
+        final SAXException failure = new SAXException("failed");
+
+        StreamingXMLParserGenerator generator = (StreamingXMLParserGenerator) factory.createGenerator();
+        generator.setContentHandler(new DefaultHandler() {
+            public void startElement(String uri, String localName, String qName, Attributes atts)
+                    throws SAXException {
+                throw failure;
+            }
+        });
+
+        PrintWriter printWriter = generator.getWriter();
+        printWriter.print("<root>");
+        printWriter.flush();
+        printWriter.print("<item/></root>");
+
+        try {
+            generator.finished();
+            fail("Expected the content handler's failure");
+        } catch (SAXException e) {
+            assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void testBufferedWithoutParserThreads() throws Exception {
+        // Not activated, so there are no parser threads
+        StreamingXMLParserGenerator generator = (StreamingXMLParserGenerator) factory.createGenerator();
+        generator.setContentHandler(handler);
+
+        generator.getWriter().print("<root><item/></root>");
+        generator.finished();
+
+        assertEquals(1, handler.itemCount);
+        assertEquals("endDocument", handler.events.get(handler.events.size() - 1));
+    }
+
+    @Test
+    public void testEmptyDocument() throws Exception {
+        factory.activate(new HashMap<String, Object>());
+
+        StreamingXMLParserGenerator generator = (StreamingXMLParserGenerator) factory.createGenerator();
+        generator.setContentHandler(handler);
+
+        generator.finished();
+
+        assertTrue(handler.events.isEmpty());
+    }
+
+    @Test(expected = SAXException.class)
+    public void testMalformedDocument() throws Exception {
+        factory.activate(new HashMap<String, Object>());
+
+        StreamingXMLParserGenerator generator = (StreamingXMLParserGenerator) factory.createGenerator();
+        generator.setContentHandler(handler);
+
+        generator.getWriter().print("<root><item></root>");
+        generator.finished();
+    }
+
+    private static final class RecordingHandler extends DefaultHandler {
+        private final List<String> events = new ArrayList<String>();
+
+        private final Set<Thread> threads = new HashSet<Thread>();
+
+        private volatile int itemCount = 0;
+
+        public void startDocument() {
+            threads.add(Thread.currentThread());
+            events.add("startDocument");
+        }
+
+        public void endDocument() {
+            threads.add(Thread.currentThread());
+            events.add("endDocument");
+        }
+
+        public void startElement(String uri, String localName, String qName, Attributes atts) {
+            threads.add(Thread.currentThread());
+            events.add("startElement:" + localName);
+
+            if ("item".equals(localName)) {
+                itemCount++;
+            }
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            threads.add(Thread.currentThread());
+        }
+    }
+}
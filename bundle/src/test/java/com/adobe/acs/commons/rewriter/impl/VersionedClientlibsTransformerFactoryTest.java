@@ -32,15 +32,22 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.helpers.AttributesImpl;
 
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.only;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -55,6 +62,9 @@ public class VersionedClientlibsTransformerFactoryTest {
     @Mock
     private ContentHandler handler;
 
+    @Mock
+    private VersionedClientlibsMetrics metrics;
+
     @InjectMocks
     private VersionedClientlibsTransformerFactory factory = new VersionedClientlibsTransformerFactory();
 
@@ -73,7 +83,7 @@ public class VersionedClientlibsTransformerFactoryTest {
 
     @After
     public void tearDown() throws Exception {
-        reset(htmlLibraryManager, htmlLibrary, handler);
+        reset(htmlLibraryManager, htmlLibrary, handler, metrics);
         transformer = null;
     }
 
@@ -271,4 +281,87 @@ public class VersionedClientlibsTransformerFactoryTest {
 
         assertEquals("https://example.com/same/scheme/styles.css", attributesCaptor.getValue().getValue(0));
     }
+
+    @Test
+    public void testCSSClientLibraryCached() throws Exception {
+
+        when(htmlLibraryManager.getLibrary(eq(LibraryType.CSS), eq(PATH))).thenReturn(htmlLibrary);
+
+        final AttributesImpl in = new AttributesImpl();
+        in.addAttribute("", "href", "", "CDATA", PATH + ".css");
+        in.addAttribute("", "type", "", "CDATA", "text/css");
+        in.addAttribute("", "rel", "", "CDATA", "stylesheet");
+
+        transformer.startElement(null, "link", null, in);
+        transformer.startElement(null, "link", null, in);
+
+        ArgumentCaptor<Attributes> attributesCaptor = ArgumentCaptor.forClass(Attributes.class);
+
+        verify(handler, times(2)).startElement(isNull(String.class), eq("link"), isNull(String.class),
+                attributesCaptor.capture());
+
+        assertEquals(PATH + ".123.css", attributesCaptor.getValue().getValue(0));
+        verify(htmlLibraryManager, times(1)).getLibrary(eq(LibraryType.CSS), eq(PATH));
+        verify(metrics).recordCacheLookup(false);
+        verify(metrics).recordCacheLookup(true);
+    }
+
+    @Test
+    public void testJavaScriptClientLibraryCacheInvalidated() throws Exception {
+
+        when(htmlLibraryManager.getLibrary(eq(LibraryType.JS), eq(PATH))).thenReturn(htmlLibrary);
+
+        final AttributesImpl in = new AttributesImpl();
+        in.addAttribute("", "src", "", "CDATA", PATH + ".js");
+        in.addAttribute("", "type", "", "CDATA", "text/javascript");
+
+        transformer.startElement(null, "script", null, in);
+
+        when(htmlLibrary.getLastModified()).thenReturn(456L);
+        factory.handleEvent(mock(Event.class));
+
+        transformer.startElement(null, "script", null, in);
+
+        ArgumentCaptor<Attributes> attributesCaptor = ArgumentCaptor.forClass(Attributes.class);
+
+        verify(handler, times(2)).startElement(isNull(String.class), eq("script"), isNull(String.class),
+                attributesCaptor.capture());
+
+        assertEquals(PATH + ".123.js", attributesCaptor.getAllValues().get(0).getValue(0));
+        assertEquals(PATH + ".456.js", attributesCaptor.getAllValues().get(1).getValue(0));
+        verify(htmlLibraryManager, times(2)).getLibrary(eq(LibraryType.JS), eq(PATH));
+        verify(metrics).countInvalidation();
+    }
+
+    @Test
+    public void testCSSClientLibraryContentHash() throws Exception {
+        final Map<String, String> properties = new HashMap<String, String>();
+        properties.put("prop.version-mode", "CONTENT_HASH");
+        factory.activate(properties);
+
+        when(htmlLibraryManager.getLibrary(eq(LibraryType.CSS), eq(PATH))).thenReturn(htmlLibrary);
+        when(htmlLibrary.getInputStream()).thenReturn(new ByteArrayInputStream("foo".getBytes("UTF-8")));
+
+        final AttributesImpl in = new AttributesImpl();
+        in.addAttribute("", "href", "", "CDATA", PATH + ".css");
+        in.addAttribute("", "type", "", "CDATA", "text/css");
+        in.addAttribute("", "rel", "", "CDATA", "stylesheet");
+
+        transformer.startElement(null, "link", null, in);
+
+        // Unchanged content is not hashed again when the versioned paths are invalidated
+        factory.handleEvent(mock(Event.class));
+        transformer.startElement(null, "link", null, in);
+
+        ArgumentCaptor<Attributes> attributesCaptor = ArgumentCaptor.forClass(Attributes.class);
+
+        verify(handler, times(2)).startElement(isNull(String.class), eq("link"), isNull(String.class),
+                attributesCaptor.capture());
+
+        assertEquals(PATH + ".acbd18db4cc2f85cedef654fccc4a4d8.css",
+                attributesCaptor.getAllValues().get(0).getValue(0));
+        assertEquals(PATH + ".acbd18db4cc2f85cedef654fccc4a4d8.css",
+                attributesCaptor.getAllValues().get(1).getValue(0));
+        verify(htmlLibrary, times(1)).getInputStream();
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * #%L
+ * ACS AEM Commons Bundle
+ * %%
+ * Copyright (C) 2013 Adobe
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package com.adobe.acs.commons.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() throws Exception {
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram().getSnapshot();
+
+        assertEquals(0L, snapshot.getCount());
+        assertEquals(0D, snapshot.getP50(), 0D);
+        assertEquals(0D, snapshot.getP99(), 0D);
+        assertEquals(0D, snapshot.getMax(), 0D);
+    }
+
+    @Test
+    public void testGetSnapshot() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 0; i < 98; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+
+        assertEquals(100L, snapshot.getCount());
+        assertEquals(50D, snapshot.getMax(), 0D);
+
+        // 100us falls in the [64us, 128us) bucket
+        assertEquals(0.128D, snapshot.getP50(), 0.0001D);
+        // 10ms falls in the [8.192ms, 16.384ms) bucket
+        assertEquals(16.384D, snapshot.getP99(), 0.0001D);
+        assertEquals((98 * 0.1D + 10D + 50D) / 100D, snapshot.getMean(), 0.0001D);
+    }
+
+    @Test
+    public void testPercentileCappedAtMax() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+
+        final LatencyHistogram.Snapshot snapshot = histogram.getSnapshot();
+
+        assertEquals(3D, snapshot.getP50(), 0D);
+        assertEquals(3D, snapshot.getP99(), 0D);
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-1L);
+        histogram.recordSince(System.nanoTime());
+
+        assertEquals(2L, histogram.getCount());
+        assertTrue(histogram.getSnapshot().getMax() >= 0D);
+
+        histogram.reset();
+
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0L, histogram.getSnapshot().getCount());
+    }
+}
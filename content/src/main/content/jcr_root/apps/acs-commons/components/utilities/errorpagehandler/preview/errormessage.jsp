@@ -20,7 +20,6 @@
 <%@include file="/libs/foundation/global.jsp" %><%
 %><%@page session="false" contentType="text/html; charset=UTF-8" pageEncoding="UTF-8"
           import="com.adobe.acs.commons.errorpagehandler.ErrorPageHandlerService,
-                org.apache.commons.lang.StringEscapeUtils,
                 javax.servlet.http.HttpServletResponse" %><%
 
     final ErrorPageHandlerService errorPageHandlerService = sling.getService(ErrorPageHandlerService.class);
@@ -28,8 +27,6 @@
         return;
     }
 
-    final String stackTrace = StringEscapeUtils.escapeHtml(errorPageHandlerService.getException(slingRequest));
-    final String requestProgress = StringEscapeUtils.escapeHtml(errorPageHandlerService.getRequestProgress(slingRequest));
     final String path = errorPageHandlerService.findErrorPage(slingRequest, resource);
 
     final String erroringTitle = currentPage == null ? resource.getName() : currentPage.getTitle();
@@ -84,7 +81,7 @@
                role="button"
                data-collapse-text="Collapse error message"
                data-expand-text="Expand error message">Expand error message</a>
-            <pre><%= stackTrace %></pre>
+            <pre><% errorPageHandlerService.writeException(slingRequest, out, true); %></pre>
         </div>
 
         <div class="section collapsed" id="request-progress">
@@ -94,7 +91,7 @@
                role="button"
                data-collapse-text="Collapse request progress"
                data-expand-text="Expand request progress">Expand request progress</a>
-            <pre><%= requestProgress %></pre>
+            <pre><% errorPageHandlerService.writeRequestProgress(slingRequest, out, true); %></pre>
         </div>
     </div>
 </div>